@@ -0,0 +1,43 @@
+package fr.loria.synalp.jtrans.align;
+
+import fr.loria.synalp.jtrans.bench.Synthetic;
+import fr.loria.synalp.jtrans.graph.StateGraph;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+import fr.loria.synalp.jtrans.train.SpeakerDepModelTrainer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One Metropolis-Hastings refinement step on a synthetic alignment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetropolisBenchmark {
+
+	@Param({"1000"})
+	public int frames;
+
+	private Metropolis metropolis;
+
+
+	@Setup
+	public void setup() throws Exception {
+		StateGraph graph = StateGraph.quick(Synthetic.TEXT);
+		FeatureMatrix data = Synthetic.features(frames, 1234);
+		Alignment baseline = Synthetic.alignment(graph, data);
+		metropolis = new Metropolis(baseline,
+				new SpeakerDepModelTrainer(1, data));
+	}
+
+
+	@Benchmark
+	public Alignment step() throws Exception {
+		return metropolis.step();
+	}
+
+}
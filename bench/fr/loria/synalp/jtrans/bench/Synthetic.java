@@ -0,0 +1,74 @@
+package fr.loria.synalp.jtrans.bench;
+
+import fr.loria.synalp.jtrans.align.Alignment;
+import fr.loria.synalp.jtrans.graph.StateGraph;
+import fr.loria.synalp.jtrans.graph.TokenBacktracker;
+import fr.loria.synalp.jtrans.project.Token;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+
+import java.util.Random;
+
+/**
+ * Reproducible synthetic inputs shared by the benchmarks.
+ */
+public class Synthetic {
+
+	/** Sentence used to build benchmark graphs with {@link StateGraph#quick}. */
+	public static final String TEXT =
+			"le petit chat est monté sur le toit de la maison voisine " +
+			"pendant que les enfants jouaient dans le jardin";
+
+	/** Number of MFCC values per frame */
+	public static final int DIMENSION = 39;
+
+
+	/**
+	 * Generates reproducible pseudo-random MFCC-like frames.
+	 */
+	public static FeatureMatrix features(int frames, long seed) {
+		Random random = new Random(seed);
+		float[] values = new float[frames * DIMENSION];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (float)random.nextGaussian();
+		}
+		return new FeatureMatrix(values, DIMENSION, 16000);
+	}
+
+
+	/**
+	 * Generates reproducible pseudo-random backpointers (the first dimension
+	 * is the frame number).
+	 */
+	public static byte[][] backpointers(int frames, int nodes, long seed) {
+		Random random = new Random(seed);
+		byte[][] bp = new byte[frames][nodes];
+		for (byte[] frame: bp) {
+			for (int n = 0; n < nodes; n++) {
+				// Mostly loops, as in real alignments
+				frame[n] = (byte)(random.nextInt(8) == 0? 1: 0);
+			}
+		}
+		return bp;
+	}
+
+
+	/**
+	 * Aligns a graph on synthetic features and commits the alignment to its
+	 * tokens (all tokens are attributed to speaker #0).
+	 */
+	public static Alignment alignment(StateGraph graph, FeatureMatrix data)
+			throws Exception
+	{
+		for (Token token: graph.getWords()) {
+			token.setSpeaker(0);
+		}
+
+		TokenBacktracker tracker = new TokenBacktracker(graph);
+		graph.viterbi(data, tracker, 0, data.getFrameCount()-1);
+		Alignment alignment = graph.alignmentFromNodeTimeline(
+				tracker.getTimeline(), 0);
+		alignment.commitToTokens();
+		return alignment;
+	}
+
+}
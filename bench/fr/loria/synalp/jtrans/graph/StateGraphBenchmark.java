@@ -0,0 +1,101 @@
+package fr.loria.synalp.jtrans.graph;
+
+import fr.loria.synalp.jtrans.bench.Synthetic;
+import fr.loria.synalp.jtrans.graph.swap.SwapDeflater;
+import fr.loria.synalp.jtrans.graph.swap.SwapInflater;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Graph construction and both passes of Viterbi.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StateGraphBenchmark {
+
+	@Param({"1000"})
+	public int frames;
+
+	private StateGraph graph;
+	private FeatureMatrix data;
+
+	private SwapDeflater swapWriter;
+	private byte[] memorySwap;
+	private File fileSwap;
+	private SwapInflater memoryReader;
+	private SwapInflater fileReader;
+
+
+	@Setup
+	public void setup() throws Exception {
+		graph = StateGraph.quick(Synthetic.TEXT);
+		data = Synthetic.features(frames, 1234);
+		swapWriter = SwapDeflater.getSensibleSwapDeflater(true);
+
+		// In-memory swap for backtrack()
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		swapWriter.init(graph.getNodeCount(), out);
+		graph.viterbi(data, swapWriter, 0, frames-1);
+		memorySwap = out.toByteArray();
+		memoryReader = new SwapInflater();
+		memoryReader.init(swapWriter.getIndex(), memorySwap);
+
+		// File-backed swap for backtrack()
+		fileSwap = File.createTempFile("jtrans-bench", ".swp");
+		fileSwap.deleteOnExit();
+		SwapDeflater fileWriter = SwapDeflater.getSensibleSwapDeflater(true);
+		fileWriter.init(graph.getNodeCount(), new FileOutputStream(fileSwap));
+		graph.viterbi(data, fileWriter, 0, frames-1);
+		fileReader = new SwapInflater();
+		fileReader.init(fileWriter.getIndex(), fileSwap);
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		fileSwap.delete();
+	}
+
+
+	@Benchmark
+	public StateGraph construction() {
+		return StateGraph.quick(Synthetic.TEXT);
+	}
+
+
+	@Benchmark
+	public float viterbiMemorySwap() throws Exception {
+		swapWriter.init(graph.getNodeCount(), new ByteArrayOutputStream());
+		return graph.viterbi(data, swapWriter, 0, frames-1);
+	}
+
+
+	@Benchmark
+	public int[] viterbiTokens() throws Exception {
+		TokenBacktracker tracker = new TokenBacktracker(graph);
+		graph.viterbi(data, tracker, 0, frames-1);
+		return tracker.getTimeline();
+	}
+
+
+	@Benchmark
+	public int[] backtrackMemorySwap() throws Exception {
+		return graph.backtrack(memoryReader);
+	}
+
+
+	@Benchmark
+	public int[] backtrackFileSwap() throws Exception {
+		return graph.backtrack(fileReader);
+	}
+
+}
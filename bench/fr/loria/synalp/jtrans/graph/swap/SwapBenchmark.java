@@ -0,0 +1,80 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import fr.loria.synalp.jtrans.bench.Synthetic;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backpointer swap round trips, independently of Viterbi.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SwapBenchmark {
+
+	@Param({"2000"})
+	public int frames;
+
+	@Param({"500", "5000"})
+	public int nodes;
+
+	/** Compression threads (small pages so that the pipeline fills up) */
+	@Param({"1", "2", "4"})
+	public int workers;
+
+	private byte[][] backpointers;
+	private SwapDeflater swapWriter;
+	private PageIndex index;
+	private byte[] swap;
+
+
+	@Setup
+	public void setup() throws Exception {
+		backpointers = Synthetic.backpointers(frames, nodes, 42);
+		swapWriter = new SwapDeflater(256*1024, new DeflateCodec(),
+				workers, workers+2);
+		swap = deflate();
+		index = swapWriter.getIndex();
+	}
+
+
+	private byte[] deflate() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		swapWriter.init(nodes, out);
+		for (byte[] frame: backpointers) {
+			swapWriter.write(frame);
+		}
+		swapWriter.close();
+		return out.toByteArray();
+	}
+
+
+	@Benchmark
+	public byte[] deflateAll() throws Exception {
+		return deflate();
+	}
+
+
+	/**
+	 * Reads every frame in reverse order, as backtrack() does.
+	 */
+	@Benchmark
+	public int inflateReverse() throws Exception {
+		SwapInflater reader = new SwapInflater();
+		reader.init(index, swap);
+
+		int sum = 0;
+		int node = 0;
+		for (int f = frames-1; f >= 0; f--) {
+			sum += reader.getIncomingTransition(f, node);
+			node = (node + 1) % nodes;
+		}
+		return sum;
+	}
+
+}
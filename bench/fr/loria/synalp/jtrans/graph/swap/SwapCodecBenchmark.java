@@ -0,0 +1,108 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import fr.loria.synalp.jtrans.bench.Synthetic;
+import fr.loria.synalp.jtrans.graph.BackpointerRecorder;
+import fr.loria.synalp.jtrans.graph.StateGraph;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Swap codecs on backpointers recorded from an actual Viterbi forward pass.
+ * The compression ratio of each codec is printed during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SwapCodecBenchmark {
+
+	@Param({"2000"})
+	public int frames;
+
+	@Param({"deflate", "rle", "store"})
+	public String codec;
+
+	private byte[][] backpointers;
+	private int nodes;
+	private SwapDeflater swapWriter;
+	private PageIndex index;
+	private byte[] swap;
+
+
+	@Setup
+	public void setup() throws Exception {
+		StateGraph graph = StateGraph.quick(Synthetic.TEXT);
+		nodes = graph.getNodeCount();
+
+		final List<byte[]> recorded = new ArrayList<>();
+		FeatureMatrix data = Synthetic.features(frames, 1234);
+
+		graph.viterbi(data, new BackpointerRecorder() {
+			@Override
+			public void record(byte[] bestInTrans, int lo, int hi) {
+				recorded.add(Arrays.copyOf(bestInTrans, bestInTrans.length));
+			}
+
+			@Override
+			public void finish() {
+			}
+
+			@Override
+			public String getStatus() {
+				return "";
+			}
+		}, 0, frames-1);
+		backpointers = recorded.toArray(new byte[recorded.size()][]);
+
+		swapWriter = new SwapDeflater(1024*1024, SwapCodec.forName(codec),
+				1, 2);
+		swap = deflate();
+		index = swapWriter.getIndex();
+
+		System.out.println(String.format("%s: %d nodes, %d bytes -> %d " +
+				"bytes (%.2f%%)", codec, nodes, (long)frames * nodes,
+				swap.length, 100f * swap.length / ((long)frames * nodes)));
+	}
+
+
+	private byte[] deflate() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		swapWriter.init(nodes, out);
+		for (byte[] frame: backpointers) {
+			swapWriter.write(frame);
+		}
+		swapWriter.close();
+		return out.toByteArray();
+	}
+
+
+	@Benchmark
+	public byte[] compress() throws Exception {
+		return deflate();
+	}
+
+
+	/**
+	 * Reads every frame in reverse order, as backtrack() does.
+	 */
+	@Benchmark
+	public int decompressReverse() throws Exception {
+		SwapInflater reader = new SwapInflater(2, false);
+		reader.init(index, swap);
+
+		int sum = 0;
+		for (int f = frames-1; f >= 0; f--) {
+			sum += reader.getIncomingTransition(f, f % nodes);
+		}
+		return sum;
+	}
+
+}
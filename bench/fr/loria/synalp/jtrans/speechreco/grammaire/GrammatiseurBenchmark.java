@@ -0,0 +1,38 @@
+package fr.loria.synalp.jtrans.speechreco.grammaire;
+
+import fr.loria.synalp.jtrans.bench.Synthetic;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pronunciation rule lookup for every word of the benchmark sentence.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GrammatiseurBenchmark {
+
+	private Grammatiseur gram;
+	private String[] words;
+
+
+	@Setup
+	public void setup() {
+		gram = Grammatiseur.getGrammatiseur();
+		words = Synthetic.TEXT.split(" ");
+	}
+
+
+	@Benchmark
+	public void getGrammar(Blackhole bh) {
+		for (String word: words) {
+			bh.consume(gram.getGrammar(word));
+		}
+	}
+
+}
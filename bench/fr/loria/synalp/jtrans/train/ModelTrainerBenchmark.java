@@ -0,0 +1,53 @@
+package fr.loria.synalp.jtrans.train;
+
+import fr.loria.synalp.jtrans.bench.Synthetic;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gaussian training and per-frame likelihoods.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModelTrainerBenchmark {
+
+	@Param({"100000"})
+	public int frames;
+
+	@Param({"300"})
+	public int states;
+
+	private ModelTrainer trainer;
+	private int[] stateTimeline;
+
+
+	@Setup
+	public void setup() {
+		FeatureMatrix data = Synthetic.features(frames, 1234);
+		trainer = new ModelTrainer(data);
+
+		Random random = new Random(42);
+		stateTimeline = new int[frames];
+		for (int f = 0; f < frames; f++) {
+			stateTimeline[f] = random.nextInt(states);
+		}
+	}
+
+
+	@Benchmark
+	public int learnAndSeal() {
+		trainer.clear();
+		for (int f = 0; f < frames; f++) {
+			trainer.learnStateAtFrame(stateTimeline[f], f);
+		}
+		return trainer.seal();
+	}
+
+}
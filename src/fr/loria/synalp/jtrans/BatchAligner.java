@@ -0,0 +1,289 @@
+package fr.loria.synalp.jtrans;
+
+import fr.loria.synalp.jtrans.align.Aligner;
+import fr.loria.synalp.jtrans.align.ViterbiAligner;
+import fr.loria.synalp.jtrans.markup.in.MarkupLoader;
+import fr.loria.synalp.jtrans.project.Project;
+import fr.loria.synalp.jtrans.project.TurnProject;
+import fr.loria.synalp.jtrans.speechreco.grammaire.Grammatiseur;
+import fr.loria.synalp.jtrans.speechreco.s4.HMMModels;
+import fr.loria.synalp.jtrans.utils.FileUtils;
+import fr.loria.synalp.jtrans.utils.PrintStreamProgressDisplay;
+import fr.loria.synalp.jtrans.utils.ProgressDisplay;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static fr.loria.synalp.jtrans.speechreco.s4.S4mfccBuffer.frame2second;
+
+/**
+ * Aligns many projects in a single JVM with the options given on the command
+ * line.
+ * <p/>
+ * Acoustic models and the pronunciation dictionary are loaded once and shared
+ * by all projects. Up to {@link JTrans#batchConcurrency} files are aligned at
+ * the same time; further files wait in a bounded queue.
+ */
+public class BatchAligner {
+
+	private final JTrans cli;
+	private final List<File[]> jobs;
+
+	private final AtomicInteger done = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/** Total audio duration of successfully aligned files (milliseconds) */
+	private long audioMillis = 0;
+
+
+	public BatchAligner(JTrans cli) throws IOException {
+		this.cli = cli;
+
+		if (cli.batchSource.isDirectory()) {
+			jobs = scanDirectory(cli.batchSource);
+		} else {
+			jobs = readManifest(cli.batchSource);
+		}
+	}
+
+
+	/**
+	 * Lists markup files in a directory along with their homonymous audio
+	 * files. Markup files without an audio file are skipped.
+	 */
+	static List<File[]> scanDirectory(File dir) throws IOException {
+		List<File[]> list = new ArrayList<>();
+		File[] files = dir.listFiles();
+		if (null == files) {
+			throw new IOException("Can't list directory " + dir);
+		}
+		Arrays.sort(files);
+
+		for (File f: files) {
+			String fn = f.getName().toLowerCase();
+			int dotIdx = fn.lastIndexOf('.');
+			String ext = dotIdx >= 0? fn.substring(dotIdx+1): null;
+
+			if (!f.isFile() ||
+					!Arrays.asList(JTrans.MARKUP_EXTENSIONS).contains(ext))
+			{
+				continue;
+			}
+
+			File audio = FileUtils.detectHomonymousFile(
+					f, JTrans.AUDIO_EXTENSIONS);
+
+			if (audio == null) {
+				System.err.println("WARNING: no audio file for " + f
+						+ "; skipping");
+			} else {
+				list.add(new File[]{f, audio});
+			}
+		}
+
+		return list;
+	}
+
+
+	/**
+	 * Reads a manifest file. Each non-empty line contains a markup file,
+	 * optionally followed by a tab and an audio file. Lines starting with
+	 * '#' are ignored. Relative paths are resolved against the manifest's
+	 * directory. Markup files whose audio file doesn't exist are skipped.
+	 */
+	static List<File[]> readManifest(File manifest) throws IOException {
+		List<File[]> list = new ArrayList<>();
+		File base = manifest.getAbsoluteFile().getParentFile();
+
+		try (BufferedReader reader =
+					 new BufferedReader(new FileReader(manifest)))
+		{
+			String line;
+			while (null != (line = reader.readLine())) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] columns = line.split("\t");
+				File markup = resolve(base, columns[0].trim());
+				File audio;
+
+				if (columns.length > 1) {
+					audio = resolve(base, columns[1].trim());
+					if (!audio.isFile()) {
+						audio = null;
+					}
+				} else {
+					audio = FileUtils.detectHomonymousFile(
+							markup, JTrans.AUDIO_EXTENSIONS);
+				}
+
+				if (audio == null) {
+					System.err.println("WARNING: no audio file for " + markup
+							+ "; skipping");
+				} else {
+					list.add(new File[]{markup, audio});
+				}
+			}
+		}
+
+		return list;
+	}
+
+
+	private static File resolve(File base, String path) {
+		File f = new File(path);
+		return f.isAbsolute()? f: new File(base, path);
+	}
+
+
+	/**
+	 * Aligns all files and prints a throughput summary.
+	 * @return number of files that couldn't be aligned
+	 */
+	public int run() throws InterruptedException {
+		final int concurrency = Math.max(1, cli.batchConcurrency);
+
+		System.out.println(String.format(
+				"Batch: %d files, %d at a time", jobs.size(), concurrency));
+
+		// Load shared resources once, before any worker needs them
+		long t0 = System.currentTimeMillis();
+		HMMModels.getAcousticModels();
+		Grammatiseur.getGrammatiseur();
+		System.out.println(String.format("Batch: models loaded in %.1f s",
+				(System.currentTimeMillis() - t0) / 1000f));
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		final Semaphore slots = new Semaphore(concurrency);
+		long start = System.currentTimeMillis();
+
+		try {
+			for (final File[] job: jobs) {
+				// Bounded queue: wait until a worker is free
+				slots.acquire();
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							alignFile(job[0], job[1], concurrency == 1);
+						} finally {
+							slots.release();
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		printSummary(System.currentTimeMillis() - start);
+		return failed.get();
+	}
+
+
+	private void alignFile(File markupFile, File audioFile, boolean verbose) {
+		long start = System.currentTimeMillis();
+		int frames = 0;
+
+		Project project = null;
+
+		try {
+			ProgressDisplay progress = null;
+			if (verbose && !cli.quiet) {
+				progress = new PrintStreamProgressDisplay(2500, System.out);
+			}
+
+			MarkupLoader loader = cli.makeLoader(markupFile);
+			if (loader == null) {
+				throw new IllegalArgumentException("no markup loader for "
+						+ markupFile);
+			}
+
+			project = loader.parse(markupFile);
+			project.setAudio(audioFile);
+
+			if (cli.clearTimes) {
+				assert project instanceof TurnProject;
+				((TurnProject) project).clearAnchorTimes();
+			}
+
+			if (cli.align) {
+				Aligner referenceAligner = null;
+				if (cli.forceReferencePath) {
+					referenceAligner = project.getAligner(
+							ViterbiAligner.class, progress, false);
+				}
+
+				Aligner aligner = project.getStandardAligner(
+						progress, cli.computeLikelihoods);
+				aligner.setRefine(cli.refine);
+				frames = aligner.getFrameCount();
+
+				project.align(aligner, referenceAligner);
+
+				if (cli.computeLikelihoods) {
+					aligner.getTrainer().seal();
+					System.out.println(markupFile.getName()
+							+ ": overall likelihood: "
+							+ aligner.getTrainer().getCumulativeLikelihood());
+				}
+			}
+
+			cli.save(project, markupFile);
+		} catch (Exception|Error ex) {
+			// Aligners wrap I/O problems in Errors; those fail the file, too
+			failed.incrementAndGet();
+			System.err.println("WARNING: couldn't align " + markupFile
+					+ ": " + ex);
+			ex.printStackTrace();
+			return;
+		} finally {
+			if (project != null) {
+				// Let the cache evict the converted audio
+				project.setAudio(null);
+			}
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+		long audio = (long)(frame2second(frames) * 1000);
+
+		synchronized (this) {
+			audioMillis += audio;
+		}
+
+		System.out.println(String.format(
+				"Batch: [%d/%d] %s: %.1f s (audio: %.1f s, %.2fx real time)",
+				done.incrementAndGet(), jobs.size(), markupFile.getName(),
+				elapsed / 1000f, audio / 1000f,
+				elapsed == 0? 0f: (float)audio / elapsed));
+	}
+
+
+	private synchronized void printSummary(long elapsed) {
+		float seconds = elapsed / 1000f;
+
+		System.out.println("===== BATCH SUMMARY =====");
+		System.out.println("Files aligned....: " + done.get());
+		System.out.println("Files failed.....: " + failed.get());
+		System.out.println(String.format(
+				"Wall time........: %.1f s", seconds));
+		System.out.println(String.format(
+				"Audio aligned....: %.1f s", audioMillis / 1000f));
+		System.out.println(String.format(
+				"Throughput.......: %.2f files/min, %.2fx real time",
+				seconds == 0? 0f: done.get() * 60f / seconds,
+				elapsed == 0? 0f: (float)audioMillis / elapsed));
+	}
+
+}
@@ -7,6 +7,8 @@ import fr.loria.synalp.jtrans.markup.in.*;
 import fr.loria.synalp.jtrans.markup.out.MarkupSaver;
 import fr.loria.synalp.jtrans.markup.out.MarkupSaverPool;
 import fr.loria.synalp.jtrans.project.Project;
+import fr.loria.synalp.jtrans.graph.swap.SwapCodec;
+import fr.loria.synalp.jtrans.graph.swap.SwapDeflater;
 import fr.loria.synalp.jtrans.project.TurnProject;
 import fr.loria.synalp.jtrans.utils.*;
 
@@ -23,6 +25,7 @@ public class JTrans {
 
 	public static String logID = "_" + System.currentTimeMillis();
 	public MarkupLoader loader;
+	public String loaderName;
 	public File inputFile;
 	public File audioFile;
 	public File outputDir;
@@ -35,6 +38,9 @@ public class JTrans {
 	public boolean computeLikelihoods = false;
 	public boolean refine = false;
 	public boolean quiet = false;
+	public boolean cacheStats = false;
+	public File batchSource;
+	public int batchConcurrency = 1;
 
 
 	public final static String[] AUDIO_EXTENSIONS = "wav,ogg,mp3".split(",");
@@ -137,6 +143,19 @@ public class JTrans {
 						"Mark cache files for deletion once they have been " +
 								"used. Saves disk space when aligning large batches.");
 
+				accepts("cache-budget",
+						"Disk budget of the cache, in megabytes. Either for " +
+						"all cache groups (e.g. 2048), or for a single group " +
+						"(e.g. backtrack=8192). May be repeated. Least " +
+						"recently used files are evicted first. Default: " +
+						Cache.DEFAULT_BUDGET_BYTES/1024/1024 + " per group.")
+						.withRequiredArg().ofType(String.class)
+						.describedAs("[group=]MB");
+
+				accepts("cache-stats",
+						"Print cache hits, misses and disk usage at the end " +
+						"of the run.");
+
 				acceptsAll(
 						Arrays.asList("L", "likelihood"),
 						"Compute alignment likelihood");
@@ -145,6 +164,21 @@ public class JTrans {
 						Arrays.asList("M", "metropolis-hastings"),
 						"Metropolis-Hastings post processing");
 
+				accepts("metropolis-chains",
+						"Number of Metropolis-Hastings chains run in " +
+						"parallel, each on its own thread. The best " +
+						"alignment found by any chain is kept.")
+						.withRequiredArg().ofType(Integer.class)
+						.describedAs("chains");
+
+				accepts("metropolis-tempering",
+						"Parallel tempering: ratio between the temperatures " +
+						"of two consecutive Metropolis-Hastings chains. " +
+						"Neighboring chains exchange alignments. " +
+						"Default: 1 (independent chains).")
+						.withRequiredArg().ofType(Double.class)
+						.describedAs("ratio");
+
 				acceptsAll(
 						Arrays.asList("I", "ignore-overlaps"),
 						"(Experimental) Force linear bridge when aligning " +
@@ -156,6 +190,64 @@ public class JTrans {
 						"It is recommended to use a reference path. (-r) " +
 						"Don't use unless you know what you are doing!");
 
+				accepts("beam",
+						"Viterbi beam width (log2 likelihood). Nodes scoring " +
+						"further than this below the best node in a frame " +
+						"are pruned. Default: no pruning.")
+						.withRequiredArg().ofType(Float.class)
+						.describedAs("width");
+
+				accepts("max-active",
+						"Maximum number of active Viterbi nodes per frame " +
+						"(0: no limit). Default: no limit.")
+						.withRequiredArg().ofType(Integer.class)
+						.describedAs("nodes");
+
+				accepts("token-backtrack", "Backtrack Viterbi paths with " +
+						"tokens held in memory instead of a backpointer " +
+						"table (no swap files).");
+
+				accepts("swap-workers",
+						"Number of threads compressing Viterbi swap pages " +
+						"for each alignment. Default: " +
+						SwapDeflater.WORKERS + ".")
+						.withRequiredArg().ofType(Integer.class)
+						.describedAs("threads");
+
+				accepts("swap-pages",
+						"Number of 16 MB page buffers in the swap compression " +
+						"pipeline. Default: " + SwapDeflater.PIPELINE_PAGES + ".")
+						.withRequiredArg().ofType(Integer.class)
+						.describedAs("pages");
+
+				accepts("swap-codec",
+						"Compression of Viterbi swap pages: deflate, rle " +
+						"(run-length + bit packing), or store (no " +
+						"compression). Default: deflate.")
+						.withRequiredArg().ofType(String.class)
+						.describedAs("codec");
+
+				accepts("batch", "Align many projects in a single run. " +
+						"Argument: directory to scan for markup files, or " +
+						"manifest file listing one markup file per line " +
+						"(optionally followed by a tab and an audio file). " +
+						"Audio files are detected automatically if omitted.")
+						.withRequiredArg().ofType(File.class)
+						.describedAs("dir|manifest");
+
+				accepts("batch-files",
+						"Number of files aligned concurrently in batch mode. " +
+						"Default: 1.")
+						.withRequiredArg().ofType(Integer.class)
+						.describedAs("files");
+
+				acceptsAll(
+						Arrays.asList("j", "workers"),
+						"Number of threads aligning independent segments " +
+						"(bounded by known anchors) concurrently. Default: 1.")
+						.withRequiredArg().ofType(Integer.class)
+						.describedAs("threads");
+
 				accepts("z",
 						"Anonymize word")
 						.withRequiredArg().describedAs("word");
@@ -194,6 +286,20 @@ public class JTrans {
 			Cache.VOLATILE_CACHE = true;
 		}
 
+		for (Object o: optset.valuesOf("cache-budget")) {
+			String budget = (String)o;
+			int eq = budget.indexOf('=');
+			if (eq < 0) {
+				Cache.DEFAULT_BUDGET_BYTES =
+						Long.parseLong(budget) * 1024 * 1024;
+			} else {
+				Cache.setBudget(budget.substring(0, eq),
+						Long.parseLong(budget.substring(eq+1)) * 1024 * 1024);
+			}
+		}
+
+		cacheStats = optset.has("cache-stats");
+
 		if (optset.has("L")) {
 			computeLikelihoods = true;
 		}
@@ -206,6 +312,20 @@ public class JTrans {
 			refine = true;
 		}
 
+		if (optset.has("metropolis-chains")) {
+			MultiChainMetropolis.CHAINS =
+					(Integer)optset.valueOf("metropolis-chains");
+			System.out.println("Metropolis-Hastings chains: "
+					+ MultiChainMetropolis.CHAINS);
+		}
+
+		if (optset.has("metropolis-tempering")) {
+			MultiChainMetropolis.TEMPERATURE_RATIO =
+					(Double)optset.valueOf("metropolis-tempering");
+			System.out.println("Metropolis-Hastings temperature ratio: "
+					+ MultiChainMetropolis.TEMPERATURE_RATIO);
+		}
+
 		if (optset.has("ignore-overlaps")) {
 			TurnProject.ALIGN_OVERLAPS = false;
 			System.out.println("Will ignore overlaps.");
@@ -221,6 +341,55 @@ public class JTrans {
 			}
 		}
 
+		if (optset.has("beam")) {
+			float beam = (Float)optset.valueOf("beam");
+			if (!(beam > 0)) {
+				System.err.println("Viterbi beam (--beam) must be positive!");
+				System.exit(1);
+			}
+			ViterbiAligner.BEAM = beam;
+			System.out.println("Viterbi beam: " + ViterbiAligner.BEAM);
+		}
+
+		if (optset.has("max-active")) {
+			int maxActive = (Integer)optset.valueOf("max-active");
+			if (maxActive < 0) {
+				System.err.println("Viterbi active node cap (--max-active) " +
+						"can't be negative!");
+				System.exit(1);
+			}
+			ViterbiAligner.MAX_ACTIVE_NODES = maxActive;
+			System.out.println("Viterbi active node cap: "
+					+ ViterbiAligner.MAX_ACTIVE_NODES);
+		}
+
+		if (optset.has("token-backtrack")) {
+			ViterbiAligner.TOKEN_BACKTRACK = true;
+			System.out.println("Will backtrack with tokens.");
+		}
+
+		if (optset.has("swap-workers")) {
+			SwapDeflater.WORKERS = (Integer)optset.valueOf("swap-workers");
+			System.out.println("Swap workers: " + SwapDeflater.WORKERS);
+		}
+
+		if (optset.has("swap-pages")) {
+			SwapDeflater.PIPELINE_PAGES = (Integer)optset.valueOf("swap-pages");
+			System.out.println("Swap pipeline pages: "
+					+ SwapDeflater.PIPELINE_PAGES);
+		}
+
+		if (optset.has("swap-codec")) {
+			SwapDeflater.CODEC = SwapCodec.forName(
+					(String)optset.valueOf("swap-codec"));
+			System.out.println("Swap codec: " + optset.valueOf("swap-codec"));
+		}
+
+		if (optset.has("workers")) {
+			Project.ALIGNMENT_WORKERS = (Integer)optset.valueOf("workers");
+			System.out.println("Alignment workers: " + Project.ALIGNMENT_WORKERS);
+		}
+
 		inputFile = (File)optset.valueOf("f");
 		audioFile = (File)optset.valueOf("a");
 		outputDir = (File)optset.valueOf("outdir");
@@ -238,12 +407,27 @@ public class JTrans {
 		}
 
 		if (optset.has("infmt")) {
-			String className = (String)optset.valueOf("infmt");
-			loader = MarkupLoaderPool.getInstance().make(className);
+			loaderName = (String)optset.valueOf("infmt");
+			loader = MarkupLoaderPool.getInstance().make(loaderName);
+		}
+
+		if (optset.has("batch")) {
+			batchSource = (File)optset.valueOf("batch");
+			if (optset.has("batch-files")) {
+				batchConcurrency = (Integer)optset.valueOf("batch-files");
+			}
 		}
 
 		outputFormats = (List<String>)optset.valuesOf("outfmt");
 
+		if (batchSource != null && !computeLikelihoods &&
+				outputFormats.isEmpty())
+		{
+			System.err.println("Batch mode needs at least one output format " +
+					"(--outfmt) or likelihood computation (-L)!");
+			System.exit(1);
+		}
+
 		//----------------------------------------------------------------------
 
 		for (Object o: optset.nonOptionArguments()) {
@@ -267,16 +451,7 @@ public class JTrans {
 		}
 
 		if (loader == null && inputFile != null) {
-			String fn = inputFile.getName().toLowerCase();
-			if (fn.endsWith(".jtr")) {
-				loader = new JTRLoader();
-			} else if (fn.endsWith(".trs")) {
-				loader = new TRSLoader();
-			} else if (fn.endsWith(".textgrid")) {
-				loader = new TextGridLoader();
-			} else if (fn.endsWith(".txt")) {
-				loader = new RawTextLoader();
-			}
+			loader = makeLoader(inputFile);
 		}
 
 		if (optset.has("detect-audio") && audioFile == null && inputFile != null) {
@@ -287,6 +462,34 @@ public class JTrans {
 	}
 
 
+	/**
+	 * Creates a new markup loader suitable for the given file: either the
+	 * loader specified on the command line, or a vanilla loader guessed from
+	 * the file's extension.
+	 * @return a loader, or null if no loader is suitable
+	 */
+	public MarkupLoader makeLoader(File markupFile)
+			throws ReflectiveOperationException
+	{
+		if (loaderName != null) {
+			return MarkupLoaderPool.getInstance().make(loaderName);
+		}
+
+		String fn = markupFile.getName().toLowerCase();
+		if (fn.endsWith(".jtr")) {
+			return new JTRLoader();
+		} else if (fn.endsWith(".trs")) {
+			return new TRSLoader();
+		} else if (fn.endsWith(".textgrid")) {
+			return new TextGridLoader();
+		} else if (fn.endsWith(".txt")) {
+			return new RawTextLoader();
+		} else {
+			return null;
+		}
+	}
+
+
 	public static void loadLoggingProperties() throws IOException {
 		LogManager.getLogManager().readConfiguration(
 				JTrans.class.getResourceAsStream("/logging.properties"));
@@ -323,6 +526,18 @@ public class JTrans {
 	 */
 	public void save(Project project)
 			throws ReflectiveOperationException, IOException
+	{
+		save(project, inputFile);
+	}
+
+
+	/**
+	 * Saves a project with output options specified on the command line.
+	 * @param markupFile markup file the project was loaded from. Output files
+	 *                   are named after it.
+	 */
+	public void save(Project project, File markupFile)
+			throws ReflectiveOperationException, IOException
 	{
 		outputDir.mkdirs();
 
@@ -332,7 +547,7 @@ public class JTrans {
 
 			fmt = fmt.toLowerCase();
 			String base = FileUtils.noExt(new File(outputDir,
-					inputFile.getName()).getAbsolutePath());
+					markupFile.getName()).getAbsolutePath());
 
 			MarkupSaver saver = MarkupSaverPool.getInstance().make(fmt);
 			saver.save(project, new File(base + saver.getExt()));
@@ -403,6 +618,17 @@ public class JTrans {
 			System.exit(1);
 		}
 
+		if (cli.batchSource != null) {
+			int failed = new BatchAligner(cli).run();
+			if (cli.cacheStats) {
+				Cache.printStats(System.out);
+			}
+			if (failed > 0) {
+				System.exit(1);
+			}
+			return;
+		}
+
 		if (!cli.computeLikelihoods &&
 				!cli.runAnchorDiffTest &&
 				!cli.runWordDiffTest &&
@@ -487,6 +713,10 @@ public class JTrans {
 		}
 
 		cli.save(project);
+
+		if (cli.cacheStats) {
+			Cache.printStats(System.out);
+		}
 	}
 
 }
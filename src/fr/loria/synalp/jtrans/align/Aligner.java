@@ -1,9 +1,9 @@
 package fr.loria.synalp.jtrans.align;
 
-import edu.cmu.sphinx.frontend.FloatData;
 import fr.loria.synalp.jtrans.project.Anchor;
 import fr.loria.synalp.jtrans.project.Token;
-import fr.loria.synalp.jtrans.speechreco.s4.S4mfccBuffer;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureSource;
+import fr.loria.synalp.jtrans.speechreco.s4.StreamingFeatureSource;
 import fr.loria.synalp.jtrans.train.SpeakerDepModelTrainer;
 import fr.loria.synalp.jtrans.utils.ProgressDisplay;
 import fr.loria.synalp.jtrans.graph.*;
@@ -20,7 +20,7 @@ import java.util.List;
 public abstract class Aligner {
 
 	protected SpeakerDepModelTrainer trainer;
-	protected List<FloatData> data;
+	protected FeatureSource data;
 	protected final File audio;
 	protected final ProgressDisplay progress;
 
@@ -43,12 +43,48 @@ public abstract class Aligner {
 	private boolean refine = false;
 
 
+	/**
+	 * Alignment that has been computed but not yet fully committed to its
+	 * tokens (no likelihood computation, refinement, or post-align hook yet).
+	 * <p/>
+	 * Pending alignments may be computed concurrently on several threads (see
+	 * {@link #prepare}) as long as they involve disjoint sets of tokens.
+	 * They must then be committed in a deterministic order with
+	 * {@link #commit()}, one at a time.
+	 */
+	public class PendingAlignment {
+		private final StateGraph graph;
+		private final Alignment alignment;
+
+		private PendingAlignment(StateGraph graph, Alignment alignment) {
+			this.graph = graph;
+			this.alignment = alignment;
+		}
+
+		/**
+		 * Commits the raw alignment to the tokens, without any further
+		 * processing. Only affects the tokens in this alignment.
+		 */
+		public void commitToTokens() {
+			alignment.commitToTokens();
+		}
+
+		/**
+		 * Finalizes the alignment (likelihood, refinement) and commits it to
+		 * the tokens.
+		 */
+		public Alignment commit() throws IOException, InterruptedException {
+			return Aligner.this.commit(graph, alignment);
+		}
+	}
+
+
 	public Aligner(File audio, ProgressDisplay progress) {
 		this.progress = progress;
 		this.audio = audio;
 
 		try {
-			data = S4mfccBuffer.getAllData(audio, true);
+			data = StreamingFeatureSource.forAudio(audio);
 		} catch (IOException | UnsupportedAudioFileException ex) {
 			ex.printStackTrace();
 			data = null;
@@ -66,9 +102,14 @@ public abstract class Aligner {
 	}
 
 
+	public boolean isRefining() {
+		return refine;
+	}
+
+
 	public void initTrainers(int speakers) {
 		trainer = new SpeakerDepModelTrainer(
-				speakers, S4mfccBuffer.to2DArray(data));
+				speakers, data.toMatrix());
 	}
 
 
@@ -78,7 +119,7 @@ public abstract class Aligner {
 
 
 	public int getFrameCount() {
-		return data.size();
+		return data.getFrameCount();
 	}
 
 
@@ -103,7 +144,7 @@ public abstract class Aligner {
 		assert startFrame <= endFrame;
 		assert startFrame >= 0;
 		assert endFrame >= 0;
-		assert endFrame < data.size();
+		assert endFrame < data.getFrameCount();
 		return endFrame - startFrame + 1;
 	}
 
@@ -114,6 +155,21 @@ public abstract class Aligner {
 	 */
 	protected Alignment align(StateGraph graph, int startFrame, int endFrame)
 			throws IOException, InterruptedException
+	{
+		return commit(graph, computeAlignment(graph, startFrame, endFrame));
+	}
+
+
+	/**
+	 * Computes the alignment of the words in a StateGraph without committing
+	 * it to the tokens. Safe to call concurrently on distinct graphs.
+	 * @param endFrame last frame to analyze (inclusive)
+	 */
+	protected Alignment computeAlignment(
+			StateGraph graph,
+			int startFrame,
+			int endFrame)
+			throws IOException, InterruptedException
 	{
 		// Space-separated string of words (used as identifier for cache files)
 		final String text;
@@ -127,8 +183,18 @@ public abstract class Aligner {
 
 		graph.setProgressDisplay(progress);
 
-		Alignment alignment = getAlignment(graph, text, startFrame, endFrame);
+		return getAlignment(graph, text, startFrame, endFrame);
+	}
+
 
+	/**
+	 * Computes likelihoods and refines an alignment if needed, then commits it
+	 * to the tokens. Not thread-safe.
+	 * @return final alignment
+	 */
+	protected Alignment commit(StateGraph graph, Alignment alignment)
+			throws IOException, InterruptedException
+	{
 		if (computeLikelihoods) {
 			assert trainer != null;
 			if (progress != null) {
@@ -149,16 +215,22 @@ public abstract class Aligner {
 
 			assert trainer != null;
 
-			final Metropolis refinery =
-					new Metropolis(alignment, trainer);
+			final MultiChainMetropolis refinery =
+					new MultiChainMetropolis(alignment, trainer);
 
-			while (!refinery.hasPlateaued()) {
-				alignment = refinery.step();
+			try {
+				while (!refinery.hasPlateaued()) {
+					alignment = refinery.step();
 
-				if (refinementIterationHook != null) {
-					alignment.commitToTokens();
-					refinementIterationHook.run();
+					if (refinementIterationHook != null) {
+						alignment.commitToTokens();
+						// The trainers learned the previous segments
+						refinery.tokensChanged();
+						refinementIterationHook.run();
+					}
 				}
+			} finally {
+				refinery.shutdown();
 			}
 		}
 
@@ -185,9 +257,30 @@ public abstract class Aligner {
 			List<Token> words,
 			Aligner reference)
 			throws IOException, InterruptedException
+	{
+		PendingAlignment pending = prepare(start, end, words, reference);
+		if (null != pending) {
+			pending.commit();
+		}
+	}
+
+
+	/**
+	 * Computes the alignment of tokens between two anchors, but does not
+	 * commit it. Several alignments may be prepared concurrently as long as
+	 * they involve disjoint sets of tokens.
+	 * @see #align(Anchor, Anchor, List, Aligner)
+	 * @return pending alignment, or {@code null} if there is nothing to align
+	 */
+	public PendingAlignment prepare(
+			Anchor start,
+			Anchor end,
+			List<Token> words,
+			Aligner reference)
+			throws IOException, InterruptedException
 	{
 		if (words.isEmpty()) {
-			return;
+			return null;
 		}
 
 		int frameCount = getFrameCount();
@@ -244,7 +337,7 @@ public abstract class Aligner {
 							"close together: frame %d (initial) vs %d (final) " +
 							"(in phrase: %s)",
 					iFrame, fFrame, words));
-			return;
+			return null;
 		}
 
 		StateGraph graph = new StateGraph(words);
@@ -256,7 +349,8 @@ public abstract class Aligner {
 			graph = new StateGraph(al);
 		}
 
-		align(graph, iFrame, fFrame);
+		return new PendingAlignment(
+				graph, computeAlignment(graph, iFrame, fFrame));
 	}
 
 
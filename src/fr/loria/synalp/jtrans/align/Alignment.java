@@ -4,15 +4,43 @@ import edu.cmu.sphinx.linguist.acoustic.HMMState;
 import fr.loria.synalp.jtrans.project.Token;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
 
 /**
  * Timeline of HMM states.
+ * <p/>
+ * Segments are stored as parallel primitive arrays (structure of arrays):
+ * the start frame of each segment (prefix sums of the segment lengths), the
+ * ID of its state, and the index of its word in the list of unique words.
+ * States are interned in a table that is shared by copies of the alignment.
+ * The segment at any frame can be found by binary search. Sequential scans
+ * should use a {@link Cursor}, which only needs to step to the next segment
+ * most of the time.
+ * <p/>
+ * Copies share their arrays until either the copy or the original is
+ * modified (copy-on-write), so copying an alignment only allocates a new
+ * object.
+ * <p/>
+ * Transitions may be moved tentatively: after {@link #beginEdits()}, every
+ * transition move is logged so that it can be undone with
+ * {@link #rollbackEdits()}. Metropolis-Hastings proposals are made this way
+ * instead of working on a copy.
+ * <p/>
+ * {@link Segment} objects are snapshots created on demand (e.g. when
+ * iterating over the alignment). Hot paths should use the accessors that
+ * take a segment index instead.
  */
 public class Alignment implements Iterable<Alignment.Segment> {
 
+	/**
+	 * Snapshot of a segment.
+	 */
 	public static class Segment {
 		int length;
 		public final HMMState state;
@@ -45,11 +73,50 @@ public class Alignment implements Iterable<Alignment.Segment> {
 	}
 
 
-	List<Segment> segments;
 	List<Token> uniqueWords;
 	int frames;
 	final int frameOffset;
 
+	/** Number of segments */
+	private int nSegs;
+
+	/**
+	 * Absolute start frame of each segment. starts[nSegs] is the frame
+	 * following the last segment, so that the length of segment i is
+	 * starts[i+1] - starts[i].
+	 */
+	private int[] starts;
+
+	/** State ID of each segment (index into stateTable) */
+	private int[] stateIds;
+
+	/** Index of each segment's word in uniqueWords (-1 if none) */
+	private int[] wordIds;
+
+	/** Interned states */
+	private List<HMMState> stateTable;
+	private Map<HMMState, Integer> stateIndex;
+
+	/**
+	 * The start frames may be shared with copies of this alignment, and must
+	 * be copied before being modified.
+	 */
+	private boolean startsShared;
+
+	/**
+	 * Same for the other segment arrays, the state table and the unique
+	 * word list. Moving transitions doesn't modify these.
+	 */
+	private boolean contentsShared;
+
+	/**
+	 * Undo log: transition (index of the segment on its lefthand side) and
+	 * previous frame of the transition, for each move since beginEdits().
+	 */
+	private int[] editTransitions;
+	private int[] editBoundaries;
+	private int editCount = -1; // -1 if not logging
+
 
 	/**
 	 * Constructs an empty alignment.
@@ -57,30 +124,74 @@ public class Alignment implements Iterable<Alignment.Segment> {
 	 *                    number
 	 */
 	public Alignment(int frameOffset) {
-		segments = new ArrayList<>();
 		uniqueWords = new ArrayList<>();
 		frames = 0;
 		this.frameOffset = frameOffset;
+
+		starts = new int[16];
+		starts[0] = frameOffset;
+		stateIds = new int[16];
+		wordIds = new int[16];
+		stateTable = new ArrayList<>();
+		stateIndex = new IdentityHashMap<>();
 	}
 
 
 	/**
-	 * Deep-copies segments, shallow-copies unique words.
+	 * Copies another alignment. Segment data is shared with the other
+	 * alignment until either of them is modified.
 	 */
 	public Alignment(Alignment other) {
-		segments = new ArrayList<>(other.segments.size());
-		for (Segment seg: other.segments) {
-			segments.add(new Segment(seg));
+		if (other.editCount >= 0) {
+			throw new IllegalStateException("can't copy during edits");
 		}
 
-		uniqueWords = new ArrayList<>(other.uniqueWords);
+		uniqueWords = other.uniqueWords;
 		frames = other.frames;
 		frameOffset = other.frameOffset;
 
+		nSegs = other.nSegs;
+		starts = other.starts;
+		stateIds = other.stateIds;
+		wordIds = other.wordIds;
+		stateTable = other.stateTable;
+		stateIndex = other.stateIndex;
+
+		startsShared = contentsShared = true;
+		other.startsShared = other.contentsShared = true;
+
 		assert verify();
 	}
 
 
+	/**
+	 * Makes a private copy of the start frames before modifying them.
+	 */
+	private void ensureStartsOwned() {
+		if (startsShared) {
+			starts = Arrays.copyOf(starts, Math.max(16, nSegs + 1));
+			startsShared = false;
+		}
+	}
+
+
+	/**
+	 * Makes private copies of all shared data before appending segments.
+	 */
+	private void ensureOwned() {
+		ensureStartsOwned();
+		if (contentsShared) {
+			int capacity = starts.length;
+			stateIds = Arrays.copyOf(stateIds, capacity);
+			wordIds = Arrays.copyOf(wordIds, capacity);
+			uniqueWords = new ArrayList<>(uniqueWords);
+			stateTable = new ArrayList<>(stateTable);
+			stateIndex = new IdentityHashMap<>(stateIndex);
+			contentsShared = false;
+		}
+	}
+
+
 	/**
 	 * Extends this timeline by a single frame at the end.
 	 * <p/>Extends the last segment by 1 frame if the same state/word combo is
@@ -88,17 +199,18 @@ public class Alignment implements Iterable<Alignment.Segment> {
 	 * @param word unique reference!
 	 */
 	public void newFrame(HMMState state, Token word) {
-		Segment tail = segments.isEmpty()?
-				null: segments.get(segments.size()-1);
-
-		if (null != tail && tail.state == state && tail.word == word) {
-			tail.length++;
+		ensureOwned();
+
+		if (nSegs > 0 &&
+				getState(nSegs-1) == state &&
+				getWord(nSegs-1) == word)
+		{
+			starts[nSegs]++;
+			frames++;
 		} else {
-			segments.add(new Segment(state, word));
+			addSegment(state, word, 1);
 		}
 
-		frames++;
-		newWord(word);
 		assert verify();
 	}
 
@@ -112,17 +224,46 @@ public class Alignment implements Iterable<Alignment.Segment> {
 	 * @param length length of the new segment, in frames
 	 */
 	public void newSegment(HMMState state, Token word, int length) {
-		assert segments.isEmpty() ||
-				state != segments.get(segments.size()-1).state
+		assert nSegs == 0 || state != getState(nSegs-1)
 				: "same state across two segments";
 
-		segments.add(new Segment(state, word, length));
-		frames += length;
-		newWord(word);
+		ensureOwned();
+		addSegment(state, word, length);
 		assert verify();
 	}
 
 
+	private void addSegment(HMMState state, Token word, int length) {
+		assert null == word || word.isAlignable();
+
+		if (nSegs + 2 > starts.length) {
+			int capacity = 2 * starts.length;
+			starts = Arrays.copyOf(starts, capacity);
+			stateIds = Arrays.copyOf(stateIds, capacity);
+			wordIds = Arrays.copyOf(wordIds, capacity);
+		}
+
+		newWord(word);
+
+		stateIds[nSegs] = internState(state);
+		wordIds[nSegs] = null == word? -1: uniqueWords.size()-1;
+		starts[nSegs+1] = starts[nSegs] + length;
+		nSegs++;
+		frames += length;
+	}
+
+
+	private int internState(HMMState state) {
+		Integer id = stateIndex.get(state);
+		if (null == id) {
+			id = stateTable.size();
+			stateTable.add(state);
+			stateIndex.put(state, id);
+		}
+		return id;
+	}
+
+
 	/**
 	 * Appends a word to the list of unique words if the word isn't already the
 	 * last word in the list.
@@ -147,7 +288,7 @@ public class Alignment implements Iterable<Alignment.Segment> {
 
 
 	public int getSegmentCount() {
-		return segments.size();
+		return nSegs;
 	}
 
 
@@ -162,26 +303,176 @@ public class Alignment implements Iterable<Alignment.Segment> {
 
 
 	public HMMState getStateAtFrame(int frame) {
-		return getSegmentAtFrame(frame).state;
+		int idx = getSegmentIndexAtFrame(frame);
+		if (idx < 0) {
+			throw new IndexOutOfBoundsException("frame " + frame);
+		}
+		return getState(idx);
 	}
 
 
+	/**
+	 * @return a snapshot of the segment at the given frame, or null if the
+	 * frame is outside this alignment
+	 */
 	public Segment getSegmentAtFrame(int frame) {
-		// TODO: start lookup at index (-> speed up)
+		int idx = getSegmentIndexAtFrame(frame);
+		return idx < 0? null: getSegment(idx);
+	}
+
+
+	/**
+	 * Finds the segment at a frame by binary search.
+	 * @return segment index, or -1 if the frame is outside this alignment
+	 */
+	public int getSegmentIndexAtFrame(int frame) {
+		if (frame < frameOffset || frame >= frameOffset + frames) {
+			return -1;
+		}
 
-		int total = frameOffset;
-		for (Segment seg: segments) {
-			if (frame >= total && frame < total+seg.length) {
-				return seg;
+		// Last segment starting at or before the frame
+		int lo = 0;
+		int hi = nSegs - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (starts[mid] <= frame) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
 			}
-			total += seg.length;
 		}
-		return null;
+		return lo;
+	}
+
+
+	private void checkSegmentIndex(int idx) {
+		if (idx < 0 || idx >= nSegs) {
+			throw new IndexOutOfBoundsException("segment " + idx);
+		}
 	}
 
 
+	/**
+	 * Returns a snapshot of a segment.
+	 */
 	public Segment getSegment(int idx) {
-		return segments.get(idx);
+		checkSegmentIndex(idx);
+		return new Segment(getState(idx), getWord(idx), getSegmentLength(idx));
+	}
+
+
+	/**
+	 * Returns the absolute frame at which a segment starts.
+	 */
+	public int getSegmentStart(int idx) {
+		checkSegmentIndex(idx);
+		return starts[idx];
+	}
+
+
+	public int getSegmentLength(int idx) {
+		checkSegmentIndex(idx);
+		return starts[idx+1] - starts[idx];
+	}
+
+
+	public HMMState getState(int idx) {
+		checkSegmentIndex(idx);
+		return stateTable.get(stateIds[idx]);
+	}
+
+
+	/**
+	 * Returns an ID that uniquely identifies the state of a segment among
+	 * this alignment and its copies.
+	 */
+	public int getStateId(int idx) {
+		checkSegmentIndex(idx);
+		return stateIds[idx];
+	}
+
+
+	public Token getWord(int idx) {
+		checkSegmentIndex(idx);
+		int w = wordIds[idx];
+		return w < 0? null: uniqueWords.get(w);
+	}
+
+
+	/**
+	 * Returns a cursor for scanning this alignment frame by frame.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+
+	/**
+	 * Looks up segments by frame, starting from the segment found by the
+	 * previous lookup. Scanning frames in ascending order costs O(1) per frame;
+	 * other lookups fall back to a binary search.
+	 * <p/>
+	 * Cursors remain valid when segment lengths are modified (e.g. with
+	 * {@link #modifyTransition}). Each thread needs its own cursor.
+	 */
+	public class Cursor {
+
+		private int idx = 0;
+
+
+		private Cursor() {
+		}
+
+
+		/**
+		 * @return index of the segment at the given frame, or -1 if the frame
+		 * is outside the alignment
+		 */
+		public int getSegmentIndexAtFrame(int frame) {
+			if (frame < frameOffset || frame >= frameOffset + frames) {
+				return -1;
+			}
+
+			if (idx < nSegs && frame >= starts[idx]) {
+				if (frame >= starts[idx+1]) {
+					// Sequential scans move on to the next segment
+					idx++;
+					if (frame >= starts[idx+1]) {
+						idx = Alignment.this.getSegmentIndexAtFrame(frame);
+					}
+				}
+			} else {
+				idx = Alignment.this.getSegmentIndexAtFrame(frame);
+			}
+
+			return idx;
+		}
+
+
+		/**
+		 * @return a snapshot of the segment at the given frame, or null if
+		 * the frame is outside the alignment
+		 */
+		public Segment getSegmentAtFrame(int frame) {
+			int i = getSegmentIndexAtFrame(frame);
+			return i < 0? null: getSegment(i);
+		}
+
+
+		public HMMState getStateAtFrame(int frame) {
+			int i = getSegmentIndexAtFrame(frame);
+			if (i < 0) {
+				throw new IndexOutOfBoundsException("frame " + frame);
+			}
+			return stateTable.get(stateIds[i]);
+		}
+
+
+		/** Index of the segment found by the last lookup */
+		public int getSegmentIndex() {
+			return idx;
+		}
+
 	}
 
 
@@ -198,13 +489,13 @@ public class Alignment implements Iterable<Alignment.Segment> {
 		Token pWord = null;        // previous word
 		Token.Phone phone = null;  // current phone
 		String pUnit = null;
-		int segStart = frameOffset; // absolute frame number
 
-		for (Segment seg: segments) {
-			int segEnd = segStart + seg.length - 1;
+		for (int i = 0; i < nSegs; i++) {
+			int segStart = starts[i];  // absolute frame number
+			int segEnd = starts[i+1] - 1;
 			assert segStart <= segEnd;
 
-			Token word = seg.word;
+			Token word = getWord(i);
 			if (word != pWord) {
 				word.setSegment(segStart, segEnd);
 				pWord = word;
@@ -212,7 +503,7 @@ public class Alignment implements Iterable<Alignment.Segment> {
 				word.getSegment().setEndFrame(segEnd);
 			}
 
-			String unit = seg.getUnit();
+			String unit = getState(i).getHMM().getBaseUnit().getName();
 			if (pUnit == null || !unit.equals(pUnit)) {
 				if (null != word) {
 					phone = new Token.Phone(
@@ -223,8 +514,6 @@ public class Alignment implements Iterable<Alignment.Segment> {
 			} else if (null != phone) {
 				phone.getSegment().setEndFrame(segEnd);
 			}
-
-			segStart += seg.length;
 		}
 	}
 
@@ -242,46 +531,122 @@ public class Alignment implements Iterable<Alignment.Segment> {
 	 * @param lhsNewLength new length to give to the LHS segment
 	 */
 	public void modifyTransition(int lhsIdx, int lhsNewLength) {
-		assert lhsIdx < segments.size()-1;
+		assert lhsIdx < nSegs-1;
 		assert lhsNewLength > 0;
 		assert lhsNewLength <= getMaxLengthExpandingRightward(lhsIdx);
 
-		Segment a = segments.get(lhsIdx);
-		Segment b = segments.get(lhsIdx+1);
+		ensureStartsOwned();
+
+		if (editCount >= 0) {
+			if (editCount == editTransitions.length) {
+				editTransitions = Arrays.copyOf(editTransitions, 2 * editCount);
+				editBoundaries = Arrays.copyOf(editBoundaries, 2 * editCount);
+			}
+			editTransitions[editCount] = lhsIdx;
+			editBoundaries[editCount] = starts[lhsIdx+1];
+			editCount++;
+		}
+
+		starts[lhsIdx+1] = starts[lhsIdx] + lhsNewLength;
+
+		assert verify();
+	}
+
 
-		int delta = lhsNewLength - a.length;
-		a.length += delta;
-		b.length -= delta;
+	/**
+	 * Starts logging transition moves so that they can be undone with
+	 * {@link #rollbackEdits()}.
+	 */
+	public void beginEdits() {
+		if (editCount >= 0) {
+			throw new IllegalStateException("already editing");
+		}
+
+		if (editTransitions == null) {
+			editTransitions = new int[128];
+			editBoundaries = new int[128];
+		}
+		editCount = 0;
+	}
+
+
+	/**
+	 * Keeps the changes made since {@link #beginEdits()} and stops logging.
+	 */
+	public void commitEdits() {
+		if (editCount < 0) {
+			throw new IllegalStateException("not editing");
+		}
+		editCount = -1;
+	}
+
+
+	/**
+	 * Undoes the changes made since {@link #beginEdits()} and stops logging.
+	 */
+	public void rollbackEdits() {
+		if (editCount < 0) {
+			throw new IllegalStateException("not editing");
+		}
+
+		for (int i = editCount-1; i >= 0; i--) {
+			starts[editTransitions[i]+1] = editBoundaries[i];
+		}
+		editCount = -1;
 
 		assert verify();
 	}
 
 
+	/**
+	 * Number of transition moves logged since {@link #beginEdits()}.
+	 */
+	int getEditCount() {
+		return editCount;
+	}
+
+
+	/** Transition moved by a logged edit */
+	int getEditedTransition(int edit) {
+		return editTransitions[edit];
+	}
+
+
+	/** Frame of a transition before a logged edit */
+	int getEditedBoundary(int edit) {
+		return editBoundaries[edit];
+	}
+
+
+	/** Current frame of a transition */
+	int getBoundary(int transition) {
+		return starts[transition+1];
+	}
+
+
 	/**
 	 * Returns the maximum length for a segment expanding toward the right,
 	 * without erasing/overlapping any segments on its righthand side.
 	 * Important: the segment may still grow on its lefthand side!
 	 */
 	public int getMaxLengthExpandingRightward(int segIdx) {
-		assert segIdx < segments.size()-1;
-		Segment a = segments.get(segIdx);
-		Segment b = segments.get(segIdx+1);
-		return a.length + (b.length - 1);
+		assert segIdx < nSegs-1;
+		return starts[segIdx+2] - starts[segIdx] - 1;
 	}
 
 
 	public int transitionCount() {
-		return segments.size();
+		return nSegs;
 	}
 
 
 	public boolean verify() {
-		int frameSum = 0;
-		for (Segment seg: segments) {
-			assert seg.length >= 1;
-			frameSum += seg.length;
+		assert starts[0] == frameOffset;
+		for (int i = 0; i < nSegs; i++) {
+			assert starts[i+1] - starts[i] >= 1
+					: "segment " + i + " is empty";
 		}
-		assert frameSum == frames;
+		assert starts[nSegs] - frameOffset == frames;
 		return true;
 	}
 
@@ -306,7 +671,7 @@ public class Alignment implements Iterable<Alignment.Segment> {
 		if (maxDist < 0) {
 			newLength = 1 + random.nextInt(maxLength);
 		} else {
-			int currLength = segments.get(lhsSeg).length;
+			int currLength = starts[lhsSeg+1] - starts[lhsSeg];
 
 			int min = Math.max(currLength - maxDist, 1);
 			int max = Math.min(currLength + maxDist, maxLength); // inclusive
@@ -323,9 +688,32 @@ public class Alignment implements Iterable<Alignment.Segment> {
 	}
 
 
+	/**
+	 * Iterates over snapshots of the segments.
+	 */
 	@Override
 	public Iterator<Segment> iterator() {
-		return segments.iterator();
+		return new Iterator<Segment>() {
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < nSegs;
+			}
+
+			@Override
+			public Segment next() {
+				if (i >= nSegs) {
+					throw new NoSuchElementException();
+				}
+				return getSegment(i++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 }
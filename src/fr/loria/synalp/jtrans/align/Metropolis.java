@@ -1,5 +1,6 @@
 package fr.loria.synalp.jtrans.align;
 
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
 import edu.cmu.sphinx.util.LogMath;
 import fr.loria.synalp.jtrans.JTrans;
 import fr.loria.synalp.jtrans.project.Token;
@@ -10,11 +11,21 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
  * Refines an HMM state timeline by shifting transitions with the
  * Metropolis-Hastings algorithm.
+ * <p/>
+ * Proposals only move a few transitions, so the trainer is normally updated
+ * with the frames that changed state (and reverted if the proposal is
+ * rejected) instead of being retrained from scratch.
+ * <p/>
+ * Proposals are made in place on the current timeline, whose undo log is
+ * used to list the frames that changed state and to roll back rejected
+ * proposals (see {@link Alignment#beginEdits()}). Once the buffers have grown
+ * large enough, making a proposal doesn't allocate anything.
  */
 public class Metropolis {
 
@@ -23,6 +34,7 @@ public class Metropolis {
 
 	private Random random;
 	private SpeakerDepModelTrainer trainer;
+	private final double temperature;
 	private LogMath log = HMMModels.getLogMath();
 
 	int rejectionStreak = 0;
@@ -40,6 +52,28 @@ public class Metropolis {
 	public static final int METROPOLIS_REJECTION_STREAK_CAP = 500;
 
 
+	/**
+	 * Retrain from scratch every so many iterations, so that rounding errors
+	 * in incremental updates don't accumulate. 0 to always retrain from
+	 * scratch.
+	 */
+	public static int FULL_RETRAIN_INTERVAL = 100;
+
+
+	/** The trainer is trained on the current timeline */
+	private boolean trainerOnTimeline;
+
+	/** Frames that changed state in the last proposal */
+	private int[] changedFrames = new int[256];
+	private HMMState[] newStates = new HMMState[256];
+	private HMMState[] oldStates = new HMMState[256];
+	private int changedCount;
+
+	/** Transitions moved by the last proposal, with their original frames */
+	private int[] movedTransitions = new int[128];
+	private int[] movedFrom = new int[128];
+
+
 	/** Proposal acceptance/rejection status */
 	private enum Accept {
 		/** Accepted on merit alone. Proposal better than original. */
@@ -60,11 +94,29 @@ public class Metropolis {
 	public Metropolis(
 			Alignment baseline,
 			SpeakerDepModelTrainer trainer)
+	{
+		this(baseline, trainer, new Random(), 1);
+	}
+
+
+	/**
+	 * @param baseline Baseline alignment (as found e.g. with viterbi()).
+	 * @param temperature Likelihood differences are divided by this value
+	 *                    before computing the acceptance ratio. Chains with
+	 *                    a higher temperature accept worse proposals more
+	 *                    readily (see {@link MultiChainMetropolis}).
+	 */
+	public Metropolis(
+			Alignment baseline,
+			SpeakerDepModelTrainer trainer,
+			Random random,
+			double temperature)
 	{
 		timeline = new Alignment(baseline);
 
-		random = new Random();
+		this.random = random;
 		this.trainer = trainer;
+		this.temperature = temperature;
 
 /*
 		for (int i = 0; i < 10000000; i++) {
@@ -72,11 +124,16 @@ public class Metropolis {
 		}
 */
 
-		cLhd = train(baseline);
+		cLhd = train(trainer, baseline);
+		trainerOnTimeline = true;
 	}
 
 
-	private double train(Alignment timeline) {
+	/**
+	 * Trains a trainer from scratch on an alignment.
+	 * @return cumulative likelihood of the alignment
+	 */
+	static double train(SpeakerDepModelTrainer trainer, Alignment timeline) {
 		trainer.clear();
 
 		for (Token w: timeline.getUniqueWords()) {
@@ -89,18 +146,164 @@ public class Metropolis {
 	}
 
 
+	/**
+	 * Trains the trainer on the proposal currently being edited on the
+	 * timeline.
+	 * @return cumulative likelihood of the proposal
+	 */
+	private double evaluate() {
+		if (trainerOnTimeline &&
+				FULL_RETRAIN_INTERVAL > 0 &&
+				iterations % FULL_RETRAIN_INTERVAL != 0)
+		{
+			listChangedFrames();
+			if (trainer.update(changedFrames, newStates, changedCount)) {
+				trainerOnTimeline = false;
+				return trainer.getCumulativeLikelihood();
+			}
+		}
+
+		changedCount = -1;
+		trainerOnTimeline = false;
+		return train(trainer, timeline);
+	}
+
+
+	/**
+	 * Brings the trainer back to the current timeline after a proposal has
+	 * been rejected.
+	 */
+	private void revert() {
+		if (changedCount >= 0) {
+			boolean updated =
+					trainer.update(changedFrames, oldStates, changedCount);
+			assert updated;
+			trainerOnTimeline = true;
+		}
+		// Otherwise, the next proposal will be evaluated from scratch
+	}
+
+
+	/**
+	 * Lists the frames whose state differs between the timeline as it was
+	 * before the current proposal and the proposal, using the timeline's undo
+	 * log. Frames are listed in ascending order.
+	 */
+	private void listChangedFrames() {
+		// Original frame of each moved transition (first logged move)
+		int nMoved = 0;
+		for (int e = 0; e < timeline.getEditCount(); e++) {
+			int t = timeline.getEditedTransition(e);
+			int i = Arrays.binarySearch(movedTransitions, 0, nMoved, t);
+			if (i >= 0) {
+				continue;
+			}
+
+			i = -i - 1;
+			if (nMoved == movedTransitions.length) {
+				movedTransitions = Arrays.copyOf(movedTransitions, 2 * nMoved);
+				movedFrom = Arrays.copyOf(movedFrom, 2 * nMoved);
+			}
+			System.arraycopy(movedTransitions, i, movedTransitions, i+1, nMoved-i);
+			System.arraycopy(movedFrom, i, movedFrom, i+1, nMoved-i);
+			movedTransitions[i] = t;
+			movedFrom[i] = timeline.getEditedBoundary(e);
+			nMoved++;
+		}
+
+		// A frame changes state iff it moves to another segment. Transitions
+		// keep their order, so only frames between the old and new position
+		// of a moved transition may change segment. Group overlapping ranges
+		// into clusters.
+		int n = 0;
+		Alignment.Cursor cursor = timeline.cursor();
+
+		for (int c = 0; c < nMoved; ) {
+			int lo = Math.min(movedFrom[c], timeline.getBoundary(movedTransitions[c]));
+			int hi = Math.max(movedFrom[c], timeline.getBoundary(movedTransitions[c]));
+			int cEnd = c + 1;
+			while (cEnd < nMoved) {
+				int from = movedFrom[cEnd];
+				int to = timeline.getBoundary(movedTransitions[cEnd]);
+				if (Math.min(from, to) > hi) {
+					break;
+				}
+				hi = Math.max(hi, Math.max(from, to));
+				cEnd++;
+			}
+
+			for (int f = lo; f < hi; f++) {
+				int newSeg = cursor.getSegmentIndexAtFrame(f);
+
+				// Transitions outside the cluster are on the same side of f
+				// before and after the proposal
+				int oldSeg = newSeg;
+				for (int k = c; k < cEnd; k++) {
+					if (movedFrom[k] <= f) {
+						oldSeg++;
+					}
+					if (timeline.getBoundary(movedTransitions[k]) <= f) {
+						oldSeg--;
+					}
+				}
+
+				if (oldSeg != newSeg) {
+					n = addChangedFrame(n, f,
+							timeline.getState(oldSeg),
+							timeline.getState(newSeg));
+				}
+			}
+
+			c = cEnd;
+		}
+
+		changedCount = n;
+	}
+
+
+	private int addChangedFrame(int n, int f, HMMState from, HMMState to) {
+		if (n == changedFrames.length) {
+			changedFrames = Arrays.copyOf(changedFrames, 2 * n);
+			newStates = Arrays.copyOf(newStates, 2 * n);
+			oldStates = Arrays.copyOf(oldStates, 2 * n);
+		}
+
+		changedFrames[n] = f;
+		oldStates[n] = from;
+		newStates[n] = to;
+		return n + 1;
+	}
+
+
 	/**
 	 * Refines an HMM state timeline with the Metropolis-Hastings algorithm.
 	 */
 	public Alignment step() throws IOException {
-		iterations++;
-
 		if (plot == null) {
 			final String plotName = JTrans.logID + "_likelihood.txt";
 			plot = new PrintWriter(new BufferedWriter(new FileWriter(plotName)));
 			System.err.println("Plot: " + plotName);
 		}
 
+		iterate();
+
+		plot.println(cLhd);
+
+		if (hasPlateaued() || iterations % 100 == 0) {
+			plot.flush();
+			printStatus();
+		}
+
+		return timeline;
+	}
+
+
+	/**
+	 * Makes and evaluates a single proposal, without any logging.
+	 */
+	void iterate() {
+		iterations++;
+
 		Accept status = metropolisHastings();
 
 		if (status == Accept.REJECTED) {
@@ -113,22 +316,65 @@ public class Metropolis {
 			}
 			rejectionStreak = 0;
 		}
+	}
 
 
-		plot.println(cLhd);
+	void printStatus() {
+		System.err.println(String.format(
+				"Rejections: %d, Acceptances: %d (of which %d lucky) (%f%%)",
+				rejections, acceptances, luckyAcceptances,
+				100f * acceptances / (rejections+acceptances)));
+	}
 
-		if (hasPlateaued() || iterations % 100 == 0) {
-			plot.flush();
-			System.err.println(String.format(
-					"Rejections: %d, Acceptances: %d (of which %d lucky) (%f%%)",
-					rejections, acceptances, luckyAcceptances,
-					100f * acceptances / (rejections+acceptances)));
-		}
 
+	/** Current alignment of this chain */
+	public Alignment getAlignment() {
 		return timeline;
 	}
 
 
+	/** Cumulative likelihood of the current alignment */
+	public double getLikelihood() {
+		return cLhd;
+	}
+
+
+	public double getTemperature() {
+		return temperature;
+	}
+
+
+	/**
+	 * Retrains the trainer from scratch on the current alignment. Must be
+	 * called whenever the words' segments have changed (e.g. after
+	 * {@link Alignment#commitToTokens}), since incremental updates assume
+	 * that they are still those the trainer has learned.
+	 */
+	void tokensChanged() {
+		cLhd = train(trainer, timeline);
+		trainerOnTimeline = true;
+	}
+
+
+	/**
+	 * Swaps current alignments with another chain (replica exchange).
+	 * Acceptance statistics stay with their chains.
+	 */
+	void exchange(Metropolis other) {
+		Alignment tmpTimeline = timeline;
+		timeline = other.timeline;
+		other.timeline = tmpTimeline;
+
+		double tmpLhd = cLhd;
+		cLhd = other.cLhd;
+		other.cLhd = tmpLhd;
+
+		// The trainers stay with their chains
+		trainerOnTimeline = false;
+		other.trainerOnTimeline = false;
+	}
+
+
 	public boolean hasPlateaued() {
 		//return rejectionStreak >= METROPOLIS_REJECTION_STREAK_CAP;
 		return false;
@@ -139,20 +385,21 @@ public class Metropolis {
 	 * Refines a random transition in the timeline.
 	 */
 	private Accept metropolisHastings() {
-		Alignment proposal = new Alignment(timeline);
+		timeline.beginEdits();
 
 		for (int i = 0; i < 100; i++) {
-			proposal.wiggle(random, 1);
+			timeline.wiggle(random, 1);
 		}
 
-		double newCLhd = train(proposal);
+		double newCLhd = evaluate();
 		boolean accept = newCLhd > cLhd;
 		final Accept status;
 
 		if (accept) {
 			status = Accept.MERIT;
 		} else {
-			double ratio = log.logToLinear((float) (newCLhd - cLhd));
+			double ratio = log.logToLinear(
+					(float) ((newCLhd - cLhd) / temperature));
 			assert ratio >= 0 && ratio <= 1;
 			double dice = random.nextDouble();
 			accept = dice <= ratio;
@@ -165,7 +412,11 @@ public class Metropolis {
 
 		if (accept) {
 			cLhd = newCLhd;
-			timeline = proposal;
+			timeline.commitEdits();
+			trainerOnTimeline = true;
+		} else {
+			timeline.rollbackEdits();
+			revert();
 		}
 
 		System.out.println("Acceptance status: " + status);
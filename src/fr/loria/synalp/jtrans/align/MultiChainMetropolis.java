@@ -0,0 +1,341 @@
+package fr.loria.synalp.jtrans.align;
+
+import edu.cmu.sphinx.util.LogMath;
+import fr.loria.synalp.jtrans.JTrans;
+import fr.loria.synalp.jtrans.speechreco.s4.HMMModels;
+import fr.loria.synalp.jtrans.train.SpeakerDepModelTrainer;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Runs several Metropolis-Hastings chains in parallel and keeps the best
+ * alignment found by any of them.
+ * <p/>
+ * Each chain has its own trainer, since retraining the speaker models is what
+ * makes a proposal expensive. At each step, every chain evaluates one
+ * proposal on a thread pool.
+ * <p/>
+ * Chains may be tempered (parallel tempering): chain k runs at temperature
+ * {@code TEMPERATURE_RATIO^k}, so that hotter chains explore more freely.
+ * After each step, two neighboring chains are picked at random and exchange
+ * their alignments with the usual replica exchange probability. With a ratio
+ * of 1, the chains are independent.
+ * <p/>
+ * With a single chain, this behaves exactly like {@link Metropolis}.
+ */
+public class MultiChainMetropolis {
+
+	/** Number of chains */
+	public static int CHAINS = 1;
+
+	/**
+	 * Ratio between the temperatures of two consecutive chains.
+	 * 1 means independent chains (no tempering, no exchanges).
+	 */
+	public static double TEMPERATURE_RATIO = 1;
+
+
+	final Metropolis[] chains;
+	private final ExecutorService executor;
+	private final Random random;
+	private final LogMath log = HMMModels.getLogMath();
+
+	private Alignment best;
+	private double bestLhd;
+
+	/** Trainer of the first chain */
+	private final SpeakerDepModelTrainer trainer;
+
+	/** Evaluates the best alignment when the tokens change */
+	private SpeakerDepModelTrainer bestTrainer;
+
+	private int iterations;
+	private int exchangeAttempts;
+	int exchanges;
+	private PrintWriter plot;
+
+
+	public MultiChainMetropolis(
+			Alignment baseline,
+			SpeakerDepModelTrainer trainer)
+			throws InterruptedException
+	{
+		this(baseline, trainer, CHAINS, TEMPERATURE_RATIO);
+	}
+
+
+	/**
+	 * @param baseline Baseline alignment (as found e.g. with viterbi()).
+	 * @param trainer Trainer used by the first chain. The other chains use
+	 *                new trainers for the same speakers and data.
+	 * @param nChains number of chains (at least 1)
+	 * @param temperatureRatio ratio between the temperatures of two
+	 *                         consecutive chains (at least 1)
+	 */
+	public MultiChainMetropolis(
+			Alignment baseline,
+			SpeakerDepModelTrainer trainer,
+			int nChains,
+			double temperatureRatio)
+			throws InterruptedException
+	{
+		this(baseline, trainer, nChains, temperatureRatio, new Random());
+	}
+
+
+	/**
+	 * @param random seeds the chains' own generators and picks the chains
+	 *               that attempt exchanges
+	 */
+	MultiChainMetropolis(
+			final Alignment baseline,
+			SpeakerDepModelTrainer trainer,
+			int nChains,
+			double temperatureRatio,
+			Random random)
+			throws InterruptedException
+	{
+		if (nChains < 1 || temperatureRatio < 1) {
+			throw new IllegalArgumentException("need at least 1 chain and " +
+					"a temperature ratio of at least 1");
+		}
+
+		this.trainer = trainer;
+		this.random = random;
+		chains = new Metropolis[nChains];
+
+		if (nChains == 1) {
+			chains[0] = new Metropolis(baseline, trainer,
+					new Random(random.nextLong()), 1);
+			executor = null;
+		} else {
+			executor = Executors.newFixedThreadPool(
+					Math.min(nChains, Runtime.getRuntime().availableProcessors()),
+					new ThreadFactory() {
+						int count = 0;
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "Metropolis chain " + count++);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+
+			// Initial training is as expensive as a proposal
+			List<Callable<Metropolis>> inits = new ArrayList<>(nChains);
+			for (int k = 0; k < nChains; k++) {
+				final SpeakerDepModelTrainer chainTrainer = k == 0?
+						trainer: new SpeakerDepModelTrainer(trainer);
+				final Random chainRandom = new Random(random.nextLong());
+				final double temperature = Math.pow(temperatureRatio, k);
+
+				inits.add(new Callable<Metropolis>() {
+					@Override
+					public Metropolis call() {
+						return new Metropolis(baseline, chainTrainer,
+								chainRandom, temperature);
+					}
+				});
+			}
+
+			List<Metropolis> initialized = runAll(inits);
+			for (int k = 0; k < nChains; k++) {
+				chains[k] = initialized.get(k);
+			}
+		}
+
+		best = new Alignment(chains[0].getAlignment());
+		bestLhd = chains[0].getLikelihood();
+	}
+
+
+	/**
+	 * Runs tasks on the thread pool and waits for all of them to complete.
+	 */
+	private <T> List<T> runAll(List<Callable<T>> tasks)
+			throws InterruptedException
+	{
+		List<T> results = new ArrayList<>(tasks.size());
+
+		try {
+			for (Future<T> future: executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException ex) {
+			executor.shutdownNow();
+			throw ex;
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new Error(cause);
+		}
+
+		return results;
+	}
+
+
+	/**
+	 * Lets every chain evaluate one proposal, then attempts an exchange
+	 * between two neighboring chains.
+	 * @return best alignment found so far by any chain
+	 */
+	public Alignment step() throws IOException, InterruptedException {
+		if (chains.length == 1) {
+			best = chains[0].step();
+			bestLhd = chains[0].getLikelihood();
+			return best;
+		}
+
+		iterations++;
+
+		if (plot == null) {
+			final String plotName = JTrans.logID + "_likelihood.txt";
+			plot = new PrintWriter(new BufferedWriter(new FileWriter(plotName)));
+			System.err.println("Plot: " + plotName);
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<>(chains.length);
+		for (final Metropolis chain: chains) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					chain.iterate();
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+
+		for (Metropolis chain: chains) {
+			if (chain.getLikelihood() > bestLhd) {
+				bestLhd = chain.getLikelihood();
+				// The chain keeps editing its alignment in place
+				best = new Alignment(chain.getAlignment());
+			}
+		}
+
+		attemptExchange();
+
+		plot.println(bestLhd);
+
+		if (iterations % 100 == 0) {
+			plot.flush();
+			for (int k = 0; k < chains.length; k++) {
+				System.err.print(String.format("Chain %d (T=%.2f): ",
+						k, chains[k].getTemperature()));
+				chains[k].printStatus();
+			}
+			System.err.println(String.format(
+					"Exchanges: %d/%d, best likelihood: %f",
+					exchanges, exchangeAttempts, bestLhd));
+		}
+
+		return best;
+	}
+
+
+	/**
+	 * Replica exchange between two random neighboring chains.
+	 */
+	private void attemptExchange() {
+		int k = random.nextInt(chains.length - 1);
+		Metropolis a = chains[k];
+		Metropolis b = chains[k + 1];
+
+		if (a.getTemperature() == b.getTemperature()) {
+			// Independent chains
+			return;
+		}
+
+		exchangeAttempts++;
+
+		double logRatio = (1/a.getTemperature() - 1/b.getTemperature())
+				* (b.getLikelihood() - a.getLikelihood());
+
+		if (logRatio >= 0 ||
+				random.nextDouble() <= log.logToLinear((float)logRatio))
+		{
+			a.exchange(b);
+			exchanges++;
+		}
+	}
+
+
+	/**
+	 * Retrains every chain and reevaluates the best alignment. Must be called
+	 * whenever the words' segments have changed.
+	 * @see Metropolis#tokensChanged()
+	 */
+	void tokensChanged() throws InterruptedException {
+		if (chains.length == 1) {
+			chains[0].tokensChanged();
+			bestLhd = chains[0].getLikelihood();
+			return;
+		}
+
+		if (bestTrainer == null) {
+			bestTrainer = new SpeakerDepModelTrainer(trainer);
+		}
+
+		List<Callable<Double>> tasks = new ArrayList<>(chains.length + 1);
+		for (final Metropolis chain: chains) {
+			tasks.add(new Callable<Double>() {
+				@Override
+				public Double call() {
+					chain.tokensChanged();
+					return chain.getLikelihood();
+				}
+			});
+		}
+		tasks.add(new Callable<Double>() {
+			@Override
+			public Double call() {
+				return Metropolis.train(bestTrainer, best);
+			}
+		});
+
+		bestLhd = runAll(tasks).get(chains.length);
+	}
+
+
+	public boolean hasPlateaued() {
+		for (Metropolis chain: chains) {
+			if (!chain.hasPlateaued()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Likelihood of the best alignment found so far.
+	 */
+	public double getBestLikelihood() {
+		return bestLhd;
+	}
+
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		if (plot != null) {
+			plot.close();
+		}
+	}
+
+}
@@ -3,10 +3,15 @@ package fr.loria.synalp.jtrans.align;
 import fr.loria.synalp.jtrans.utils.Cache;
 import fr.loria.synalp.jtrans.utils.ProgressDisplay;
 import fr.loria.synalp.jtrans.graph.StateGraph;
+import fr.loria.synalp.jtrans.graph.TokenBacktracker;
+import fr.loria.synalp.jtrans.graph.PackedBackpointers;
+import fr.loria.synalp.jtrans.graph.TimelineCodec;
 import fr.loria.synalp.jtrans.graph.swap.SwapDeflater;
 import fr.loria.synalp.jtrans.graph.swap.SwapInflater;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 
 /**
@@ -19,7 +24,8 @@ public class ViterbiAligner extends Aligner {
 
 	/**
 	 * Maximum number of bytes for a Viterbi backtrack stack to reside in
-	 * memory. Above this threshold, the stack will be swapped to disk.
+	 * memory (bit-packed, see {@link PackedBackpointers}). Above this
+	 * threshold, the stack will be swapped to disk.
 	 * Only applies to FULL_BACKTRACK_VITERBI.
 	 */
 	public static final int SWAP_THRESHOLD_BYTES = 1024*1024*16;
@@ -31,17 +37,76 @@ public class ViterbiAligner extends Aligner {
 	public static boolean DELETE_BACKTRACK_SWAP_FILES = true;
 
 
-	private final SwapDeflater swapWriter;
-	private final SwapInflater swapReader;
+	/**
+	 * Default log-likelihood beam width for new aligners.
+	 * @see StateGraph#setBeam
+	 */
+	public static float BEAM = StateGraph.NO_BEAM;
+
+
+	/**
+	 * Default maximum number of active nodes per frame for new aligners.
+	 * @see StateGraph#setBeam
+	 */
+	public static int MAX_ACTIVE_NODES = StateGraph.NO_ACTIVE_NODE_CAP;
+
+
+	/**
+	 * Default backtracking engine for new aligners. If true, backtrack with
+	 * tokens held in memory (see {@link TokenBacktracker}) instead of a
+	 * backpointer table that may be swapped to disk.
+	 */
+	public static boolean TOKEN_BACKTRACK = false;
+
+
+	/**
+	 * Swap streams are stateful; each thread aligning concurrently with this
+	 * aligner gets its own pair.
+	 */
+	private final ThreadLocal<SwapDeflater> swapWriter =
+			new ThreadLocal<SwapDeflater>() {
+				@Override
+				protected SwapDeflater initialValue() {
+					return SwapDeflater.getSensibleSwapDeflater(true);
+				}
+			};
+
+	private final ThreadLocal<SwapInflater> swapReader =
+			new ThreadLocal<SwapInflater>() {
+				@Override
+				protected SwapInflater initialValue() {
+					return new SwapInflater();
+				}
+			};
+
+	private float beam = BEAM;
+	private int maxActiveNodes = MAX_ACTIVE_NODES;
+	private boolean tokenBacktrack = TOKEN_BACKTRACK;
 
 
 	public ViterbiAligner(File audio, ProgressDisplay progress)
 		throws IOException
 	{
 		super(audio, progress);
+	}
 
-		swapWriter = SwapDeflater.getSensibleSwapDeflater(true);
-		swapReader = new SwapInflater();
+
+	/**
+	 * Enables beam pruning in the forward pass of Viterbi.
+	 * @see StateGraph#setBeam
+	 */
+	public void setBeam(float beam, int maxActiveNodes) {
+		this.beam = beam;
+		this.maxActiveNodes = maxActiveNodes;
+	}
+
+
+	/**
+	 * Selects the backtracking engine.
+	 * @see #TOKEN_BACKTRACK
+	 */
+	public void setTokenBacktrack(boolean tokenBacktrack) {
+		this.tokenBacktrack = tokenBacktrack;
 	}
 
 
@@ -53,22 +118,84 @@ public class ViterbiAligner extends Aligner {
 			final int endFrame)
 			throws InterruptedException
 	{
-		Cache.ObjectFactory factory = new Cache.ObjectFactory() {
-			public int[] make() throws InterruptedException {
-				try {
-					return getRawTimeline(graph, text, startFrame, endFrame);
-				} catch (IOException ex) {
-					ex.printStackTrace();
-					return null;
+		File cacheFile = Cache.getCacheFile(
+				"viterbi",
+				"tl",
+				audio, text, graph.getNodeCount(), startFrame, endFrame,
+				beam, maxActiveNodes);
+
+		Cache.pin(cacheFile);
+		try {
+			return getAlignment(graph, text, startFrame, endFrame, cacheFile);
+		} finally {
+			Cache.unpin(cacheFile);
+		}
+	}
+
+
+	private Alignment getAlignment(
+			StateGraph graph,
+			String text,
+			int startFrame,
+			int endFrame,
+			File cacheFile)
+			throws InterruptedException
+	{
+		// Try to read timeline from cache
+		if (Cache.lookup(cacheFile)) {
+			try (InputStream in = new BufferedInputStream(
+					new FileInputStream(cacheFile)))
+			{
+				Cache.readKey(in, cacheFile);
+				TimelineCodec.Reader reader = new TimelineCodec.Reader(in);
+				int length = boundCheckLength(startFrame, endFrame);
+				if (reader.getFrameCount() != length) {
+					throw new IOException("cached timeline has "
+							+ reader.getFrameCount() + " frames instead of "
+							+ length);
 				}
+				return graph.alignmentFromNodeTimeline(reader, startFrame);
+			} catch (IOException ex) {
+				System.err.println("WARNING: invalid cached timeline, " +
+						"aligning again. " + ex);
+				Cache.invalidate(cacheFile);
 			}
-		};
+		}
 
-		int[] tl = (int[])Cache.cachedObject(
-				"viterbi",
-				"timeline",
-				factory,
-				audio, text, graph.getNodeCount(), startFrame, endFrame);
+		int[] tl;
+		try {
+			tl = getRawTimeline(graph, text, startFrame, endFrame);
+		} catch (IOException ex) {
+			throw new Error(ex);
+		}
+
+		// Dump timeline to cache. Write it to a temporary file in the same
+		// directory first, so that readers never see a partial timeline.
+		File partFile = null;
+		try {
+			partFile = File.createTempFile(
+					cacheFile.getName(), ".part", cacheFile.getParentFile());
+
+			try (OutputStream out = new BufferedOutputStream(
+					new FileOutputStream(partFile)))
+			{
+				Cache.writeKey(out, cacheFile);
+				TimelineCodec.write(tl, out);
+			}
+
+			Files.move(partFile.toPath(), cacheFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			System.err.println("Couldn't dump timeline to cache!");
+			ex.printStackTrace();
+			return graph.alignmentFromNodeTimeline(tl, startFrame);
+		} finally {
+			if (null != partFile) {
+				partFile.delete();
+			}
+		}
+		Cache.written(cacheFile);
 
 		return graph.alignmentFromNodeTimeline(tl, startFrame);
 	}
@@ -80,60 +207,140 @@ public class ViterbiAligner extends Aligner {
 			int startFrame,
 			int endFrame)
 			throws IOException, InterruptedException
+	{
+		return getRawTimeline(graph, text, startFrame, endFrame,
+				beam, maxActiveNodes);
+	}
+
+
+	private int[] getRawTimeline(
+			StateGraph graph,
+			String text,
+			int startFrame,
+			int endFrame,
+			float beam,
+			int maxActiveNodes)
+			throws IOException, InterruptedException
 	{
 		int length = boundCheckLength(startFrame, endFrame);
 
-		final OutputStream out;
-		final SwapInflater.InputStreamFactory inFactory;
+		if (tokenBacktrack) {
+			graph.setBeam(beam, maxActiveNodes);
+			TokenBacktracker tracker = new TokenBacktracker(graph);
+			float likelihood = graph.viterbi(data, tracker, startFrame, endFrame);
+
+			if (!checkPruning(graph, likelihood, length)) {
+				return getRawTimeline(graph, text, startFrame, endFrame,
+						StateGraph.NO_BEAM, StateGraph.NO_ACTIVE_NODE_CAP);
+			}
+
+			int[] timeline = tracker.getTimeline();
+			assert timeline.length == length;
+			return timeline;
+		}
+
+		// Get a ballpark measurement of the final size of the backpointer
+		// table to determine if we're going to swap to disk or keep it all
+		// in RAM
 
-		// Get a ballpark measurement of the final size of the uncompressed
-		// backpointer table to determine if we're going to swap to disk or
-		// keep it all in RAM
+		long packedSize = PackedBackpointers.bytesNeeded(graph, length);
+		assert packedSize >= 0: "integer overflow";
+
+		if (packedSize <= SWAP_THRESHOLD_BYTES) {
+			graph.setBeam(beam, maxActiveNodes);
+			PackedBackpointers table = new PackedBackpointers(graph, length);
+			float likelihood = graph.viterbi(data, table, startFrame, endFrame);
+
+			if (!checkPruning(graph, likelihood, length)) {
+				return getRawTimeline(graph, text, startFrame, endFrame,
+						StateGraph.NO_BEAM, StateGraph.NO_ACTIVE_NODE_CAP);
+			}
+
+			return graph.backtrack(table);
+		}
 
 		long projectedSize = (long)length * graph.getNodeCount();
-		assert projectedSize >= 0: "integer overflow";
 
-		if (projectedSize <= SWAP_THRESHOLD_BYTES) {
-			out = new ByteArrayOutputStream();
-			inFactory = new SwapInflater.InputStreamFactory() {
-				@Override
-				public InputStream make() throws IOException {
-					return new ByteArrayInputStream(
-							((ByteArrayOutputStream)out).toByteArray());
-				}
-			};
-		} else {
-			final File swapFile = Cache.getCacheFile("backtrack", "swp",
-					audio, text, startFrame, endFrame);
+		final File swapFile = Cache.getCacheFile("backtrack", "swp",
+				audio, text, startFrame, endFrame);
+
+		if (DELETE_BACKTRACK_SWAP_FILES) {
+			swapFile.deleteOnExit();
+		}
+
+		System.out.println("Swap file: " + swapFile);
+		System.out.println("Projected backpointer size (uncompressed): "
+				+ projectedSize/1024/1024 + " MB");
 
-			if (DELETE_BACKTRACK_SWAP_FILES) {
-				swapFile.deleteOnExit();
+		final SwapDeflater swapWriter = this.swapWriter.get();
+		final SwapInflater swapReader = this.swapReader.get();
+
+		// The swap file must survive other threads' cache evictions until
+		// we're done backtracking
+		Cache.pin(swapFile);
+		try {
+			final OutputStream out = new FileOutputStream(swapFile);
+
+			//------------------------------------------------------------------
+			// Run alignment
+
+			graph.setBeam(beam, maxActiveNodes);
+			swapWriter.init(graph.getNodeCount(), out, true);
+			float likelihood;
+			try {
+				likelihood = graph.viterbi(data, swapWriter, startFrame, endFrame);
+			} finally {
+				// Stops the workers if viterbi didn't close the swap, so that
+				// this thread's deflater can be reused
+				swapWriter.abort();
 			}
+			Cache.written(swapFile);
 
-			System.out.println("Swap file: " + swapFile);
-			System.out.println("Projected backpointer size (uncompressed): "
-					+ projectedSize/1024/1024 + " MB");
+			if (!checkPruning(graph, likelihood, length)) {
+				return getRawTimeline(graph, text, startFrame, endFrame,
+						StateGraph.NO_BEAM, StateGraph.NO_ACTIVE_NODE_CAP);
+			}
 
-			out = new FileOutputStream(swapFile);
-			inFactory = new SwapInflater.InputStreamFactory() {
-				@Override
-				public InputStream make() throws IOException {
-					return new FileInputStream(swapFile);
-				}
-			};
+			swapReader.init(swapWriter.getIndex(), swapFile);
+			int[] timeline = graph.backtrack(swapReader);
+			assert timeline.length == length;
+
+			return timeline;
+		} finally {
+			Cache.unpin(swapFile);
 		}
+	}
 
-		//----------------------------------------------------------------------
-		// Run alignment
 
-		swapWriter.init(graph.getNodeCount(), out);
-		graph.viterbi(data, swapWriter, startFrame, endFrame);
+	/**
+	 * Reports pruning statistics after a forward pass.
+	 * @return false if pruning cut off the final node, in which case the
+	 * forward pass must be run again without pruning
+	 */
+	private static boolean checkPruning(
+			StateGraph graph,
+			float likelihood,
+			int length)
+	{
+		if (!graph.isPruning()) {
+			return true;
+		}
+
+		long nodeFrames = (long)length * graph.getNodeCount();
 
-		swapReader.init(swapWriter.getIndex(), inFactory);
-		int[] timeline = graph.backtrack(swapReader);
-		assert timeline.length == length;
+		System.out.println(String.format(
+				"Viterbi beam: pruned %d of %d node-frames (%.1f%%)",
+				graph.getPrunedNodeFrames(),
+				nodeFrames,
+				100f * graph.getPrunedNodeFrames() / nodeFrames));
+
+		if (likelihood == Float.NEGATIVE_INFINITY) {
+			System.err.println("WARNING: beam too narrow, final node " +
+					"unreachable! Retrying without pruning.");
+			return false;
+		}
 
-		return timeline;
+		return true;
 	}
 
 }
@@ -0,0 +1,37 @@
+package fr.loria.synalp.jtrans.graph;
+
+import java.io.IOException;
+
+/**
+ * Receives the most likely inbound transition of every node, frame after
+ * frame, during the forward pass of Viterbi.
+ * @see StateGraph#viterbi(fr.loria.synalp.jtrans.speechreco.s4.FeatureSource, BackpointerRecorder, int, int)
+ */
+public interface BackpointerRecorder {
+
+	/**
+	 * Records the backpointers of the next frame.
+	 * @param bestInTrans ID of the best inbound transition of each node
+	 *                    (index into the node's inbound transitions). Reused
+	 *                    by the caller after this method returns.
+	 * @param lo first node evaluated in this frame
+	 * @param hi last node evaluated in this frame. Values outside [lo, hi]
+	 *           are stale: the nodes outside this range have been pruned.
+	 */
+	void record(byte[] bestInTrans, int lo, int hi)
+			throws IOException, InterruptedException;
+
+
+	/**
+	 * Called once after the last frame has been recorded.
+	 */
+	void finish() throws IOException, InterruptedException;
+
+
+	/**
+	 * Short human-readable description of the recorder's footprint, for
+	 * progress reports.
+	 */
+	String getStatus();
+
+}
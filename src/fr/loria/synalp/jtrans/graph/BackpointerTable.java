@@ -0,0 +1,21 @@
+package fr.loria.synalp.jtrans.graph;
+
+import java.io.IOException;
+
+/**
+ * Random access to the backpointers recorded during the forward pass of
+ * Viterbi.
+ * @see StateGraph#backtrack(BackpointerTable)
+ */
+public interface BackpointerTable {
+
+	int getFrameCount();
+
+
+	/**
+	 * @return ID of the best inbound transition of a node in a frame
+	 * (index into the node's inbound transitions)
+	 */
+	byte getIncomingTransition(int frame, int node) throws IOException;
+
+}
@@ -0,0 +1,167 @@
+package fr.loria.synalp.jtrans.graph;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the emission score of each unique state in a StatePool for a given
+ * frame.
+ * <p/>
+ * Many nodes in a StateGraph share the same HMM state, so scoring unique
+ * states (instead of nodes) ensures that each Gaussian mixture is evaluated
+ * exactly once per frame. The evaluations are spread across several cores
+ * with fork/join.
+ * <p/>
+ * Usage: mark the states that are needed for the current frame with
+ * {@link #require(int)} or {@link #requireAll()}, then call
+ * {@link #score(Data)}.
+ */
+public class EmissionScorer {
+
+	/**
+	 * Number of threads used to score states.
+	 * Set to 1 to score states on the calling thread only.
+	 * Must be set before the first EmissionScorer is used.
+	 */
+	public static int THREADS = Runtime.getRuntime().availableProcessors();
+
+	/** Minimum number of states per fork/join task. */
+	public static final int STATES_PER_TASK = 8;
+
+	/** Shared by all scorers (created lazily). */
+	private static ForkJoinPool forkJoinPool;
+
+
+	private final HMMState[] states;
+
+	/** Scores for the last frame, indexed by state ID. */
+	private final float[] scores;
+
+	/** Whether each state has been queued for the next frame. */
+	private final boolean[] required;
+
+	/** IDs of the states to score in the next frame. */
+	private final int[] queue;
+	private int queueLength;
+
+
+	public EmissionScorer(StatePool pool) {
+		this(toArray(pool));
+	}
+
+
+	/**
+	 * @param states unique states, indexed by state ID
+	 */
+	EmissionScorer(HMMState[] states) {
+		this.states = states;
+		scores = new float[states.length];
+		required = new boolean[states.length];
+		queue = new int[states.length];
+	}
+
+
+	private static HMMState[] toArray(StatePool pool) {
+		HMMState[] states = new HMMState[pool.size()];
+		for (int i = 0; i < states.length; i++) {
+			states[i] = pool.get(i);
+		}
+		return states;
+	}
+
+
+	private static synchronized ForkJoinPool getForkJoinPool() {
+		if (forkJoinPool == null) {
+			forkJoinPool = new ForkJoinPool(Math.max(1, THREADS));
+		}
+		return forkJoinPool;
+	}
+
+
+	public int getStateCount() {
+		return states.length;
+	}
+
+
+	/**
+	 * Queues a state for scoring in the next call to {@link #score(Data)}.
+	 */
+	public void require(int stateID) {
+		if (!required[stateID]) {
+			required[stateID] = true;
+			queue[queueLength++] = stateID;
+		}
+	}
+
+
+	/**
+	 * Queues all states for scoring in the next call to {@link #score(Data)}.
+	 */
+	public void requireAll() {
+		for (int i = 0; i < states.length; i++) {
+			required[i] = true;
+			queue[i] = i;
+		}
+		queueLength = states.length;
+	}
+
+
+	/**
+	 * Scores all queued states and empties the queue.
+	 * @return scores indexed by state ID. Only the queued states are
+	 * up to date. The returned array is reused by subsequent calls.
+	 */
+	public float[] score(Data frame) {
+		if (THREADS <= 1 || queueLength < 2 * STATES_PER_TASK) {
+			scoreRange(frame, 0, queueLength);
+		} else {
+			getForkJoinPool().invoke(new ScoreTask(frame, 0, queueLength));
+		}
+
+		for (int i = 0; i < queueLength; i++) {
+			required[queue[i]] = false;
+		}
+		queueLength = 0;
+
+		return scores;
+	}
+
+
+	private void scoreRange(Data frame, int from, int to) {
+		for (int i = from; i < to; i++) {
+			int id = queue[i];
+			scores[id] = states[id].getScore(frame);
+		}
+	}
+
+
+	private class ScoreTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Data frame;
+		private final int from;
+		private final int to;
+
+		private ScoreTask(Data frame, int from, int to) {
+			this.frame = frame;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= STATES_PER_TASK) {
+				scoreRange(frame, from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(
+						new ScoreTask(frame, from, mid),
+						new ScoreTask(frame, mid, to));
+			}
+		}
+	}
+
+}
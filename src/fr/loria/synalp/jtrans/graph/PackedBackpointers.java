@@ -0,0 +1,159 @@
+package fr.loria.synalp.jtrans.graph;
+
+/**
+ * In-memory backpointer table using as few bits as possible per node.
+ * <p/>
+ * A node with {@code k} inbound transitions only needs
+ * {@code ceil(log2(k))} bits to store its best inbound transition; nodes
+ * whose only inbound transition is their loop need none at all. Since most
+ * nodes have 2 or 3 inbound transitions, a frame typically takes 1 to 2 bits
+ * per node instead of a byte, without any compression or decompression.
+ * <p/>
+ * Each frame occupies a fixed number of 64-bit words in a flat array.
+ * Only the nodes evaluated in a frame (i.e. not pruned) are stored; the
+ * other nodes read as loops.
+ */
+public class PackedBackpointers
+		implements BackpointerRecorder, BackpointerTable
+{
+
+	/** Bit width of each node's backpointer */
+	private final byte[] bits;
+
+	/** Position of each node's backpointer within a frame (in bits) */
+	private final int[] bitOffset;
+
+	/** Number of 64-bit words per frame */
+	private final int wordsPerFrame;
+
+	private final int maxFrames;
+	private final long[] table;
+
+	/** Number of frames recorded so far */
+	private int frames;
+
+
+	/**
+	 * @param maxFrames number of frames that will be recorded
+	 * @throws IllegalArgumentException if the table would be too large for
+	 * a single array (see {@link #bytesNeeded})
+	 */
+	public PackedBackpointers(StateGraph graph, int maxFrames) {
+		final TransitionTable in = graph.in;
+		final int nNodes = graph.getNodeCount();
+
+		bits = new byte[nNodes];
+		bitOffset = new int[nNodes];
+
+		int frameBits = 0;
+		for (int n = 0; n < nNodes; n++) {
+			bits[n] = bitWidth(in.count(n));
+			bitOffset[n] = frameBits;
+			frameBits += bits[n];
+		}
+
+		wordsPerFrame = (frameBits + 63) / 64;
+
+		long words = (long)wordsPerFrame * maxFrames;
+		if (words > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("backpointer table too large");
+		}
+
+		this.maxFrames = maxFrames;
+		table = new long[(int)words];
+	}
+
+
+	/**
+	 * Number of bits needed to store values in {@code [0, count)}.
+	 */
+	static byte bitWidth(int count) {
+		return (byte)(32 - Integer.numberOfLeadingZeros(Math.max(0, count-1)));
+	}
+
+
+	/**
+	 * Returns the memory footprint of a packed table for the given graph
+	 * without allocating it.
+	 */
+	public static long bytesNeeded(StateGraph graph, int frames) {
+		long frameBits = 0;
+		for (int n = 0; n < graph.getNodeCount(); n++) {
+			frameBits += bitWidth(graph.in.count(n));
+		}
+		return (frameBits + 63) / 64 * 8 * frames;
+	}
+
+
+	@Override
+	public void record(byte[] bestInTrans, int lo, int hi) {
+		if (frames >= maxFrames) {
+			throw new IllegalStateException("too many frames");
+		}
+
+		final long base = (long)frames * wordsPerFrame * 64;
+
+		for (int n = lo; n <= hi; n++) {
+			final int b = bits[n];
+			if (b == 0) {
+				assert bestInTrans[n] == 0;
+				continue;
+			}
+
+			final long v = bestInTrans[n];
+			assert v >= 0 && v < 1 << b;
+
+			final long pos = base + bitOffset[n];
+			final int word = (int)(pos >>> 6);
+			final int shift = (int)(pos & 63);
+
+			table[word] |= v << shift;
+			if (shift + b > 64) {
+				table[word+1] |= v >>> (64 - shift);
+			}
+		}
+
+		frames++;
+	}
+
+
+	@Override
+	public void finish() {
+	}
+
+
+	@Override
+	public String getStatus() {
+		return "packed backpointers: "
+				+ (long)frames * wordsPerFrame * 8 / 1024 / 1024 + " MB";
+	}
+
+
+	@Override
+	public int getFrameCount() {
+		return frames;
+	}
+
+
+	@Override
+	public byte getIncomingTransition(int frame, int node) {
+		assert frame < frames;
+
+		final int b = bits[node];
+		if (b == 0) {
+			return 0;
+		}
+
+		final long pos = (long)frame * wordsPerFrame * 64 + bitOffset[node];
+		final int word = (int)(pos >>> 6);
+		final int shift = (int)(pos & 63);
+
+		long v = table[word] >>> shift;
+		if (shift + b > 64) {
+			v |= table[word+1] << (64 - shift);
+		}
+
+		return (byte)(v & ((1L << b) - 1));
+	}
+
+}
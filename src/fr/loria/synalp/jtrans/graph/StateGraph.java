@@ -9,7 +9,6 @@ import fr.loria.synalp.jtrans.speechreco.grammaire.Grammatiseur;
 import fr.loria.synalp.jtrans.speechreco.s4.*;
 import fr.loria.synalp.jtrans.utils.ProgressDisplay;
 import fr.loria.synalp.jtrans.graph.swap.SwapDeflater;
-import fr.loria.synalp.jtrans.graph.swap.SwapInflater;
 
 import java.io.*;
 import java.util.*;
@@ -27,7 +26,7 @@ public class StateGraph {
 	If this value ever has to exceed 127 (overkill), byte reads (for
 	transitions) will need to be peppered with "& 0xFF" (no unsigned bytes in
 	Java). If it ever has to exceed 255 (way overkill), be sure to change
-	the type of the inCount/outCount arrays.
+	the type of the transition counts in TransitionTable.Builder.
 	*/
 	public static final int MAX_TRANSITIONS = 64;
 
@@ -49,6 +48,12 @@ public class StateGraph {
 	/** Epsilon for comparison of linear probabilities */
 	public final static float LIN_PROB_CMP_EPSILON = .0001f;
 
+	/** Beam width that disables beam pruning in viterbi() */
+	public final static float NO_BEAM = Float.POSITIVE_INFINITY;
+
+	/** Active node cap that disables histogram pruning in viterbi() */
+	public final static int NO_ACTIVE_NODE_CAP = 0;
+
 	/** Pool of unique HMM states. */
 	protected StatePool pool;
 
@@ -61,23 +66,25 @@ public class StateGraph {
 	protected int[] nodeStates;
 
 	/**
-	 * Number of outbound transitions for each node.
-	 * Values in this array should not exceed MAX_TRANSITIONS, otherwise an
-	 * index out of bounds exception will eventually be thrown.
+	 * Outbound transitions of each node (arrival node IDs and log
+	 * probabilities). A node may not have more than MAX_TRANSITIONS
+	 * transitions.
+	 * The first transition of each node is *always* a loop on the same node.
 	 */
-	protected byte[] outCount;
+	protected TransitionTable out;
 
 	/**
-	 * Node IDs for each outbound transition.
-	 * The first entry is *always* the same node (loop).
+	 * Inbound transitions of each node (departure node IDs and log
+	 * probabilities), built once from {@link #out}. Mainly useful for Viterbi.
+	 * The first transition of each node is *always* a loop on the same node.
 	 */
-	protected int[][] outNode;
+	protected TransitionTable in;
 
 	/**
-	 * Probability of each outbound transition (in the log domain).
-	 * The first entry is *always* the probability of looping on the same node.
+	 * Collects outbound transitions while the graph is being built.
+	 * Null once the graph is complete.
 	 */
-	protected float[][] outProb;
+	private TransitionTable.Builder builder;
 
 	/** Total number of nodes in the grammar. */
 	protected int nNodes;
@@ -107,6 +114,22 @@ public class StateGraph {
 	/** Used to report progress in viterbi() and backtrack() (may be null) */
 	protected ProgressDisplay progress = null;
 
+	/**
+	 * Log-likelihood beam width for viterbi(). In each frame, nodes scoring
+	 * further than this below the best node are deactivated.
+	 * {@link #NO_BEAM} disables pruning.
+	 */
+	protected float beam = NO_BEAM;
+
+	/**
+	 * Maximum number of nodes that may remain active in each frame of
+	 * viterbi(). {@link #NO_ACTIVE_NODE_CAP} disables this limit.
+	 */
+	protected int maxActiveNodes = NO_ACTIVE_NODE_CAP;
+
+	/** Node-frames that the last call to viterbi() did not evaluate */
+	protected long prunedNodeFrames;
+
 
 	/**
 	 * Tests two linear probabilities for equality.
@@ -137,6 +160,40 @@ public class StateGraph {
 	}
 
 
+	/**
+	 * Sets beam search parameters for the forward pass of Viterbi.
+	 * <p/>
+	 * Since the graph only allows forward transitions, the active nodes form
+	 * a moving band; only the nodes reachable from the band of the previous
+	 * frame are evaluated. Pruning may cause the final node to become
+	 * unreachable, in which case viterbi() returns negative infinity.
+	 * @param beam log-likelihood beam width, or {@link #NO_BEAM}
+	 * @param maxActiveNodes maximum number of active nodes per frame, or
+	 *                       {@link #NO_ACTIVE_NODE_CAP}
+	 */
+	public void setBeam(float beam, int maxActiveNodes) {
+		if (beam <= 0) {
+			throw new IllegalArgumentException("beam must be positive");
+		}
+		this.beam = beam;
+		this.maxActiveNodes = Math.max(NO_ACTIVE_NODE_CAP, maxActiveNodes);
+	}
+
+
+	public boolean isPruning() {
+		return beam != NO_BEAM || maxActiveNodes != NO_ACTIVE_NODE_CAP;
+	}
+
+
+	/**
+	 * Returns the number of node-frames that the last call to viterbi()
+	 * skipped thanks to beam pruning.
+	 */
+	public long getPrunedNodeFrames() {
+		return prunedNodeFrames;
+	}
+
+
 	public List<Token> getWords() {
 		return words;
 	}
@@ -164,7 +221,10 @@ public class StateGraph {
 				continue;
 			}
 
-			String rule = gram.getGrammar(token.toString());
+			String rule;
+			synchronized (gram) { // graphs may be built concurrently
+				rule = gram.getGrammar(token.toString());
+			}
 
 			if (rule == null || rule.isEmpty()) {
 				assert null == rules[i];
@@ -365,9 +425,17 @@ public class StateGraph {
 	 * @param p log probability
 	 */
 	private void addOutboundTransition(int dest, int src, float p) {
-		outNode[src][outCount[src]] = dest;
-		outProb[src][outCount[src]] = p;
-		outCount[src]++;
+		builder.add(src, dest, p);
+	}
+
+
+	/**
+	 * Compacts the transitions collected during construction and derives the
+	 * inbound transitions from them.
+	 */
+	private void buildTransitions() {
+		out = builder.build();
+		builder = null;
 	}
 
 
@@ -435,13 +503,13 @@ public class StateGraph {
 	 * so that all outbound probabilities sum to one in the linear scale.
 	 * (Reminder: internally, we use log probabilities, not linear.)
 	 * <p/>
-	 * The requested node's transition count ({@code outCount[nodeIdx]}) and
-	 * the probability of looping ({@code outProb[nodeIdx][0]}) must be set
-	 * prior to calling this method!
+	 * The requested node's transitions and the probability of looping
+	 * ({@code out.logProb(nodeIdx, 0)}) must be set prior to calling this
+	 * method!
 	 */
 	protected void fillUniformNonLoopTransitionProbabilities(int nodeIdx) {
-		int count = outCount[nodeIdx];
-		float loopLogP = outProb[nodeIdx][0];
+		int count = out.count(nodeIdx);
+		float loopLogP = out.logProb(nodeIdx, 0);
 
 		assert count >= 2
 				: "not linked to the rest of the graph";
@@ -453,25 +521,26 @@ public class StateGraph {
 		float p = lm.linearToLog(
 				(1 - lm.logToLinear(loopLogP)) / (double) (count - 1));
 
-		for (int i = 1; i < outCount[nodeIdx]; i++) {
-			assert outProb[nodeIdx][i] == UNINITIALIZED_LOG_PROBABILITY
+		for (int i = 1; i < count; i++) {
+			assert out.logProb(nodeIdx, i) == UNINITIALIZED_LOG_PROBABILITY
 					: "non-loop probabilities must be uninitialized";
-			outProb[nodeIdx][i] = p;
+			out.setLogProb(nodeIdx, i, p);
 		}
 	}
 
 
+	/**
+	 * Drops all transitions of the last node except for its loop.
+	 * Must be called while the graph is still being built.
+	 */
 	protected void correctLastNodeTransitions() {
 		int last = nNodes - 1;
-		assert outNode[last][0] == last;
-		outCount[last] = 1;
-		Arrays.fill(outProb[last], 1, outProb[last].length,
-				UNINITIALIZED_LOG_PROBABILITY);
+		builder.truncate(last, 1);
 		/* DON'T set the loop probability of the last node to 1 (linear)!
 		Intuitively, it would make sense to do so, but Viterbi will make sure
-		not to go past the last node anyway. Leaving outProb as is for the last
-		node is required by StatePath's concatenation operator (to string
-		several paths together properly). */
+		not to go past the last node anyway. Leaving the loop probability as is
+		for the last node is required by StatePath's concatenation operator (to
+		string several paths together properly). */
 	}
 
 
@@ -483,27 +552,29 @@ public class StateGraph {
 		LogMath lm = HMMModels.getLogMath();
 
 		for (int n = 0; n < nNodes-1; n++) {
-			if (outCount[n] < 2) {
+			final int count = out.count(n);
+
+			if (count < 2) {
 				throw new IllegalStateException(
 						"node #" + n + " isolated from graph");
 			}
 
-			if (outNode[n][0] != n) {
+			if (out.target(n, 0) != n) {
 				throw new IllegalStateException(
 						"node #" + n + "'s first transition should be a loop");
 			}
 
 			// forbid backwards transitions
-			for (int t = 0; t < outCount[n]; t++) {
-				if (outNode[n][t] < n) {
+			for (int t = 0; t < count; t++) {
+				if (out.target(n, t) < n) {
 					throw new IllegalStateException("illegal backwards " +
-							"transition from node " + n + " to " + outNode[n][t]);
+							"transition from node " + n + " to " + out.target(n, t));
 				}
 			}
 
 			float sum = 0;
-			for (int t = 0; t < outCount[n]; t++) {
-				sum += lm.logToLinear(outProb[n][t]);
+			for (int t = 0; t < count; t++) {
+				sum += lm.logToLinear(out.logProb(n, t));
 			}
 
 			if (!linProbEq(1, sum)) {
@@ -516,7 +587,7 @@ public class StateGraph {
 		// Special case for the last node. Don't check the sum of its transition
 		// probabilities (see correctLastNodeTransitions() to learn why)
 		int last = nNodes - 1;
-		if (outCount[last] != 1 || outNode[last][0] != last) {
+		if (out.count(last) != 1 || out.target(last, 0) != last) {
 			throw new IllegalStateException("last node must have exactly " +
 					"1 transition, i.e. a loop on itself");
 		}
@@ -545,14 +616,10 @@ public class StateGraph {
 
 		wordBoundaries = new int[nWords];
 
-		nodeStates = new int  [nNodes];
-		outCount   = new byte [nNodes];
-		outNode    = new int  [nNodes][MAX_TRANSITIONS];
-		outProb    = new float[nNodes][MAX_TRANSITIONS];
-
-		for (int i = 0; i < nNodes; i++) {
-			Arrays.fill(outProb[i], UNINITIALIZED_LOG_PROBABILITY);
-		}
+		nodeStates = new int[nNodes];
+		// Each node has a loop and usually a single outbound transition;
+		// the builder grows as needed when a rule has alternatives
+		builder    = new TransitionTable.Builder(nNodes, 2 * nNodes);
 
 		//----------------------------------------------------------------------
 		// Build state graph
@@ -598,12 +665,15 @@ public class StateGraph {
 				+ "actual " + insertionPoint + ", expected " + nNodes;
 
 		correctLastNodeTransitions();
+		buildTransitions();
 
 		// correct inter-phone transition probabilities
 		for (int i = 2; i < nNodes-1; i += 3) {
 			fillUniformNonLoopTransitionProbabilities(i);
 		}
 
+		in = out.inbound();
+
 		checkTransitions();
 	}
 
@@ -628,15 +698,8 @@ public class StateGraph {
 		insertionPoint = graph.insertionPoint;
 
 		nodeStates = Arrays.copyOf(graph.nodeStates, nNodes);
-		outCount = Arrays.copyOf(graph.outCount, nNodes);
-
-		outNode = new int[nNodes][];
-		outProb = new float[nNodes][];
-
-		for (int i = 0; i < nNodes; i++) {
-			outNode[i] = Arrays.copyOf(graph.outNode[i], MAX_TRANSITIONS);
-			outProb[i] = Arrays.copyOf(graph.outProb[i], MAX_TRANSITIONS);
-		}
+		out = new TransitionTable(graph.out);
+		in = new TransitionTable(graph.in);
 
 		words = new ArrayList<>(graph.words);
 		wordBoundaries = Arrays.copyOf(graph.wordBoundaries, nWords);
@@ -662,16 +725,10 @@ public class StateGraph {
 		words = new ArrayList<>(nWords);
 		wordBoundaries = new int[nWords];
 
-		nodeStates = new int  [nNodes];
-		outCount   = new byte [nNodes];
+		nodeStates = new int[nNodes];
 		// Only 2 transitions will ever be possible for any given node
-		// in a path (except for the first node which only has itself)
-		outNode    = new int  [nNodes][2];
-		outProb    = new float[nNodes][2];
-
-		for (int i = 0; i < nNodes; i++) {
-			Arrays.fill(outProb[i], UNINITIALIZED_LOG_PROBABILITY);
-		}
+		// in a path (except for the last node which only has itself)
+		builder    = new TransitionTable.Builder(nNodes, 2 * nNodes);
 
 		pool = new StatePool();
 
@@ -689,12 +746,10 @@ public class StateGraph {
 
 			int stateIdx = pool.add(seg.state);
 			nodeStates[n] = stateIdx;
-			outCount[n] = 2;
-			outNode[n][0] = n;
-			outNode[n][1] = n+1;
 
-			outProb[n] = getSuccessorProbabilities(seg.state, lm);
-			assert 2 == outProb[n].length;
+			float[] p = getSuccessorProbabilities(seg.state, lm);
+			addOutboundTransition(n, n, p[0]);
+			addOutboundTransition(n+1, n, p[1]);
 
 			if (null != seg.word && pWord != seg.word) {
 				words.add(seg.word);
@@ -706,6 +761,8 @@ public class StateGraph {
 		}
 
 		correctLastNodeTransitions();
+		buildTransitions();
+		in = out.inbound();
 
 		//----------------------------------------------------------------------
 		// Check graph consistency
@@ -744,9 +801,9 @@ public class StateGraph {
 		for (int i = 0; i < nNodes; i++) {
 			w.write(String.format("\nnode%d [ label=\"%s %d\" ]", i,
 					getPhoneAt(i), getStateAt(i).getState()));
-			for (byte j = 0; j < outCount[i]; j++) {
+			for (int j = 0; j < out.count(i); j++) {
 				w.write(String.format("\nnode%d -> node%d [ label=%f ]",
-						i, outNode[i][j], lm.logToLinear(outProb[i][j])));
+						i, out.target(i, j), lm.logToLinear(out.logProb(i, j))));
 			}
 		}
 
@@ -755,40 +812,6 @@ public class StateGraph {
 	}
 
 
-	/**
-	 * Converts outbound transitions to inbound transitions.
-	 * Mainly useful for Viterbi.
-	 */
-	protected class InboundTransitionBridge {
-		final int[]     inCount = new int  [nNodes];
-		final int[][]   inNode  = new int  [nNodes][MAX_TRANSITIONS];
-		final float[][] inProb  = new float[nNodes][MAX_TRANSITIONS];
-
-		InboundTransitionBridge() {
-			// force loop as first transition
-			for (int n = 0; n < nNodes; n++) {
-				inCount[n] = 1;
-				inNode[n][0] = n;
-				inProb[n][0] = outProb[n][0];
-				Arrays.fill(inProb[n], 1, inProb[n].length,
-						UNINITIALIZED_LOG_PROBABILITY);
-			}
-
-			// fill non-loop transitions
-			for (int n = 0; n < nNodes; n++) {
-				assert outNode[n][0] == n;
-				for (int t = 1; t < outCount[n]; t++) {
-					int in = outNode[n][t];
-					int it = inCount[in];
-					inNode[in][it] = n;
-					inProb[in][it] = outProb[n][t];
-					inCount[in]++;
-				}
-			}
-		}
-	}
-
-
 	/**
 	 * Finds the most likely predecessor of each node for each audio frame
 	 * (using the Viterbi algorithm).
@@ -809,6 +832,10 @@ public class StateGraph {
 	 * and storing them in a swap file. The pathfinding process is completed by
 	 * backtrack().
 	 *
+	 * If beam pruning is enabled (see {@link #setBeam}), only the nodes that
+	 * are reachable from the nodes that survived the previous frame are
+	 * evaluated.
+	 *
 	 * @see StateGraph#backtrack second part of the pathfinding process
 	 * @see fr.loria.synalp.jtrans.graph.swap.SwapInflater
 	 * @param data all frames in the audio source
@@ -816,20 +843,64 @@ public class StateGraph {
 	 *                   or buffer
 	 * @param startFrame first frame to analyze
 	 * @param endFrame last frame to analyze
+	 * @return log likelihood of the best path ending in the final node in the
+	 * last frame. Negative infinity if pruning has cut off all such paths
+	 * (the backpointers are then unusable).
 	 *
 	 * @throws InterruptedException Checks the thread's interruption status at
 	 * each frame iteration.
 	 * @throws IOException If the swapper runs into any I/O problems.
 	 */
-	public void viterbi(
-			List<FloatData> data,
-			SwapDeflater swapWriter,
+	public float viterbi(
+			FeatureSource data,
+			final SwapDeflater swapWriter,
 			int startFrame,
 			int endFrame)
 			throws IOException, InterruptedException
 	{
-		if (endFrame >= data.size()) {
-			throw new IllegalArgumentException("endFrame >= data.size()");
+		return viterbi(data, new BackpointerRecorder() {
+			@Override
+			public void record(byte[] bestInTrans, int lo, int hi)
+					throws IOException, InterruptedException
+			{
+				// Nodes outside the window keep their previous backpointers,
+				// which conveniently compress to nothing in the swap filter
+				swapWriter.write(bestInTrans);
+			}
+
+			@Override
+			public void finish() throws IOException, InterruptedException {
+				swapWriter.close();
+			}
+
+			@Override
+			public String getStatus() {
+				return String.format(
+						"deflated swap: %d MB, queue: %d/%d, stalled: %d ms",
+						swapWriter.getIndex().getCompressedBytes() / 1024 / 1024,
+						swapWriter.getQueueDepth(),
+						swapWriter.getPipelinePages(),
+						swapWriter.getStallNanos() / 1000000);
+			}
+		}, startFrame, endFrame);
+	}
+
+
+	/**
+	 * Forward pass of Viterbi with an arbitrary backpointer recorder.
+	 * @param recorder receives the best inbound transitions of each frame,
+	 *                 e.g. {@link TokenBacktracker}
+	 * @see #viterbi(FeatureSource, SwapDeflater, int, int)
+	 */
+	public float viterbi(
+			FeatureSource data,
+			BackpointerRecorder recorder,
+			int startFrame,
+			int endFrame)
+			throws IOException, InterruptedException
+	{
+		if (endFrame >= data.getFrameCount()) {
+			throw new IllegalArgumentException("endFrame >= frame count");
 		}
 
 		assert startFrame <= endFrame;
@@ -838,7 +909,10 @@ public class StateGraph {
 
 		int frameCount = 1 + endFrame - startFrame;
 
-		InboundTransitionBridge in = new InboundTransitionBridge();
+		// Flat inbound transition arrays (see TransitionTable)
+		final int[]   inOffsets  = in.offsets;
+		final int[]   inNode     = in.targets;
+		final float[] inLogProbs = in.logProbs;
 
 		// Probability vectors
 		float[] vpf = new float[nNodes]; // vector for previous frame (read-only)
@@ -847,11 +921,32 @@ public class StateGraph {
 		// ID of the incoming transition that yielded bestReachProb for each state
 		byte[] bestInTrans = new byte[nNodes];
 
+		// Scores each unique state once per frame
+		final EmissionScorer scorer = new EmissionScorer(pool);
+
 		// Initialize probability vector
 		// We only have one initial node (node #0), probability 1
 		Arrays.fill(vpf, Float.NEGATIVE_INFINITY);
+		Arrays.fill(vcf, Float.NEGATIVE_INFINITY);
 		vpf[0] = 0; // Probabilities are in the log domain
 
+		final boolean pruning = isPruning();
+		final float[] capBuf = maxActiveNodes > 0? new float[nNodes]: null;
+
+		// Window of nodes to evaluate in the current frame
+		int wLo = 0;
+		int wHi = nNodes - 1;
+
+		// Window for the next frame (nodes reachable from surviving nodes)
+		int nextLo = 0;
+		int nextHi = farthestSuccessor(0);
+
+		// Nodes outside these ranges are guaranteed to be -inf in vpf/vcf
+		int prevLo = 0, prevHi = 0;
+		int staleLo = 0, staleHi = -1;
+
+		prunedNodeFrames = 0;
+
 		for (int f = startFrame; f <= endFrame; f++) {
 			// Allow cancellation
 			if (Thread.interrupted()) {
@@ -860,20 +955,47 @@ public class StateGraph {
 
 			if (progress != null) {
 				progress.setProgress(String.format(
-						"Viterbi forward pass: frame %d of %d (deflated swap: %d MB)",
+						"Viterbi forward pass: frame %d of %d (%s)",
 						f-startFrame,
 						frameCount,
-						swapWriter.getIndex().getCompressedBytes() / 1024 / 1024),
+						recorder.getStatus()),
 						(float) (f-startFrame) / (float) frameCount);
 			}
 
-			for (int i = 0; i < nNodes; i++) {
-				// Emission probability (frame score)
-				// We could cache this for unique states, but in practice
-				// ScoreCachingSenone already does it for us.
-				float emission = getStateAt(i).getScore(data.get(f));
+			if (pruning) {
+				wLo = nextLo;
+				wHi = nextHi;
+				prunedNodeFrames += nNodes - (wHi - wLo + 1);
+
+				// Clear values left over from frame f-2 outside the window
+				if (staleLo < wLo) {
+					Arrays.fill(vcf, staleLo, Math.min(staleHi+1, wLo),
+							Float.NEGATIVE_INFINITY);
+				}
+				if (staleHi > wHi) {
+					Arrays.fill(vcf, Math.max(staleLo, wHi+1), staleHi+1,
+							Float.NEGATIVE_INFINITY);
+				}
+			}
+
+			// Emission probabilities (frame scores) of the unique states
+			if (pruning) {
+				for (int i = wLo; i <= wHi; i++) {
+					scorer.require(nodeStates[i]);
+				}
+			} else {
+				scorer.requireAll();
+			}
+			final float[] emissions = scorer.score(data.getFrame(f));
+
+			float bestScore = Float.NEGATIVE_INFINITY;
 
-				assert in.inCount[i] >= 1;
+			for (int i = wLo; i <= wHi; i++) {
+				float emission = emissions[nodeStates[i]];
+
+				final int t0 = inOffsets[i];
+				final int tn = inOffsets[i+1];
+				assert tn - t0 >= 1;
 
 				// Probability to reach a node given the previous vector v
 				// i.e. max(P(k -> i) * v[k]) for each predecessor k of node #i
@@ -883,23 +1005,61 @@ public class StateGraph {
 				// If last node, loop forever (log prob 0).
 				// (Please see correctLastNodeTransitions() for an explanation
 				// of why the last node's log prob isn't just set to 0.)
-				bestReachProb = (i == nNodes-1? 0: in.inProb[i][0])
-						+ vpf[in.inNode[i][0]]; // log domain
+				bestReachProb = (i == nNodes-1? 0: inLogProbs[t0])
+						+ vpf[inNode[t0]]; // log domain
 				bestInTrans[i] = 0;
 
 				// Find best probability among all incoming transitions
-				for (byte j = 1; j < in.inCount[i]; j++) {
-					float p = in.inProb[i][j] + vpf[in.inNode[i][j]]; // log domain
+				for (int t = t0+1; t < tn; t++) {
+					float p = inLogProbs[t] + vpf[inNode[t]]; // log domain
 					if (p > bestReachProb) {
 						bestReachProb = p;
-						bestInTrans[i] = j;
+						bestInTrans[i] = (byte)(t - t0);
 					}
 				}
 
 				vcf[i] = emission + bestReachProb; // log domain
+
+				if (vcf[i] > bestScore) {
+					bestScore = vcf[i];
+				}
+			}
+
+			if (pruning) {
+				float threshold = bestScore - beam;
+
+				if (capBuf != null) {
+					threshold = capThreshold(
+							vcf, wLo, wHi, threshold, capBuf, maxActiveNodes);
+				}
+
+				nextLo = -1;
+				nextHi = -1;
+
+				for (int i = wLo; i <= wHi; i++) {
+					if (vcf[i] < threshold) {
+						vcf[i] = Float.NEGATIVE_INFINITY;
+					} else if (vcf[i] != Float.NEGATIVE_INFINITY) {
+						if (nextLo < 0) {
+							nextLo = i;
+						}
+						nextHi = Math.max(nextHi, farthestSuccessor(i));
+					}
+				}
+
+				if (nextLo < 0) {
+					// Nothing survived; fall back to the current window
+					nextLo = wLo;
+					nextHi = wHi;
+				}
+
+				staleLo = prevLo;
+				staleHi = prevHi;
+				prevLo = wLo;
+				prevHi = wHi;
 			}
 
-			swapWriter.write(bestInTrans);
+			recorder.record(bestInTrans, wLo, wHi);
 
 			// swap vectors
 			float[] temp = vcf;
@@ -907,7 +1067,51 @@ public class StateGraph {
 			vpf = temp;
 		}
 
-		swapWriter.close();
+		recorder.finish();
+
+		return vpf[nNodes-1];
+	}
+
+
+	/**
+	 * Returns the node with the highest ID that the given node may transition
+	 * to.
+	 */
+	private int farthestSuccessor(int node) {
+		int farthest = node;
+		for (int t = out.offsets[node]; t < out.offsets[node+1]; t++) {
+			farthest = Math.max(farthest, out.targets[t]);
+		}
+		return farthest;
+	}
+
+
+	/**
+	 * Raises a pruning threshold so that at most (roughly) {@code cap} nodes
+	 * in the window survive. Ties at the threshold are kept.
+	 * @param buf scratch buffer at least as long as the window
+	 */
+	private static float capThreshold(
+			float[] scores,
+			int lo,
+			int hi,
+			float threshold,
+			float[] buf,
+			int cap)
+	{
+		int n = 0;
+		for (int i = lo; i <= hi; i++) {
+			if (scores[i] >= threshold && scores[i] != Float.NEGATIVE_INFINITY) {
+				buf[n++] = scores[i];
+			}
+		}
+
+		if (n <= cap) {
+			return threshold;
+		}
+
+		Arrays.sort(buf, 0, n);
+		return Math.max(threshold, buf[n - cap]);
 	}
 
 
@@ -916,7 +1120,8 @@ public class StateGraph {
 	 * table of most likely predecessors found by viterbi().
 	 *
 	 * @see StateGraph#viterbi first part of the pathfinding process
-	 * @param swapReader reader for the swap file produced by viterbi()
+	 * @param backpointers backpointers recorded by viterbi(), e.g. a
+	 *                     swap reader or {@link PackedBackpointers}
 	 * @return A time line of the most likely node at each frame. Given as an
 	 * array of node IDs, with array indices being frame numbers relative to
 	 * the first frame given to StateGraph#viterbi.
@@ -925,21 +1130,19 @@ public class StateGraph {
 	 * each frame iteration.
 	 * @throws IOException If the swapper runs into any I/O problems.
 	 */
-	public int[] backtrack(SwapInflater swapReader)
+	public int[] backtrack(BackpointerTable backpointers)
 			throws IOException, InterruptedException
 	{
-		InboundTransitionBridge in = new InboundTransitionBridge();
-
 		int leadNode = nNodes - 1;
-		int[] timeline = new int[swapReader.getFrameCount()];
+		int[] timeline = new int[backpointers.getFrameCount()];
 		for (int f = timeline.length-1; f >= 0; f--) {
 			// Allow cancellation
 			if (Thread.interrupted()) {
 				throw new InterruptedException("backward Viterbi");
 			}
 
-			byte transID = swapReader.getIncomingTransition(f, leadNode);
-			leadNode = in.inNode[leadNode][transID];
+			byte transID = backpointers.getIncomingTransition(f, leadNode);
+			leadNode = in.target(leadNode, transID);
 			timeline[f] = leadNode;
 			assert leadNode >= 0;
 
@@ -955,7 +1158,7 @@ public class StateGraph {
 
 	/**
 	 * Creates an Alignment object from a raw node timeline obtained with
-	 * {@link #backtrack(SwapInflater)}.
+	 * {@link #backtrack(BackpointerTable)}.
 	 */
 	public Alignment alignmentFromNodeTimeline(int[] timeline, int frameOffset) {
 		Alignment al = new Alignment(frameOffset);
@@ -972,6 +1175,39 @@ public class StateGraph {
 	}
 
 
+	/**
+	 * Creates an Alignment object from a node timeline read run by run
+	 * (see {@link TimelineCodec}), without materializing the whole timeline.
+	 * @throws IOException if the timeline is corrupt, or if it refers to
+	 * nodes that aren't in this graph (e.g. a stale cache file)
+	 */
+	public Alignment alignmentFromNodeTimeline(
+			TimelineCodec.Reader reader,
+			int frameOffset)
+			throws IOException
+	{
+		Alignment al = new Alignment(frameOffset);
+		int wordIdx = -1;
+
+		while (reader.nextRun()) {
+			int nodeIdx = reader.getNode();
+			if (nodeIdx >= nNodes) {
+				throw new IOException("timeline refers to node " + nodeIdx
+						+ ", but the graph only has " + nNodes + " nodes");
+			}
+			wordIdx = getWordIdxAt(nodeIdx, wordIdx);
+			HMMState state = getStateAt(nodeIdx);
+			Token word = wordIdx >= 0 ? words.get(wordIdx) : null;
+
+			for (int i = 0; i < reader.getRunLength(); i++) {
+				al.newFrame(state, word);
+			}
+		}
+
+		return al;
+	}
+
+
 	/**
 	 * Returns true if there is only one possible sequence of nodes (path).
 	 * In other words, a graph is linear if all nodes transition to no more than
@@ -981,10 +1217,10 @@ public class StateGraph {
 	 */
 	public boolean isLinear() {
 		for (int i = 0; i < nNodes; i++) {
-			assert outCount[i] > 0: "must have at least one transition (loop)";
-			assert outNode[i][0] == i: "first transition must be a loop";
+			assert out.count(i) > 0: "must have at least one transition (loop)";
+			assert out.target(i, 0) == i: "first transition must be a loop";
 
-			if (outCount[i] > 2) {
+			if (out.count(i) > 2) {
 				return false;
 			}
 		}
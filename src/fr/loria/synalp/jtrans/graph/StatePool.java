@@ -70,9 +70,12 @@ public class StatePool {
 	private void addPhone(String phone) {
 		assert !phoneUStates.containsKey(phone);
 
-		// find HMM for this phone
-		HMM hmm = acMod.lookupNearestHMM(
-				unitMgr.getUnit(phone), HMMPosition.UNDEFINED, false);
+		// find HMM for this phone (the acoustic model is shared by all pools)
+		HMM hmm;
+		synchronized (acMod) {
+			hmm = acMod.lookupNearestHMM(
+					unitMgr.getUnit(phone), HMMPosition.UNDEFINED, false);
+		}
 
 		for (int i = 0; i < 3; i++) {
 			HMMState state = hmm.getState(i);
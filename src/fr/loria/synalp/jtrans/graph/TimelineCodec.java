@@ -0,0 +1,182 @@
+package fr.loria.synalp.jtrans.graph;
+
+import java.io.*;
+
+/**
+ * Compact binary format for node timelines (see
+ * {@link StateGraph#backtrack(BackpointerTable)}).
+ * <p/>
+ * Viterbi paths stay on the same node for several frames and then move to a
+ * nearby node, so timelines are stored as runs: the difference between the
+ * node of the run and the node of the previous run (zigzag varint, since
+ * paths normally move forward but aren't required to), followed by the length
+ * of the run (varint).
+ * <p/>
+ * Format: magic, version (32-bit big-endian ints), frame count (varint),
+ * then the runs until frame count is reached.
+ * <p/>
+ * Timelines can be read back run by run with a {@link Reader}, without
+ * materializing the whole array (see
+ * {@link StateGraph#alignmentFromNodeTimeline(Reader, int)}).
+ */
+public class TimelineCodec {
+
+	public static final int MAGIC = 0x4A54544C; // "JTTL"
+	public static final int VERSION = 1;
+
+
+	private TimelineCodec() {
+		// static class
+	}
+
+
+	public static void write(int[] timeline, OutputStream out)
+			throws IOException
+	{
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		writeVarint(dos, timeline.length);
+
+		int prevNode = 0;
+		int f = 0;
+		while (f < timeline.length) {
+			int node = timeline[f];
+			int end = f + 1;
+			while (end < timeline.length && timeline[end] == node) {
+				end++;
+			}
+
+			int delta = node - prevNode;
+			writeVarint(dos, (delta << 1) ^ (delta >> 31));
+			writeVarint(dos, end - f);
+
+			prevNode = node;
+			f = end;
+		}
+
+		dos.flush();
+	}
+
+
+	/**
+	 * Reads a whole timeline into an array.
+	 */
+	public static int[] read(InputStream in) throws IOException {
+		Reader reader = new Reader(in);
+		int[] timeline = new int[reader.getFrameCount()];
+		int f = 0;
+		while (reader.nextRun()) {
+			for (int i = 0; i < reader.getRunLength(); i++) {
+				timeline[f++] = reader.getNode();
+			}
+		}
+		return timeline;
+	}
+
+
+	/**
+	 * Streams the runs of a timeline.
+	 */
+	public static class Reader {
+
+		private final DataInputStream in;
+		private final int frameCount;
+		private int framesRead;
+		private int node;
+		private int runLength;
+
+
+		/**
+		 * Reads the header. The stream is read lazily from then on, and is
+		 * never read past the end of the timeline.
+		 * @throws IOException if the stream doesn't contain a timeline
+		 */
+		public Reader(InputStream in) throws IOException {
+			this.in = new DataInputStream(in);
+
+			if (this.in.readInt() != MAGIC) {
+				throw new IOException("not a timeline");
+			}
+
+			int version = this.in.readInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported timeline version " + version);
+			}
+
+			frameCount = readVarint(this.in);
+			if (frameCount < 0) {
+				throw new IOException("corrupt timeline header");
+			}
+		}
+
+
+		public int getFrameCount() {
+			return frameCount;
+		}
+
+
+		/**
+		 * Moves on to the next run.
+		 * @return false if all frames have been read
+		 * @throws IOException if the timeline is corrupt or truncated
+		 */
+		public boolean nextRun() throws IOException {
+			if (framesRead == frameCount) {
+				return false;
+			}
+
+			int zigzag = readVarint(in);
+			node += (zigzag >>> 1) ^ -(zigzag & 1);
+			runLength = readVarint(in);
+
+			if (node < 0 || runLength <= 0 ||
+					runLength > frameCount - framesRead)
+			{
+				throw new IOException("corrupt timeline (frame "
+						+ framesRead + ")");
+			}
+
+			framesRead += runLength;
+			return true;
+		}
+
+
+		/** Node of the current run */
+		public int getNode() {
+			return node;
+		}
+
+
+		/** Length of the current run, in frames */
+		public int getRunLength() {
+			return runLength;
+		}
+
+	}
+
+
+	private static void writeVarint(DataOutput out, int value)
+			throws IOException
+	{
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+
+	private static int readVarint(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("corrupt varint in timeline");
+	}
+
+}
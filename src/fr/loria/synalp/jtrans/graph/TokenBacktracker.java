@@ -0,0 +1,134 @@
+package fr.loria.synalp.jtrans.graph;
+
+import java.util.Arrays;
+
+/**
+ * Backtracks Viterbi paths with tokens instead of a full backpointer table.
+ * <p/>
+ * Each node holds a token describing the best path that reaches it. A token
+ * is only created when a path enters a node through a non-loop transition;
+ * tokens are immutable and shared by all paths with a common history. Tokens
+ * that no longer belong to any surviving path are reclaimed by the garbage
+ * collector, so memory grows with the number of distinct live paths rather
+ * than with frames x nodes, and nothing is ever written to disk.
+ * <p/>
+ * The resulting timelines are identical to those obtained with
+ * {@link StateGraph#backtrack} on a swap of the same forward pass.
+ */
+public class TokenBacktracker implements BackpointerRecorder {
+
+	/**
+	 * Linked list node: path has been in {@code node} since {@code frame}.
+	 */
+	private static final class Token {
+		final int node;
+		final int frame;
+		final Token prev;
+
+		Token(int node, int frame, Token prev) {
+			this.node = node;
+			this.frame = frame;
+			this.prev = prev;
+		}
+	}
+
+
+	private final TransitionTable in;
+
+	/** Tokens of each node after the previous frame */
+	private Token[] prev;
+
+	/** Tokens of each node after the current frame */
+	private Token[] cur;
+
+	/** Number of frames recorded so far */
+	private int frames;
+
+	private long tokensCreated;
+	private boolean finished;
+
+
+	public TokenBacktracker(StateGraph graph) {
+		in = graph.in;
+		prev = new Token[graph.getNodeCount()];
+		cur = new Token[graph.getNodeCount()];
+
+		// Initial node before the first frame
+		prev[0] = new Token(0, -1, null);
+	}
+
+
+	@Override
+	public void record(byte[] bestInTrans, int lo, int hi) {
+		assert !finished;
+
+		Arrays.fill(cur, 0, lo, null);
+		Arrays.fill(cur, hi+1, cur.length, null);
+
+		for (int i = lo; i <= hi; i++) {
+			int transID = bestInTrans[i];
+			Token src = prev[in.target(i, transID)];
+
+			if (src == null) {
+				// Unreachable (only through pruned nodes)
+				cur[i] = null;
+			} else if (transID == 0) {
+				// Loop: same path as in the previous frame
+				cur[i] = src;
+			} else {
+				cur[i] = new Token(i, frames, src);
+				tokensCreated++;
+			}
+		}
+
+		Token[] temp = prev;
+		prev = cur;
+		cur = temp;
+
+		frames++;
+	}
+
+
+	@Override
+	public void finish() {
+		finished = true;
+		cur = null;
+	}
+
+
+	@Override
+	public String getStatus() {
+		return "tokens created: " + tokensCreated;
+	}
+
+
+	/**
+	 * Returns the most likely timeline ending in the final node, in the same
+	 * format as {@link StateGraph#backtrack}.
+	 * @throws IllegalStateException if the final node is unreachable
+	 */
+	public int[] getTimeline() {
+		if (!finished) {
+			throw new IllegalStateException("forward pass not finished");
+		}
+
+		Token token = prev[prev.length - 1];
+		if (null == token) {
+			throw new IllegalStateException("final node unreachable");
+		}
+
+		// timeline[f] is the node occupied before frame f
+		int[] timeline = new int[frames];
+		int end = frames;
+
+		for (; token != null; token = token.prev) {
+			int start = Math.max(0, token.frame + 1);
+			Arrays.fill(timeline, start, end, token.node);
+			end = start;
+		}
+
+		assert end == 0;
+		return timeline;
+	}
+
+}
@@ -0,0 +1,219 @@
+package fr.loria.synalp.jtrans.graph;
+
+import java.util.Arrays;
+
+/**
+ * Compressed sparse row (CSR) storage for the transitions of a StateGraph.
+ * <p/>
+ * The transitions of node {@code n} occupy the index range
+ * {@code [offsets[n], offsets[n+1])} in the flat {@code targets} and
+ * {@code logProbs} arrays. Memory thus scales with the actual number of
+ * transitions in the graph rather than with {@code nNodes * MAX_TRANSITIONS}.
+ * <p/>
+ * The same structure is used for both directions: in an outbound table,
+ * targets are arrival nodes; in an inbound table (see {@link #inbound()}),
+ * targets are departure nodes. In both cases, the first transition of each
+ * node is always a loop on the node itself.
+ */
+public class TransitionTable {
+
+	/** Index of the first transition of each node (length: nNodes+1). */
+	final int[] offsets;
+
+	/** Node at the other end of each transition. */
+	final int[] targets;
+
+	/** Probability of each transition (in the log domain). */
+	final float[] logProbs;
+
+
+	private TransitionTable(int[] offsets, int[] targets, float[] logProbs) {
+		this.offsets = offsets;
+		this.targets = targets;
+		this.logProbs = logProbs;
+	}
+
+
+	/**
+	 * Deep copy.
+	 */
+	public TransitionTable(TransitionTable other) {
+		this(
+				Arrays.copyOf(other.offsets, other.offsets.length),
+				Arrays.copyOf(other.targets, other.targets.length),
+				Arrays.copyOf(other.logProbs, other.logProbs.length));
+	}
+
+
+	public int getNodeCount() {
+		return offsets.length - 1;
+	}
+
+
+	public int getTransitionCount() {
+		return targets.length;
+	}
+
+
+	public int count(int node) {
+		return offsets[node+1] - offsets[node];
+	}
+
+
+	public int target(int node, int trans) {
+		assert trans < count(node);
+		return targets[offsets[node] + trans];
+	}
+
+
+	public float logProb(int node, int trans) {
+		assert trans < count(node);
+		return logProbs[offsets[node] + trans];
+	}
+
+
+	void setLogProb(int node, int trans, float p) {
+		assert trans < count(node);
+		logProbs[offsets[node] + trans] = p;
+	}
+
+
+	/**
+	 * Builds the inbound counterpart of this outbound table.
+	 * The loop is forced as the first inbound transition of every node; the
+	 * other inbound transitions of a node are sorted by departure node.
+	 * @throws IllegalStateException if a node has more than
+	 * {@link StateGraph#MAX_TRANSITIONS} inbound transitions
+	 */
+	public TransitionTable inbound() {
+		final int nNodes = getNodeCount();
+		final int[] inOffsets = new int[nNodes+1];
+
+		// Count inbound transitions (loops count toward their own node)
+		for (int n = 0; n < nNodes; n++) {
+			assert targets[offsets[n]] == n: "first transition must be a loop";
+			for (int i = offsets[n]; i < offsets[n+1]; i++) {
+				inOffsets[targets[i]+1]++;
+			}
+		}
+
+		for (int n = 0; n < nNodes; n++) {
+			if (inOffsets[n+1] > StateGraph.MAX_TRANSITIONS) {
+				throw new IllegalStateException("node #" + n + " has too " +
+						"many inbound transitions (" + inOffsets[n+1] + ")");
+			}
+			inOffsets[n+1] += inOffsets[n];
+		}
+
+		final int[] inTargets = new int[targets.length];
+		final float[] inLogProbs = new float[logProbs.length];
+		final int[] cursor = Arrays.copyOf(inOffsets, nNodes);
+
+		// Loops first
+		for (int n = 0; n < nNodes; n++) {
+			int c = cursor[n]++;
+			inTargets[c] = n;
+			inLogProbs[c] = logProbs[offsets[n]];
+		}
+
+		// Non-loop transitions, in increasing order of departure node
+		for (int n = 0; n < nNodes; n++) {
+			for (int i = offsets[n]+1; i < offsets[n+1]; i++) {
+				int c = cursor[targets[i]]++;
+				inTargets[c] = n;
+				inLogProbs[c] = logProbs[i];
+			}
+		}
+
+		return new TransitionTable(inOffsets, inTargets, inLogProbs);
+	}
+
+
+	/**
+	 * Accumulates transitions in insertion order while a graph is being built,
+	 * then compacts them into a {@link TransitionTable}.
+	 * <p/>
+	 * Transitions may be added in any node order. The relative order of the
+	 * transitions of a given node is preserved.
+	 */
+	static class Builder {
+		private final byte[] count;
+		private int[] src;
+		private int[] dst;
+		private float[] prob;
+		private int size;
+
+
+		Builder(int nNodes, int expectedTransitions) {
+			count = new byte[nNodes];
+			expectedTransitions = Math.max(16, expectedTransitions);
+			src  = new int  [expectedTransitions];
+			dst  = new int  [expectedTransitions];
+			prob = new float[expectedTransitions];
+		}
+
+
+		void add(int from, int to, float p) {
+			if (count[from] >= StateGraph.MAX_TRANSITIONS) {
+				throw new IllegalStateException("node #" + from + " has too " +
+						"many outbound transitions");
+			}
+
+			if (size == src.length) {
+				int newLength = size * 2;
+				src  = Arrays.copyOf(src,  newLength);
+				dst  = Arrays.copyOf(dst,  newLength);
+				prob = Arrays.copyOf(prob, newLength);
+			}
+
+			src[size] = from;
+			dst[size] = to;
+			prob[size] = p;
+			size++;
+			count[from]++;
+		}
+
+
+		int count(int node) {
+			return count[node];
+		}
+
+
+		/**
+		 * Keeps only the first {@code newCount} transitions of a node.
+		 */
+		void truncate(int node, int newCount) {
+			assert newCount <= count[node];
+			count[node] = (byte)newCount;
+		}
+
+
+		TransitionTable build() {
+			final int nNodes = count.length;
+			final int[] offsets = new int[nNodes+1];
+
+			for (int n = 0; n < nNodes; n++) {
+				offsets[n+1] = offsets[n] + count[n];
+			}
+
+			final int total = offsets[nNodes];
+			final int[] targets = new int[total];
+			final float[] logProbs = new float[total];
+			final int[] cursor = Arrays.copyOf(offsets, nNodes);
+
+			// Stable counting sort by departure node; drop truncated entries
+			for (int i = 0; i < size; i++) {
+				int n = src[i];
+				int c = cursor[n];
+				if (c < offsets[n+1]) {
+					targets[c] = dst[i];
+					logProbs[c] = prob[i];
+					cursor[n]++;
+				}
+			}
+
+			return new TransitionTable(offsets, targets, logProbs);
+		}
+	}
+
+}
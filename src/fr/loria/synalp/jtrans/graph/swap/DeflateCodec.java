@@ -0,0 +1,95 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Swap codec backed by java.util.zip.
+ */
+public class DeflateCodec extends SwapCodec {
+
+	private final int level;
+	private final int strategy;
+
+
+	/**
+	 * Unless you're seriously strapped for disk space, we recommend using
+	 * Deflater.BEST_SPEED with HUFFMAN_ONLY.
+	 */
+	public DeflateCodec(int level, int strategy) {
+		this.level = level;
+		this.strategy = strategy;
+	}
+
+
+	public DeflateCodec() {
+		this(Deflater.BEST_SPEED, Deflater.HUFFMAN_ONLY);
+	}
+
+
+	@Override
+	public int getId() {
+		return DEFLATE;
+	}
+
+
+	@Override
+	public Encoder newEncoder() {
+		final Deflater def = new Deflater(level);
+		def.setStrategy(strategy);
+
+		return new Encoder() {
+			@Override
+			public int encode(byte[] src, int length, byte[] dest) {
+				def.reset();
+				def.setInput(src, 0, length);
+				def.finish();
+
+				int len = 0;
+				while (!def.finished()) {
+					if (len == dest.length) {
+						return -1;
+					}
+					len += def.deflate(dest, len, dest.length - len);
+				}
+
+				assert len == def.getBytesWritten();
+				return len;
+			}
+		};
+	}
+
+
+	@Override
+	public Decoder newDecoder() {
+		final Inflater inf = new Inflater();
+
+		return new Decoder() {
+			@Override
+			public void decode(byte[] src, int offset, int length,
+							   byte[] dest, int rawLength)
+					throws IOException
+			{
+				inf.reset();
+				inf.setInput(src, offset, length);
+
+				int rdtot = 0;
+				try {
+					while (rdtot < rawLength) {
+						int rd = inf.inflate(dest, rdtot, rawLength - rdtot);
+						if (rd == 0 && (inf.finished() || inf.needsInput())) {
+							throw new EOFException("truncated deflate stream");
+						}
+						rdtot += rd;
+					}
+				} catch (DataFormatException ex) {
+					throw new IOException(ex);
+				}
+			}
+		};
+	}
+
+}
@@ -1,19 +1,56 @@
 package fr.loria.synalp.jtrans.graph.swap;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-public class PageIndex implements Serializable {
+/**
+ * Locations of the compressed pages in a swap file.
+ * <p/>
+ * Page metadata is stored in parallel primitive arrays. Pages are contiguous
+ * both in time and in the swap file, so the page containing a given frame is
+ * found with a binary search on the first frame of each page.
+ * <p/>
+ * Binary format (big-endian, see {@link #serialize}): magic, version,
+ * nStates, codec ID, page count, frame count, then one fixed-width record
+ * per page (first frame, offset, compressed length). The index may also be
+ * appended to the swap file itself as a trailer (see {@link #writeTrailer}
+ * and {@link #readTrailer}).
+ */
+public class PageIndex {
+
+	public static final int MAGIC = 0x4A545049; // "JTPI"
+	public static final int VERSION = 2;
+
+	/** Marks the end of a swap file that contains a trailing index */
+	public static final int TRAILER_MAGIC = 0x4A545054; // "JTPT"
+
+	/** Size of the header preceding the page records */
+	public static final int HEADER_BYTES = 24;
+
+	/** Size of a single page record */
+	public static final int RECORD_BYTES = 16;
+
+	/** Size of the footer following a trailing index */
+	public static final int FOOTER_BYTES = 12;
 
 	public final int nStates;
 
-	private List<Entry> index = new ArrayList<Entry>();
+	/** Codec used to compress the pages (see {@link SwapCodec#getId}) */
+	public final int codecId;
+
+	private int pageCount;
+	private int[] frame0s = new int[16];
+	private long[] offsets = new long[16];
+	private int[] compressedLengths = new int[16];
 	private int totalFrameCount;
 	private long totalCompressedLength;
 
 
-	public class Entry implements Serializable {
+	/**
+	 * Read-only view of a single page.
+	 */
+	public static class Entry {
 
 		public final int number;
 		public final int compressedChunkLength;
@@ -22,14 +59,14 @@ public class PageIndex implements Serializable {
 		public final long offset;
 
 
-		private Entry(int fc, int ccl) {
-			number = index.size();
-			compressedChunkLength = ccl;
-			frameCount = fc;
-			frame0 = totalFrameCount;
-			totalFrameCount += frameCount;
-			offset = totalCompressedLength;
-			totalCompressedLength += compressedChunkLength;
+		private Entry(int number, int frame0, int frameCount,
+					  long offset, int compressedChunkLength)
+		{
+			this.number = number;
+			this.frame0 = frame0;
+			this.frameCount = frameCount;
+			this.offset = offset;
+			this.compressedChunkLength = compressedChunkLength;
 		}
 
 
@@ -40,32 +77,68 @@ public class PageIndex implements Serializable {
 	}
 
 
-	public PageIndex(int nStates) {
+	public PageIndex(int nStates, int codecId) {
 		this.nStates = nStates;
+		this.codecId = codecId;
+	}
+
+
+	public PageIndex(int nStates) {
+		this(nStates, SwapCodec.DEFLATE);
 	}
 
 
 	public void putPage(int fc, int ccl) {
-		index.add(new Entry(fc, ccl));
+		if (pageCount == frame0s.length) {
+			int newLength = pageCount * 2;
+			frame0s = Arrays.copyOf(frame0s, newLength);
+			offsets = Arrays.copyOf(offsets, newLength);
+			compressedLengths = Arrays.copyOf(compressedLengths, newLength);
+		}
+
+		frame0s[pageCount] = totalFrameCount;
+		offsets[pageCount] = totalCompressedLength;
+		compressedLengths[pageCount] = ccl;
+		pageCount++;
+
+		totalFrameCount += fc;
+		totalCompressedLength += ccl;
 	}
 
 
-	public Entry getPage(int frameNo) {
-		int pageNo = 0;
-		int tfc = 0;
-		for	(; pageNo < index.size(); pageNo++) {
-			Entry e = index.get(pageNo);
-			if (frameNo < tfc + e.frameCount) {
-				break;
-			}
-			tfc += e.frameCount;
+	/**
+	 * Returns the number of the page containing the given frame.
+	 */
+	public int findPage(int frameNo) {
+		if (frameNo < 0 || frameNo >= totalFrameCount) {
+			throw new IndexOutOfBoundsException("frame " + frameNo
+					+ " not in swap (" + totalFrameCount + " frames)");
 		}
-		return index.get(pageNo);
+
+		int i = Arrays.binarySearch(frame0s, 0, pageCount, frameNo);
+		return i >= 0? i: -i - 2;
+	}
+
+
+	public Entry getPage(int frameNo) {
+		return getPageByNumber(findPage(frameNo));
+	}
+
+
+	public Entry getPageByNumber(int pageNo) {
+		return new Entry(pageNo, frame0s[pageNo], getFrameCount(pageNo),
+				offsets[pageNo], compressedLengths[pageNo]);
+	}
+
+
+	public int getFrameCount(int pageNo) {
+		int next = pageNo+1 < pageCount? frame0s[pageNo+1]: totalFrameCount;
+		return next - frame0s[pageNo];
 	}
 
 
 	public int getPageCount() {
-		return index.size();
+		return pageCount;
 	}
 
 
@@ -80,24 +153,148 @@ public class PageIndex implements Serializable {
 
 
 	public void serialize(OutputStream out) throws IOException {
-		ObjectOutputStream oos = new ObjectOutputStream(out);
-		oos.writeObject(this);
-		oos.flush();
-		oos.close();
+		DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(out));
+
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(nStates);
+		dos.writeInt(codecId);
+		dos.writeInt(pageCount);
+		dos.writeInt(totalFrameCount);
+
+		for (int p = 0; p < pageCount; p++) {
+			dos.writeInt(frame0s[p]);
+			dos.writeLong(offsets[p]);
+			dos.writeInt(compressedLengths[p]);
+		}
+
+		dos.flush();
+	}
+
+
+	/**
+	 * Size of the serialized index in bytes.
+	 */
+	public long getSerializedLength() {
+		return HEADER_BYTES + (long)pageCount * RECORD_BYTES;
 	}
 
 
 	public static PageIndex deserialize(InputStream in) throws IOException {
-		ObjectInputStream ois = new ObjectInputStream(in);
-		PageIndex pi;
-		try {
-			pi = (PageIndex)ois.readObject();
-		} catch (ClassNotFoundException ex) {
-			throw new IOException(ex);
+		return read(new DataInputStream(in), Integer.MAX_VALUE);
+	}
+
+
+	/**
+	 * @param maxRecordBytes number of bytes available for the page records
+	 *                       after the header
+	 */
+	private static PageIndex read(DataInput in, long maxRecordBytes)
+			throws IOException
+	{
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a page index");
+		}
+
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported page index version " + version);
+		}
+
+		int nStates = in.readInt();
+		PageIndex pi = new PageIndex(nStates, in.readInt());
+		int pageCount = in.readInt();
+		int frameCount = in.readInt();
+
+		if (pi.nStates <= 0 || pageCount < 0 || frameCount < 0) {
+			throw new IOException("corrupt page index header");
+		}
+
+		// Fixed-width records: read them all at once
+		long recordBytes = (long)pageCount * RECORD_BYTES;
+		if (recordBytes > maxRecordBytes) {
+			throw new IOException("corrupt page index (page count "
+					+ pageCount + " exceeds the available data)");
+		}
+		byte[] records = new byte[(int)recordBytes];
+		in.readFully(records);
+		ByteBuffer bb = ByteBuffer.wrap(records);
+
+		pi.frame0s = new int[Math.max(1, pageCount)];
+		pi.offsets = new long[Math.max(1, pageCount)];
+		pi.compressedLengths = new int[Math.max(1, pageCount)];
+
+		for (int p = 0; p < pageCount; p++) {
+			pi.frame0s[p] = bb.getInt();
+			pi.offsets[p] = bb.getLong();
+			pi.compressedLengths[p] = bb.getInt();
+
+			// Pages must be contiguous in time and in the swap
+			if ((p == 0? pi.frame0s[p] != 0: pi.frame0s[p] <= pi.frame0s[p-1])
+					|| pi.offsets[p] != pi.totalCompressedLength
+					|| pi.compressedLengths[p] < 0)
+			{
+				throw new IOException("corrupt page index (page " + p + ")");
+			}
+
+			pi.totalCompressedLength += pi.compressedLengths[p];
+		}
+
+		if (pageCount > 0 && frameCount <= pi.frame0s[pageCount-1]) {
+			throw new IOException("corrupt page index (frame count)");
 		}
-		ois.close();
-		System.out.println("Deserialized - Page Count = " + pi.getPageCount());
+
+		pi.pageCount = pageCount;
+		pi.totalFrameCount = frameCount;
 		return pi;
 	}
 
+
+	/**
+	 * Appends this index to a swap stream, followed by a fixed-width footer
+	 * that allows {@link #readTrailer} to locate it. Must be called once all
+	 * pages have been written to the stream.
+	 */
+	public void writeTrailer(OutputStream out) throws IOException {
+		serialize(out);
+
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeLong(totalCompressedLength);
+		dos.writeInt(TRAILER_MAGIC);
+		dos.flush();
+	}
+
+
+	/**
+	 * Reads the index appended to a swap file by {@link #writeTrailer}.
+	 */
+	public static PageIndex readTrailer(File swapFile) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(swapFile, "r")) {
+			long length = raf.length();
+			if (length < FOOTER_BYTES + HEADER_BYTES) {
+				throw new IOException("no page index in " + swapFile);
+			}
+
+			raf.seek(length - FOOTER_BYTES);
+			long indexOffset = raf.readLong();
+			if (raf.readInt() != TRAILER_MAGIC ||
+					indexOffset < 0 ||
+					indexOffset > length - FOOTER_BYTES - HEADER_BYTES)
+			{
+				throw new IOException("no page index in " + swapFile);
+			}
+
+			raf.seek(indexOffset);
+			PageIndex pi = read(raf,
+					length - FOOTER_BYTES - indexOffset - HEADER_BYTES);
+
+			if (pi.getCompressedBytes() != indexOffset) {
+				throw new IOException("page index doesn't match " + swapFile);
+			}
+
+			return pi;
+		}
+	}
+
 }
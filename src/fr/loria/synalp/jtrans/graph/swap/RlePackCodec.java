@@ -0,0 +1,214 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import fr.loria.synalp.jtrans.graph.StateGraph;
+
+import java.io.IOException;
+
+/**
+ * Pure Java swap codec exploiting the structure of filtered backpointers:
+ * long runs of zeroes are run-length encoded, and the remaining values are
+ * bit-packed on 6 bits each (values are below
+ * {@link StateGraph#MAX_TRANSITIONS} = 64).
+ * <p/>
+ * A page is a sequence of blocks. Each block consists of the length of a run
+ * of zeroes (varint), the number of literals that follow the run (varint),
+ * and the packed literals (6 bits each, most significant bits first, padded
+ * to a whole byte). Short runs of zeroes are kept among the literals, since
+ * a new block would cost more than packing them.
+ */
+public class RlePackCodec extends SwapCodec {
+
+	/** Bits per literal */
+	public static final int BITS = 6;
+
+	/**
+	 * Zero runs shorter than this are packed as literals instead of starting
+	 * a new block.
+	 */
+	public static final int MIN_ZERO_RUN = 4;
+
+
+	static {
+		assert StateGraph.MAX_TRANSITIONS <= 1 << BITS;
+	}
+
+
+	@Override
+	public int getId() {
+		return RLE_PACK;
+	}
+
+
+	@Override
+	public Encoder newEncoder() {
+		return new Encoder() {
+			@Override
+			public int encode(byte[] src, int length, byte[] dest) {
+				return RlePackCodec.encode(src, length, dest);
+			}
+		};
+	}
+
+
+	@Override
+	public Decoder newDecoder() {
+		return new Decoder() {
+			@Override
+			public void decode(byte[] src, int offset, int length,
+							   byte[] dest, int rawLength)
+					throws IOException
+			{
+				RlePackCodec.decode(src, offset, length, dest, rawLength);
+			}
+		};
+	}
+
+
+	static int encode(byte[] src, int length, byte[] dest) {
+		int out = 0;
+		int i = 0;
+
+		while (i < length) {
+			// Run of zeroes
+			int z = i;
+			while (z < length && src[z] == 0) {
+				z++;
+			}
+
+			// Literals, up to the next long run of zeroes
+			int j = z;
+			while (j < length) {
+				if (src[j] != 0) {
+					j++;
+					continue;
+				}
+				int k = j;
+				while (k < length && src[k] == 0) {
+					k++;
+				}
+				if (k - j >= MIN_ZERO_RUN || k == length) {
+					break;
+				}
+				j = k;
+			}
+
+			int literals = j - z;
+			if (out + 10 + (literals * BITS + 7) / 8 > dest.length) {
+				return -1;
+			}
+
+			out = writeVarint(dest, out, z - i);
+			out = writeVarint(dest, out, literals);
+
+			// Bit-pack literals
+			int acc = 0;
+			int bits = 0;
+			for (int l = z; l < j; l++) {
+				int v = src[l];
+				if (v < 0 || v >= 1 << BITS) {
+					throw new IllegalArgumentException(
+							"value out of range: " + v);
+				}
+				acc = (acc << BITS) | v;
+				bits += BITS;
+				if (bits >= 8) {
+					bits -= 8;
+					dest[out++] = (byte)(acc >>> bits);
+				}
+			}
+			if (bits > 0) {
+				dest[out++] = (byte)(acc << (8 - bits));
+			}
+
+			i = j;
+		}
+
+		return out;
+	}
+
+
+	static void decode(byte[] src, int offset, int length,
+					   byte[] dest, int rawLength)
+			throws IOException
+	{
+		final int end = offset + length;
+		int in = offset;
+		int o = 0;
+
+		try {
+			while (o < rawLength) {
+				long header = readVarint(src, in, end);
+				int zeroes = (int)header;
+				in = (int)(header >>> 32);
+
+				header = readVarint(src, in, end);
+				int literals = (int)header;
+				in = (int)(header >>> 32);
+
+				if (zeroes < 0 || literals < 0 ||
+						(long)o + zeroes + literals > rawLength)
+				{
+					throw new IOException("corrupt RLE swap page");
+				}
+
+				for (int stop = o + zeroes; o < stop; o++) {
+					dest[o] = 0;
+				}
+
+				if (in + (literals * BITS + 7) / 8 > end) {
+					throw new IOException("truncated RLE swap page");
+				}
+
+				int acc = 0;
+				int bits = 0;
+				for (int stop = o + literals; o < stop; o++) {
+					if (bits < BITS) {
+						acc = (acc << 8) | (src[in++] & 0xFF);
+						bits += 8;
+					}
+					bits -= BITS;
+					dest[o] = (byte)((acc >>> bits) & ((1 << BITS) - 1));
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			throw new IOException("truncated RLE swap page", ex);
+		}
+
+		if (in != end) {
+			throw new IOException("trailing garbage in RLE swap page");
+		}
+	}
+
+
+	private static int writeVarint(byte[] dest, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			dest[pos++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dest[pos++] = (byte)value;
+		return pos;
+	}
+
+
+	/**
+	 * @return the value in the low 32 bits, and the position following the
+	 * varint in the high 32 bits
+	 */
+	private static long readVarint(byte[] src, int pos, int end)
+			throws IOException
+	{
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (pos >= end) {
+				throw new IOException("truncated RLE swap page");
+			}
+			byte b = src[pos++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return ((long)pos << 32) | (value & 0xFFFFFFFFL);
+			}
+		}
+		throw new IOException("corrupt varint in RLE swap page");
+	}
+
+}
@@ -0,0 +1,88 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses and decompresses swap pages.
+ * <p/>
+ * Pages reach the codec after the pre-compression filter of
+ * {@link SwapDeflater}, i.e. mostly zeroes, with non-zero values below
+ * {@link fr.loria.synalp.jtrans.graph.StateGraph#MAX_TRANSITIONS}.
+ * <p/>
+ * Codecs are stateless and thread-safe; the encoders and decoders they
+ * create must only be used by one thread at a time. The codec used to write
+ * a swap is recorded in its {@link PageIndex}.
+ */
+public abstract class SwapCodec {
+
+	public static final int DEFLATE = 1;
+	public static final int RLE_PACK = 2;
+
+
+	public interface Encoder {
+		/**
+		 * Compresses {@code src[0, length)} into {@code dest}.
+		 * @return number of bytes written to dest, or -1 if dest is too
+		 * small, in which case the caller should retry with a larger buffer
+		 */
+		int encode(byte[] src, int length, byte[] dest);
+	}
+
+
+	public interface Decoder {
+		/**
+		 * Decompresses {@code src[offset, offset+length)} into
+		 * {@code dest[0, rawLength)}.
+		 * @throws IOException if the compressed data is corrupt
+		 */
+		void decode(byte[] src, int offset, int length, byte[] dest,
+					int rawLength) throws IOException;
+	}
+
+
+	/**
+	 * Identifies the codec in a {@link PageIndex}.
+	 */
+	public abstract int getId();
+
+
+	public abstract Encoder newEncoder();
+
+
+	public abstract Decoder newDecoder();
+
+
+	/**
+	 * Returns a codec that can read swaps written with the given codec ID.
+	 */
+	public static SwapCodec forId(int id) {
+		switch (id) {
+			case DEFLATE:
+				return new DeflateCodec();
+			case RLE_PACK:
+				return new RlePackCodec();
+			default:
+				throw new IllegalArgumentException("unknown swap codec " + id);
+		}
+	}
+
+
+	/**
+	 * Returns a codec by name, as given on the command line.
+	 * @param name "deflate", "store" (deflate without compression), or "rle"
+	 */
+	public static SwapCodec forName(String name) {
+		if (name.equals("deflate")) {
+			return new DeflateCodec();
+		} else if (name.equals("store")) {
+			return new DeflateCodec(
+					Deflater.NO_COMPRESSION, Deflater.HUFFMAN_ONLY);
+		} else if (name.equals("rle")) {
+			return new RlePackCodec();
+		} else {
+			throw new IllegalArgumentException("unknown swap codec: " + name);
+		}
+	}
+
+}
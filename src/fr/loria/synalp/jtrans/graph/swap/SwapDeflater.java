@@ -4,28 +4,67 @@ import fr.loria.synalp.jtrans.utils.BufferUtils;
 
 import java.io.*;
 import java.util.Arrays;
-import java.util.zip.Deflater;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Multithreaded compressed swap writer for Viterbi backtracking.
- *
+ * <p/>
+ * Frames are accumulated into pages. Full pages go through a bounded
+ * pipeline: a pool of worker threads (each with its own encoder, see
+ * {@link SwapCodec}) compresses
+ * several pages concurrently, and compressed pages are appended to the output
+ * stream and to the {@link PageIndex} strictly in the order in which they
+ * were produced. Page buffers circulate in a ring; the producer (i.e. the
+ * Viterbi forward pass) only blocks when every page in the ring is waiting
+ * to be compressed or written.
+ * <p/>
  * A single instance may be reused for several different graphs to avoid wasting
- * time re-allocating buffers.
+ * time re-allocating buffers. If a forward pass doesn't run to completion,
+ * {@link #abort} must be called before the instance is reused.
  *
  * @see fr.loria.synalp.jtrans.graph.StateGraph
  */
 public class SwapDeflater {
 
+	/** Default number of compression threads per SwapDeflater */
+	public static int WORKERS = 2;
+
+	/** Default number of page buffers in the pipeline (at least 2) */
+	public static int PIPELINE_PAGES = 4;
+
+	/** Default codec */
+	public static SwapCodec CODEC = new DeflateCodec();
+
 	/**
 	 * Whenever the deflater is being reinitialized, we try to stick to this
 	 * value for the sizes of the buffers.
 	 */
 	private final int approxBytesPerPage;
 
-	private final Deflater def;
+	private final SwapCodec codec;
+
+	/** One encoder per worker thread */
+	private final SwapCodec.Encoder[] encoders;
+
+	/** Maximum number of pages in the ring */
+	private final int ringSize;
+
+	/** Pages ready to be filled by the producer */
+	private final BlockingQueue<Page> freePages;
+
+	/** Full pages waiting to be picked up by a worker */
+	private final BlockingQueue<Page> pendingPages =
+			new LinkedBlockingQueue<Page>();
 
-	/** Compressed data buffer that the flush thread writes into */
-	private final byte[] compBuffer;
+	/** Compressed pages waiting for their predecessors to be written */
+	private final Map<Long, Page> compressedPages = new HashMap<Long, Page>();
+
+	/** Number of pages allocated so far (ring pages are allocated lazily) */
+	private int allocatedPages;
 
 	/** Number of states for the graph currently being analyzed */
 	private int nStates;
@@ -39,6 +78,9 @@ public class SwapDeflater {
 	/** Contains offsets of pages in the swap file among other things */
 	private PageIndex index;
 
+	/** Append the index to the swap when closing it */
+	private boolean trailer;
+
 	// NEVER EVER USE previousRun.length! Since the buffer might be
 	// reused, its length may not be what you expect. Use nStates instead
 	/**
@@ -48,42 +90,85 @@ public class SwapDeflater {
  	 */
 	private byte[] previousRun;
 
-	/** Uncompressed data buffer that the main thread writes into */
-	private byte[] frontBuffer;
+	/** Page that the main thread writes into */
+	private Page frontPage;
+
+	/** Sequence number of the next page handed over to the workers */
+	private long submittedPages;
+
+	/** Sequence number of the next page to be written to the output stream */
+	private long writtenPages;
+
+	/** Threads that compress pages in the background */
+	private Thread[] workers;
+
+	/**
+	 * First exception thrown by the encoders or the writer; rethrown in the
+	 * main thread
+	 */
+	private volatile Throwable failure;
 
-	/** Number of frames stored in the front buffer */
-	private int frontBufferFrames;
+	private int maxQueueDepth;
+	private long stallNanos;
+	private int stalls;
 
-	/** Uncompressed data buffer that the flush thread reads from */
-	private byte[] backBuffer;
 
 	/**
-	 * Number of frames stored in the back buffer.
-	 * A value of 0 signifies that the back buffer has been processed by the
-	 * flush thread and the buffers are ready to be swapped.
+	 * Page buffer. Pages circulate between the producer, the workers and the
+	 * ordered writer.
 	 */
-	private int backBufferFrames;
+	private static class Page {
+		/** Uncompressed (filtered) frames */
+		byte[] raw;
+
+		/** Number of frames stored in the raw buffer */
+		int frames;
+
+		/** Compressed data */
+		byte[] compressed = new byte[65536];
+
+		/** Number of bytes in the compressed buffer */
+		int compressedLength;
+
+		/** Position of this page in the swap file */
+		long seq;
+	}
 
-	/** Thread that compresses data in the background */
-	private Thread flushThread;
 
-	/** Tells flushThread to stop consuming pages */
-	private boolean done = false;
+	/** Tells a worker to stop */
+	private static final Page POISON = new Page();
 
 
-	private class FlushThread extends Thread {
-		private FlushThread() {
-			super("SwapDeflater flusher");
+	private class Worker extends Thread {
+		private final SwapCodec.Encoder encoder;
+
+		private Worker(int number, SwapCodec.Encoder encoder) {
+			super("SwapDeflater worker " + number);
+			this.encoder = encoder;
+			setDaemon(true);
 		}
 
 		@Override
 		public void run() {
 			try {
-				while (!done) {
-					consumePage();
+				Page page;
+				while (POISON != (page = pendingPages.take())) {
+					try {
+						if (failure == null) {
+							compress(encoder, page);
+						}
+					} catch (Throwable t) {
+						// Rethrown in the main thread. The page must still be
+						// recycled, otherwise close() would wait forever.
+						synchronized (SwapDeflater.this) {
+							if (failure == null) {
+								failure = t;
+							}
+						}
+					} finally {
+						pageCompressed(page);
+					}
 				}
-			} catch (IOException ex) {
-				throw new Error(ex);
 			} catch (InterruptedException ex) {
 				throw new Error(ex);
 			}
@@ -93,19 +178,31 @@ public class SwapDeflater {
 
 	/**
 	 * @param approxBytesPerPage Ballpark measurement of the size of a single
-	 * uncompressed page (in bytes). The compression process will need at least
-	 * twice as much bytes in memory. Don't go overboard with this value: past
+	 * uncompressed page (in bytes). Each page in the pipeline needs a bit more
+	 * than this amount in memory. Don't go overboard with this value: past
 	 * a certain size, larger pages yield marginally better compression,
 	 * but they typically adversely affect performance.
-	 * @param deflater Unless you're seriously strapped for disk space, we
-	 * recommend using Deflater.BEST_SPEED with HUFFMAN_ONLY.
+	 * @param codec compresses pages
+	 * @param workers number of pages that may be compressed concurrently
+	 * @param pages number of page buffers in the pipeline (at least 2).
+	 * Extra pages let the producer keep going while the workers catch up.
 	 */
-	public SwapDeflater(int approxBytesPerPage, Deflater deflater)
-			throws IOException
+	public SwapDeflater(
+			int approxBytesPerPage,
+			SwapCodec codec,
+			int workers,
+			int pages)
 	{
 		this.approxBytesPerPage = approxBytesPerPage;
-		def = deflater;
-		compBuffer  = new byte[1048576];
+		this.codec = codec;
+
+		encoders = new SwapCodec.Encoder[Math.max(1, workers)];
+		for (int i = 0; i < encoders.length; i++) {
+			encoders[i] = codec.newEncoder();
+		}
+
+		ringSize = Math.max(2, pages);
+		freePages = new ArrayBlockingQueue<Page>(ringSize);
 	}
 
 
@@ -115,29 +212,42 @@ public class SwapDeflater {
 	 *            in RAM if you have enough of it)
 	 */
 	public void init(int nStates, OutputStream out) {
-		assert backBufferFrames == 0;
-		assert frontBufferFrames == 0;
-		assert flushThread == null || !flushThread.isAlive();
+		init(nStates, out, false);
+	}
+
+
+	/**
+	 * @param nStates number of states in the vector
+	 * @param out swap output stream
+	 * @param trailer append the page index to the swap when closing it, so
+	 *                that the swap can be reopened on its own
+	 *                (see {@link SwapInflater#init(File)})
+	 */
+	public void init(int nStates, OutputStream out, boolean trailer) {
+		assert workers == null;
+		assert frontPage == null;
+		assert pendingPages.isEmpty();
+		assert compressedPages.isEmpty();
 
 		this.nStates = nStates;
 		this.out = out;
+		this.trailer = trailer;
 
-		index = new PageIndex(nStates);
+		index = new PageIndex(nStates, codec.getId());
 
 		maxFramesPerPage = Math.max(1, approxBytesPerPage / nStates);
-		int pageLength = maxFramesPerPage * nStates;
-		//System.out.println("Page length: " + pageLength + " bytes ("
-		//		+ maxFramesPerPage + " frames)");
+		//System.out.println("Page length: " + maxFramesPerPage*nStates
+		//		+ " bytes (" + maxFramesPerPage + " frames)");
 
-		frontBuffer = BufferUtils.grow(frontBuffer, pageLength);
-		backBuffer = BufferUtils.grow(backBuffer, pageLength);
 		previousRun = BufferUtils.grow(previousRun, nStates);
 		resetFilter();
 
-		frontBufferFrames = 0;
-		backBufferFrames = 0;
-		flushThread = null;
-		done = false;
+		submittedPages = 0;
+		writtenPages = 0;
+		failure = null;
+		maxQueueDepth = 0;
+		stallNanos = 0;
+		stalls = 0;
 	}
 
 
@@ -153,17 +263,19 @@ public class SwapDeflater {
 
 	/**
 	 * Creates a SwapDeflater with sensible memory and compression settings.
-	 * @param compress use compression. Disabling compression dramatically
-	 * speeds up the swapping process, but the trade-off is that swap files
-	 * become enormous when working on long recordings.
+	 * The pipeline is sized according to {@link #WORKERS} and
+	 * {@link #PIPELINE_PAGES}.
+	 * @param compress use compression ({@link #CODEC}). Disabling
+	 * compression dramatically speeds up the swapping process, but the
+	 * trade-off is that swap files become enormous when working on long
+	 * recordings.
 	 */
-	public static SwapDeflater getSensibleSwapDeflater(boolean compress)
-			throws IOException
-	{
-		Deflater deflater = new Deflater(
-				compress? Deflater.BEST_SPEED: Deflater.NO_COMPRESSION);
-		deflater.setStrategy(Deflater.HUFFMAN_ONLY);
-		return new SwapDeflater(1024*1024*16, deflater);
+	public static SwapDeflater getSensibleSwapDeflater(boolean compress) {
+		return new SwapDeflater(
+				1024*1024*16,
+				compress? CODEC: SwapCodec.forName("store"),
+				WORKERS,
+				PIPELINE_PAGES);
 	}
 
 
@@ -172,126 +284,286 @@ public class SwapDeflater {
 	}
 
 
-	// Thread safety: don't access instance variables frontBuffer/backBuffer
-	// nor backBufferFrames directly in this method, because they may change
-	// at any time in the main thread. Use the provided parameters instead.
-	private void fullFlush(byte[] rawBuf, int framesInBuf) throws IOException {
-		def.reset();
-		def.setInput(rawBuf, 0, framesInBuf * nStates);
-		def.finish();
-		assert !def.finished();
+	/**
+	 * Number of pages that have been handed over to the workers but that
+	 * haven't been written to the output stream yet.
+	 */
+	public synchronized int getQueueDepth() {
+		return (int)(submittedPages - writtenPages);
+	}
+
+
+	/**
+	 * Highest queue depth observed since the last call to {@link #init}.
+	 * If this value routinely reaches the number of pages in the pipeline,
+	 * compression is the bottleneck: consider adding workers.
+	 */
+	public synchronized int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+
+	/**
+	 * Total time (in nanoseconds) that the producer spent waiting for a free
+	 * page since the last call to {@link #init}.
+	 */
+	public synchronized long getStallNanos() {
+		return stallNanos;
+	}
+
+
+	/**
+	 * Number of times the producer had to wait for a free page since the
+	 * last call to {@link #init}.
+	 */
+	public synchronized int getStallCount() {
+		return stalls;
+	}
+
+
+	public int getWorkerCount() {
+		return encoders.length;
+	}
+
+
+	public SwapCodec getCodec() {
+		return codec;
+	}
 
-		while (!def.finished()) {
-			int len = def.deflate(compBuffer);
-			if (len > 0) {
-				out.write(compBuffer, 0, len);
-			}
-			//System.out.print(len <= 0? "?": def.needsInput()? "!": ".");
-		}
 
-		assert def.finished();
+	public int getPipelinePages() {
+		return ringSize;
+	}
 
-		index.putPage(framesInBuf, (int)def.getBytesWritten());
 
-		/*
-		System.out.println(String.format(
-				"[Frame %d] backtrack footprint: %s",
-				index.getFrameCount(),
-				index.getCompressedBytes()));
-		*/
+	// Called from worker threads. The page belongs to the calling worker
+	// until it is handed over to pageCompressed().
+	private void compress(SwapCodec.Encoder encoder, Page page) {
+		int len;
+		while (-1 == (len = encoder.encode(
+				page.raw, page.frames * nStates, page.compressed)))
+		{
+			page.compressed = new byte[page.compressed.length * 2];
+		}
+		page.compressedLength = len;
 	}
 
 
 	public void write(byte[] n) throws IOException, InterruptedException {
 		assert nStates == n.length;
 
-		final int fbOffset = frontBufferFrames*nStates;
+		if (frontPage == null) {
+			frontPage = acquirePage();
+		}
+
+		final byte[] raw = frontPage.raw;
+		final int offset = frontPage.frames * nStates;
 
-		// Filter
+		// Filter (backpointers rarely change from one frame to the next)
 		for (int i = 0; i < nStates; i++) {
-			frontBuffer[fbOffset+i] = (byte)(n[i] - previousRun[i]);
+			raw[offset+i] = (byte)(n[i] ^ previousRun[i]);
 		}
 
 		System.arraycopy(n, 0, previousRun, 0, nStates);
 
-		frontBufferFrames++;
+		frontPage.frames++;
 
-		if (frontBufferFrames % maxFramesPerPage == 0) {
+		if (frontPage.frames == maxFramesPerPage) {
 			//System.out.print("J");
-			producePage();
+			submitPage();
 			resetFilter();
 		}
 	}
 
 
+	/**
+	 * Obtains an empty page for the producer. Allocates a new page if the
+	 * ring isn't full yet; otherwise, waits for the writer to recycle a page.
+	 */
 	// Called from main thread
-	private synchronized void producePage() throws InterruptedException {
-		if (flushThread == null) {
-			flushThread = new FlushThread();
-			flushThread.start();
+	private Page acquirePage() throws IOException, InterruptedException {
+		Page page = freePages.poll();
 
-			// Wait for thread to start up
-			wait();
+		if (page == null && allocatedPages < ringSize) {
+			allocatedPages++;
+			page = new Page();
 		}
 
-		// Wait for flushThread to finish working on the back buffer
-		while (backBufferFrames > 0) {
-			wait();
+		if (page == null) {
+			long t0 = System.nanoTime();
+			page = freePages.take();
+			long stall = System.nanoTime() - t0;
+			synchronized (this) {
+				stallNanos += stall;
+				stalls++;
+			}
 		}
 
-		// Swap buffers
-		byte[] tmp = frontBuffer;
-		frontBuffer = backBuffer;
-		backBuffer = tmp;
-
-		backBufferFrames = frontBufferFrames;
-		frontBufferFrames = 0;
+		checkFailure();
 
-		// Allow flushThread to use the back buffer
-		notify();
+		page.raw = BufferUtils.grow(page.raw, maxFramesPerPage * nStates);
+		page.frames = 0;
+		page.compressedLength = 0;
+		return page;
 	}
 
 
-	// Called from flushThread
-	private synchronized void consumePage() throws IOException, InterruptedException {
-		// Tell main thread we're ready to work with the back buffer
-		notify();
+	// Called from main thread
+	private void submitPage() throws IOException {
+		checkFailure();
+
+		if (workers == null) {
+			workers = new Thread[encoders.length];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Worker(i, encoders[i]);
+				workers[i].start();
+			}
+		}
 
-		// Wait for the main thread to release the back buffer
-		while (!done && backBufferFrames == 0) {
-			wait();
+		synchronized (this) {
+			frontPage.seq = submittedPages++;
+			maxQueueDepth = Math.max(maxQueueDepth, getQueueDepth());
 		}
 
-		if (done) {
-			assert backBufferFrames == 0;
-			return;
+		pendingPages.add(frontPage);
+		frontPage = null;
+	}
+
+
+	// Called from worker threads
+	private synchronized void pageCompressed(Page page) {
+		compressedPages.put(page.seq, page);
+
+		// Append all pages that are now in sequence
+		Page next;
+		while (null != (next = compressedPages.remove(writtenPages))) {
+			if (failure == null) {
+				try {
+					out.write(next.compressed, 0, next.compressedLength);
+					index.putPage(next.frames, next.compressedLength);
+				} catch (IOException ex) {
+					// Rethrown in the main thread. Keep recycling pages so
+					// that the producer doesn't wait forever.
+					failure = ex;
+				}
+			}
+			writtenPages++;
+			freePages.add(next);
 		}
 
-		// Do the heavy lifting
-		fullFlush(backBuffer, backBufferFrames);
+		notifyAll();
+	}
+
 
-		// Release back buffer
-		backBufferFrames = 0;
+	private synchronized void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("swap write failed", failure);
+		}
 	}
 
 
 	// Called from main thread
 	public void close() throws IOException, InterruptedException {
-		producePage();
+		if (frontPage != null) {
+			if (frontPage.frames > 0) {
+				submitPage();
+			} else {
+				freePages.add(frontPage);
+				frontPage = null;
+			}
+		}
 
-		synchronized (this) {
-			// wait for flush thread to consume the rest
-			while (backBufferFrames > 0) {
-				wait();
+		try {
+			synchronized (this) {
+				// wait for the workers to write out the rest
+				while (writtenPages < submittedPages) {
+					wait();
+				}
+			}
+		} finally {
+			if (workers != null) {
+				for (int i = 0; i < workers.length; i++) {
+					pendingPages.add(POISON);
+				}
+				for (Thread w: workers) {
+					w.join();
+				}
+				workers = null;
 			}
-			done = true;
-			notify();
 		}
 
-		flushThread.join();
-		flushThread = null;
+		checkFailure();
+		if (trailer) {
+			index.writeTrailer(out);
+		}
 		out.flush();
 		out.close();
 	}
 
+
+	/**
+	 * Stops the workers and discards the pages that haven't been written yet,
+	 * e.g. if the forward pass was interrupted or threw an exception before
+	 * it could close the swap. The output stream is closed; its contents are
+	 * unusable. Does nothing if the swap has been closed properly.
+	 */
+	// Called from main thread
+	public void abort() {
+		if (frontPage != null) {
+			freePages.add(frontPage);
+			frontPage = null;
+		}
+
+		if (workers == null) {
+			// Closed already, or nothing was ever submitted
+			closeQuietly();
+			return;
+		}
+
+		synchronized (this) {
+			// Workers skip compression and writing from now on
+			if (failure == null) {
+				failure = new InterruptedIOException("swap aborted");
+			}
+		}
+
+		for (int i = 0; i < workers.length; i++) {
+			pendingPages.add(POISON);
+		}
+
+		// Pages submitted before the poison are recycled before the workers
+		// stop, so the pipeline is empty once they're gone
+		boolean interrupted = false;
+		for (Thread w: workers) {
+			while (w.isAlive()) {
+				try {
+					w.join();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		}
+		workers = null;
+
+		assert pendingPages.isEmpty();
+		assert compressedPages.isEmpty();
+
+		closeQuietly();
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private void closeQuietly() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException ex) {
+				// The swap is being thrown away anyway
+			}
+		}
+	}
+
 }
@@ -1,116 +1,434 @@
 package fr.loria.synalp.jtrans.graph.swap;
 
 import fr.loria.synalp.jtrans.utils.BufferUtils;
+import fr.loria.synalp.jtrans.graph.BackpointerTable;
 import fr.loria.synalp.jtrans.graph.StateGraph;
 
 import java.io.*;
-import java.util.zip.InflaterInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * Compressed swap reader for Viterbi backtracking.
- *
+ * <p/>
+ * The swap is accessed randomly: swap files are memory-mapped once, and
+ * in-memory swaps are read in place. Inflated pages are kept in a small LRU
+ * cache. Since backtracking walks pages backwards, the page preceding the
+ * one being read is inflated ahead of time on a background thread. Prefetch
+ * threads are shared by all instances, and die once they have been idle for
+ * a while.
+ * <p/>
  * A single instance may be reused for several different graphs to avoid wasting
  * time re-allocating buffers.
  *
  * @see fr.loria.synalp.jtrans.graph.StateGraph
  */
-public class SwapInflater {
+public class SwapInflater implements BackpointerTable {
+
+	/** Default number of inflated pages kept in memory (at least 1) */
+	public static int CACHED_PAGES = 2;
+
+	/** Inflate the previous page in the background by default */
+	public static boolean PREFETCH = true;
+
+	/**
+	 * Maximum size of a single mapping. Swap files larger than this are
+	 * mapped in several segments, each of which contains whole pages.
+	 */
+	static int MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+	private final int cachedPages;
+	private final boolean prefetchEnabled;
 
-	private byte[] pageBuf;
-	private PageIndex.Entry currentPage;
 	private PageIndex index;
-	private InputStreamFactory inputStreamFactory;
 
+	/** Read-only views of the compressed swap */
+	private ByteBuffer[] segments;
+
+	/** Segment containing each page */
+	private int[] pageSegment;
+
+	/** Offset of each page within its segment */
+	private int[] pageOffset;
+
+	/** Inflated pages, least recently used first */
+	private final LinkedHashMap<Integer, byte[]> cache =
+			new LinkedHashMap<Integer, byte[]>(16, .75f, true);
+
+	/** Buffers evicted from the cache, ready for reuse */
+	private final List<byte[]> spareBuffers = new ArrayList<byte[]>();
+
+	/** Page currently being read (fast path) */
+	private PageIndex.Entry currentPage;
+	private byte[] currentData;
+
+	/** Codec of the current swap */
+	private SwapCodec codec;
+
+	/** Used by the calling thread only */
+	private SwapCodec.Decoder decoder;
+	private byte[] compBuf;
 
-	public interface InputStreamFactory {
-		public InputStream make() throws IOException;
+	/** Runs the prefetch tasks of all instances (created lazily) */
+	private static ExecutorService prefetchExecutor;
+
+	/** Background inflation of the page that will most likely be read next */
+	private Future<byte[]> prefetch;
+	private int prefetchPage = -1;
+
+	/** Used by the prefetch thread only */
+	private SwapCodec.Decoder prefetchDecoder;
+	private byte[] prefetchCompBuf;
+
+	private int inflatedPages;
+	private int prefetchHits;
+
+
+	public SwapInflater() {
+		this(CACHED_PAGES, PREFETCH);
 	}
 
 
-	public void init(PageIndex index, InputStreamFactory factory) {
-		this.index = index;
-		inputStreamFactory = factory;
-		currentPage = null;
+	/**
+	 * @param cachedPages number of inflated pages kept in memory
+	 * @param prefetch inflate the previous page on a background thread
+	 */
+	public SwapInflater(int cachedPages, boolean prefetch) {
+		this.cachedPages = Math.max(1, cachedPages);
+		this.prefetchEnabled = prefetch;
 	}
 
 
-	public void init(PageIndex index, final File file) {
-		init(index, new InputStreamFactory() {
-			@Override
-			public InputStream make() throws IOException {
-				return new FileInputStream(file);
+	/**
+	 * Reads the swap from an in-memory buffer. The buffer is not copied.
+	 */
+	public void init(PageIndex index, byte[] buf) {
+		init(index, new ByteBuffer[]{ByteBuffer.wrap(buf)});
+	}
+
+
+	/**
+	 * Memory-maps a swap file.
+	 */
+	public void init(PageIndex index, File file) throws IOException {
+		List<ByteBuffer> list = new ArrayList<ByteBuffer>();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+			 FileChannel channel = raf.getChannel())
+		{
+			// Group whole pages into segments that fit in a single mapping
+			long segStart = 0;
+			long segEnd = 0;
+			for (int p = 0; p < index.getPageCount(); p++) {
+				PageIndex.Entry e = index.getPageByNumber(p);
+				long end = e.offset + e.compressedChunkLength;
+				if (end - segStart > MAX_SEGMENT_BYTES) {
+					list.add(channel.map(FileChannel.MapMode.READ_ONLY,
+							segStart, segEnd - segStart));
+					segStart = segEnd;
+				}
+				segEnd = end;
 			}
-		});
+			list.add(channel.map(FileChannel.MapMode.READ_ONLY,
+					segStart, segEnd - segStart));
+		}
+
+		init(index, list.toArray(new ByteBuffer[list.size()]));
 	}
 
 
-	public void init(PageIndex index, final byte[] buf) {
-		init(index, new InputStreamFactory() {
-			@Override
-			public InputStream make() throws IOException {
-				return new ByteArrayInputStream(buf);
+	/**
+	 * Memory-maps a swap file whose index was appended as a trailer.
+	 * @see SwapDeflater#init(int, OutputStream, boolean)
+	 */
+	public void init(File file) throws IOException {
+		init(PageIndex.readTrailer(file), file);
+	}
+
+
+	private void init(PageIndex index, ByteBuffer[] segments) {
+		cancelPrefetch();
+
+		this.index = index;
+		this.segments = segments;
+
+		if (codec == null || codec.getId() != index.codecId) {
+			codec = SwapCodec.forId(index.codecId);
+			decoder = codec.newDecoder();
+			prefetchDecoder = codec.newDecoder();
+		}
+
+		int pageCount = index.getPageCount();
+		pageSegment = BufferUtils.grow(pageSegment, pageCount);
+		pageOffset = BufferUtils.grow(pageOffset, pageCount);
+
+		int seg = 0;
+		long segStart = 0;
+		for (int p = 0; p < pageCount; p++) {
+			PageIndex.Entry e = index.getPageByNumber(p);
+			if (e.offset + e.compressedChunkLength - segStart
+					> segments[seg].limit())
+			{
+				segStart += segments[seg].limit();
+				seg++;
 			}
-		});
+			pageSegment[p] = seg;
+			pageOffset[p] = (int)(e.offset - segStart);
+		}
+
+		synchronized (spareBuffers) {
+			spareBuffers.addAll(cache.values());
+		}
+		cache.clear();
+		currentPage = null;
+		currentData = null;
+		inflatedPages = 0;
+		prefetchHits = 0;
 	}
 
 
+	@Override
 	public int getFrameCount() {
 		return index.getFrameCount();
 	}
 
 
+	/**
+	 * Number of pages inflated since the last call to init.
+	 */
+	public synchronized int getInflatedPageCount() {
+		return inflatedPages;
+	}
+
+
+	/**
+	 * Number of pages that were ready (or being inflated) in the background
+	 * by the time they were needed.
+	 */
+	public int getPrefetchHitCount() {
+		return prefetchHits;
+	}
+
+
+	@Override
 	public byte getIncomingTransition(int frame, int state) throws IOException {
 		if (currentPage == null || !currentPage.within(frame)) {
-			inflatePage(index.getPage(frame));
+			loadPage(index.getPage(frame));
+		}
+
+		return currentData[index.nStates * (frame-currentPage.frame0) + state];
+	}
+
+
+	private void loadPage(PageIndex.Entry page) throws IOException {
+		byte[] data = cache.get(page.number);
+
+		if (data == null) {
+			data = takePrefetched(page.number);
+		}
+
+		if (data == null) {
+			compBuf = BufferUtils.grow(compBuf, page.compressedChunkLength);
+			data = inflate(page, decoder, compBuf, obtainBuffer(page));
+		}
+
+		if (!cache.containsKey(page.number)) {
+			cache.put(page.number, data);
+			evict();
+		}
+
+		currentPage = page;
+		currentData = data;
+
+		// Backtracking reads pages backwards
+		if (prefetchEnabled && page.number > 0 && prefetch == null &&
+				!cache.containsKey(page.number - 1))
+		{
+			startPrefetch(index.getPageByNumber(page.number - 1));
+		}
+	}
+
+
+	private void evict() {
+		Iterator<Map.Entry<Integer, byte[]>> it = cache.entrySet().iterator();
+		while (cache.size() > cachedPages) {
+			byte[] buf = it.next().getValue();
+			it.remove();
+			synchronized (spareBuffers) {
+				spareBuffers.add(buf);
+			}
+		}
+	}
+
+
+	private byte[] obtainBuffer(PageIndex.Entry page) {
+		byte[] buf = null;
+		synchronized (spareBuffers) {
+			if (!spareBuffers.isEmpty()) {
+				buf = spareBuffers.remove(spareBuffers.size()-1);
+			}
+		}
+		return BufferUtils.grow(buf, page.frameCount * index.nStates);
+	}
+
+
+	/**
+	 * Thread pool shared by all instances. Each instance has at most one
+	 * prefetch task running at a time.
+	 */
+	private static synchronized ExecutorService getPrefetchExecutor() {
+		if (prefetchExecutor == null) {
+			prefetchExecutor = Executors.newCachedThreadPool(
+					new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SwapInflater prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return prefetchExecutor;
+	}
+
+
+	private void startPrefetch(final PageIndex.Entry page) {
+		final byte[] dest = obtainBuffer(page);
+		prefetchPage = page.number;
+		prefetch = getPrefetchExecutor().submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				prefetchCompBuf = BufferUtils.grow(
+						prefetchCompBuf, page.compressedChunkLength);
+				return inflate(page, prefetchDecoder, prefetchCompBuf, dest);
+			}
+		});
+	}
+
+
+	/**
+	 * Waits for the prefetched page if it is the one we need.
+	 * @return the inflated page, or null if another page was prefetched
+	 */
+	private byte[] takePrefetched(int pageNumber) throws IOException {
+		if (prefetch == null) {
+			return null;
 		}
 
-		return pageBuf[idx(frame, state)];
+		byte[] data = awaitPrefetch();
+		if (prefetchPage == pageNumber) {
+			prefetchHits++;
+			prefetch = null;
+			return data;
+		}
+
+		// Not the page we wanted, but it may come in handy later
+		cache.put(prefetchPage, data);
+		prefetch = null;
+		evict();
+		return null;
 	}
 
 
-	private int idx(int frame, int state) {
-		return index.nStates * (frame-currentPage.frame0) + state;
+	private byte[] awaitPrefetch() throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return prefetch.get();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException ex) {
+			prefetch = null;
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			} else {
+				throw new Error(cause);
+			}
+		} finally {
+			if (interrupted) {
+				// Let the caller (e.g. backtrack) handle the interruption
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 
-	private void inflatePage(PageIndex.Entry page) throws IOException {
+	/**
+	 * Makes sure no prefetch task is running before the buffers are reused.
+	 */
+	private void cancelPrefetch() {
+		if (prefetch != null) {
+			try {
+				awaitPrefetch();
+			} catch (IOException ignored) {
+				// The swap is being discarded anyway
+			}
+			prefetch = null;
+		}
+	}
+
+
+	/**
+	 * Inflates a page and undoes the pre-compression filter.
+	 * Safe to call from any thread as long as the decoder and buffers
+	 * aren't shared.
+	 */
+	private byte[] inflate(
+			PageIndex.Entry page,
+			SwapCodec.Decoder dec,
+			byte[] comp,
+			byte[] dest)
+			throws IOException
+	{
 		/*
 		System.out.println("Inflating page " + page.number + " @ offset "
 				+ page.offset + "... ");
 		*/
 
-		assert page != currentPage;
-		currentPage = page;
-
-		int unpackedPageLength = page.frameCount * index.nStates;
-		pageBuf = BufferUtils.grow(pageBuf, unpackedPageLength);
-
-		InputStream is;
+		final int nStates = index.nStates;
+		final int unpackedPageLength = page.frameCount * nStates;
+		final int ccl = page.compressedChunkLength;
 
-		is = inputStreamFactory.make();
-		long skipped = is.skip(page.offset);
-		assert skipped == page.offset;
-		assert page.offset + page.compressedChunkLength <= index.getCompressedBytes();
+		ByteBuffer seg = segments[pageSegment[page.number]];
+		int off = pageOffset[page.number];
 
-		is = new InflaterInputStream(is);
-
-		int rdtot = 0;
-		while (rdtot < unpackedPageLength) {
-			rdtot += is.read(pageBuf, rdtot, unpackedPageLength - rdtot);
+		try {
+			if (seg.hasArray()) {
+				dec.decode(seg.array(), seg.arrayOffset() + off, ccl,
+						dest, unpackedPageLength);
+			} else {
+				ByteBuffer view = seg.duplicate();
+				view.position(off);
+				view.get(comp, 0, ccl);
+				dec.decode(comp, 0, ccl, dest, unpackedPageLength);
+			}
+		} catch (IOException ex) {
+			throw new IOException("corrupt swap page #" + page.number, ex);
 		}
-		is.close();
-		assert rdtot == unpackedPageLength;
 
 		// Inverse filter
-		int f = page.frame0+1;
-		final int fn = page.frame0 + page.frameCount;
-		for (; f < fn; f++) {
-			for (int s = 0; s < index.nStates; s++) {
-				pageBuf[idx(f, s)] += pageBuf[idx(f-1, s)];
-				assert pageBuf[idx(f, s)] >= 0 &&
-						pageBuf[idx(f, s)] < StateGraph.MAX_TRANSITIONS;
-			}
+		for (int i = nStates; i < unpackedPageLength; i++) {
+			dest[i] ^= dest[i - nStates];
+			assert dest[i] >= 0 && dest[i] < StateGraph.MAX_TRANSITIONS;
 		}
+
+		synchronized (this) {
+			inflatedPages++;
+		}
+
+		return dest;
 	}
 
 }
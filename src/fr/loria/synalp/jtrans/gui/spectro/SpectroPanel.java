@@ -12,13 +12,12 @@ import java.awt.image.FilteredImageSource;
 import java.awt.image.ImageFilter;
 import java.awt.image.ReplicateScaleFilter;
 import java.util.ArrayList;
-import java.util.List;
 
 import javax.sound.sampled.AudioInputStream;
 import javax.swing.JPanel;
 
-import edu.cmu.sphinx.frontend.FloatData;
 import fr.loria.synalp.jtrans.gui.JTransGUI;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
 import fr.loria.synalp.jtrans.speechreco.s4.S4mfccBuffer;
 
 public class SpectroPanel extends JPanel {
@@ -31,7 +30,7 @@ public class SpectroPanel extends JPanel {
     /** The zooming factor. */
     protected float zoom = 1.0f;
 
-	List<FloatData> buf;
+	FeatureMatrix buf;
 	
     /**
      * Updates the offset factor used to calculate the greyscale values from the intensities.  This also calculates and
@@ -71,24 +70,23 @@ public class SpectroPanel extends JPanel {
 		}
 
 		// Check bounds if asking for more frames than available
-		endFrame = Math.min(buf.size(), endFrame);
+		endFrame = Math.min(buf.getFrameCount(), endFrame);
 
 		// Run through all the spectra one at a time and convert
 		// them to a log intensity value.
 		double maxIntensity = Double.MIN_VALUE;
 		ArrayList<double[]> intensitiesList = new ArrayList<>();
 
+		final float[] spectrumData = buf.getValues();
+		final int dim = buf.getDimension();
+
 		for (int f = startFrame; f < endFrame; f++) {
-			float[] spectrumData = buf.get(f).getValues();
-			if (spectrumData==null) {
-				System.err.println("null spectrum data at frame " + f);
-				break;
-			}
-			double[] intensities = new double[spectrumData.length];
+			final int offset = buf.offset(f);
+			double[] intensities = new double[dim];
 			for (int i = 0; i < intensities.length; i++) {
 				// A very small intensity is, for all intents
 				// and purposes, the same as 0.
-				intensities[i] = Math.max(Math.log(spectrumData[i]),0.0);
+				intensities[i] = Math.max(Math.log(spectrumData[offset + i]),0.0);
 				if (intensities[i] > maxIntensity) {
 					maxIntensity = intensities[i];
 				}
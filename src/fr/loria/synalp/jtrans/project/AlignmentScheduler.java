@@ -0,0 +1,147 @@
+package fr.loria.synalp.jtrans.project;
+
+import fr.loria.synalp.jtrans.align.Aligner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs independent alignment jobs (i.e. jobs involving disjoint sets of tokens
+ * and bounded by fixed anchors) on a pool of worker threads.
+ * <p/>
+ * Workers only compute alignments (see {@link Aligner#prepare}). The resulting
+ * pending alignments are committed on the calling thread in the order in which
+ * the jobs were submitted, so that the final result does not depend on
+ * thread scheduling.
+ * <p/>
+ * With a single worker, jobs are run and committed immediately on the
+ * calling thread.
+ */
+class AlignmentScheduler {
+
+	/**
+	 * Unit of work. A job may prepare several alignments in sequence.
+	 */
+	interface Job {
+		void run(Sink sink) throws IOException, InterruptedException;
+	}
+
+
+	/**
+	 * Receives the alignments prepared by a job.
+	 */
+	interface Sink {
+		/**
+		 * Prepares an alignment and commits its raw timing to the tokens, so
+		 * that the job may use it to build subsequent alignments.
+		 */
+		void align(Anchor start, Anchor end, List<Token> words)
+				throws IOException, InterruptedException;
+	}
+
+
+	private final Aligner aligner;
+	private final Aligner reference;
+	private final ExecutorService executor;
+	private final List<Future<List<Aligner.PendingAlignment>>> futures =
+			new ArrayList<>();
+
+
+	/**
+	 * @param workers number of worker threads. Falls back to sequential
+	 *                alignment if refinement is enabled, because refining an
+	 *                alignment affects the alignments built upon it.
+	 */
+	AlignmentScheduler(Aligner aligner, Aligner reference, int workers) {
+		this.aligner = aligner;
+		this.reference = reference;
+
+		if (workers > 1 && (aligner.isRefining() ||
+				(null != reference && reference.isRefining())))
+		{
+			System.out.println("Refinement enabled; aligning sequentially");
+			workers = 1;
+		}
+
+		executor = workers > 1? Executors.newFixedThreadPool(workers): null;
+	}
+
+
+	void submit(final Job job) throws IOException, InterruptedException {
+		if (null == executor) {
+			job.run(new Sink() {
+				@Override
+				public void align(Anchor start, Anchor end, List<Token> words)
+						throws IOException, InterruptedException
+				{
+					aligner.align(start, end, words, reference);
+				}
+			});
+			return;
+		}
+
+		futures.add(executor.submit(
+				new Callable<List<Aligner.PendingAlignment>>() {
+			@Override
+			public List<Aligner.PendingAlignment> call() throws Exception {
+				final List<Aligner.PendingAlignment> pendings = new ArrayList<>();
+				job.run(new Sink() {
+					@Override
+					public void align(Anchor start, Anchor end, List<Token> words)
+							throws IOException, InterruptedException
+					{
+						Aligner.PendingAlignment pending =
+								aligner.prepare(start, end, words, reference);
+						if (null != pending) {
+							pending.commitToTokens();
+							pendings.add(pending);
+						}
+					}
+				});
+				return pendings;
+			}
+		}));
+	}
+
+
+	/**
+	 * Waits for all jobs to complete and commits their alignments in
+	 * submission order.
+	 */
+	void finish() throws IOException, InterruptedException {
+		if (null == executor) {
+			return;
+		}
+
+		try {
+			for (Future<List<Aligner.PendingAlignment>> future: futures) {
+				List<Aligner.PendingAlignment> pendings;
+
+				try {
+					pendings = future.get();
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException)cause;
+					} else if (cause instanceof InterruptedException) {
+						throw (InterruptedException)cause;
+					} else if (cause instanceof Error) {
+						throw (Error)cause;
+					} else {
+						throw new Error(cause);
+					}
+				}
+
+				for (Aligner.PendingAlignment pending: pendings) {
+					pending.commit();
+				}
+			}
+		} finally {
+			futures.clear();
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -28,6 +28,13 @@ public abstract class Project {
 	public static Class<? extends Aligner> ALIGNER = ViterbiAligner.class;
 
 
+	/**
+	 * Number of threads used to align independent segments (i.e. segments
+	 * bounded by known anchors) concurrently.
+	 */
+	public static int ALIGNMENT_WORKERS = 1;
+
+
 	public File audioFile;
 	/** Audio file in a suitable format for processing */
 	public transient File convertedAudioFile = null;
@@ -255,9 +262,14 @@ public abstract class Project {
 
 	/**
 	 * Sets the audio file for this project, and converts it to a suitable
-	 * format if needed.
+	 * format if needed. A converted file stays pinned in the cache until the
+	 * audio is changed again (or set to null).
 	 */
 	public void setAudio(File audioFile) {
+		if (convertedAudioFile != null && convertedAudioFile != this.audioFile) {
+			Cache.unpin(convertedAudioFile);
+		}
+
 		this.audioFile = audioFile;
 
 		if (audioFile != null) {
@@ -286,7 +298,8 @@ public abstract class Project {
 
 	/**
 	 * Return an audio file in a suitable format for JTrans. If the original
-	 * file isn't in the right format, convert it and cache it.
+	 * file isn't in the right format, convert it and cache it. The converted
+	 * file is pinned in the cache (see {@link Cache#cachedFile}).
 	 */
 	public static File suitableAudioFile(final File original) {
 		final AudioFormat af;
@@ -47,21 +47,32 @@ public class TrackProject extends Project {
 	{
 		clearAlignment();
 
+		AlignmentScheduler scheduler =
+				new AlignmentScheduler(aligner, reference, ALIGNMENT_WORKERS);
+
 		for (int i = 0; i < speakerCount(); i++) {
 			Iterator<Phrase> itr = phraseIterator(i);
 
 			while (itr.hasNext()) {
-				Phrase phrase = itr.next();
+				final Phrase phrase = itr.next();
 
 				if (!phrase.isFullyAligned()) {
-					aligner.align(
-							phrase.getInitialAnchor(),
-							phrase.getFinalAnchor(),
-							phrase,
-							reference);
+					scheduler.submit(new AlignmentScheduler.Job() {
+						@Override
+						public void run(AlignmentScheduler.Sink sink)
+								throws IOException, InterruptedException
+						{
+							sink.align(
+									phrase.getInitialAnchor(),
+									phrase.getFinalAnchor(),
+									phrase);
+						}
+					});
 				}
 			}
 		}
+
+		scheduler.finish();
 	}
 
 	public void addTrack(String name, List<Phrase> newTrack) {
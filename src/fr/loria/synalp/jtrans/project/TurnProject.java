@@ -199,10 +199,36 @@ public class TurnProject extends Project {
 	 * @throws InterruptedException
 	 */
 	protected static void alignTurnChain(
-			Aligner aligner,
+			final Aligner aligner,
 			List<Turn> turns,
 			boolean overlaps,
-			Aligner reference)
+			final Aligner reference)
+			throws IOException, InterruptedException
+	{
+		alignTurnChain(
+				new AlignmentScheduler.Sink() {
+					@Override
+					public void align(Anchor start, Anchor end, List<Token> words)
+							throws IOException, InterruptedException
+					{
+						aligner.align(start, end, words, reference);
+					}
+				},
+				turns,
+				overlaps);
+	}
+
+
+	/**
+	 * Aligns a chain of turns through an {@link AlignmentScheduler.Sink}.
+	 * The sink must commit each alignment to the tokens before returning,
+	 * as the second pass relies on the timing yielded by the first pass.
+	 * @see #alignTurnChain(Aligner, List, boolean, Aligner)
+	 */
+	static void alignTurnChain(
+			AlignmentScheduler.Sink sink,
+			List<Turn> turns,
+			boolean overlaps)
 			throws IOException, InterruptedException
 	{
 		// Big interleaved sequence
@@ -218,11 +244,10 @@ public class TurnProject extends Project {
 			}
 		}
 
-		aligner.align(
+		sink.align(
 				turns.get(0).start,
 				turns.get(turns.size()-1).end,
-				words,
-				reference);
+				words);
 
 		if (overlaps) {
 			for (Turn turn: turns) {
@@ -236,11 +261,10 @@ public class TurnProject extends Project {
 					if (i == pSpk) {
 						continue;
 					}
-					aligner.align(
+					sink.align(
 							new Anchor(minMax[0]),
 							new Anchor(minMax[1]),
-							turn.spkTokens.get(i),
-							reference);
+							turn.spkTokens.get(i));
 				}
 			}
 		}
@@ -262,10 +286,13 @@ public class TurnProject extends Project {
 	 * and aligned together as if they were one single, long turn.
 	 * <p/>
 	 * Turns with complete timing information are aligned independently.
+	 * <p/>
+	 * Chains and independent turns are bounded by fixed anchors, so they may
+	 * be aligned concurrently (see {@link Project#ALIGNMENT_WORKERS}).
 	 *
 	 * @see TurnProject#alignTurnChain
 	 */
-	public void align(Aligner aligner, boolean overlaps, Aligner reference)
+	public void align(Aligner aligner, final boolean overlaps, Aligner reference)
 			throws IOException, InterruptedException
 	{
 		clearAlignment();
@@ -274,6 +301,9 @@ public class TurnProject extends Project {
 			return;
 		}
 
+		AlignmentScheduler scheduler =
+				new AlignmentScheduler(aligner, reference, ALIGNMENT_WORKERS);
+
 		// Index of the first turn in the current chain of turns lacking
 		// timing information
 		int chainStart = -1;
@@ -286,10 +316,9 @@ public class TurnProject extends Project {
 				assert null == turn.start;
 				if (null != turn.end) {
 					// Stop chaining
-					alignTurnChain(aligner,
+					submitTurnChain(scheduler,
 							turns.subList(chainStart, t + 1),
-							overlaps,
-							reference);
+							overlaps);
 					chainStart = -1;
 				}
 				// Otherwise, keep chaining
@@ -313,10 +342,17 @@ public class TurnProject extends Project {
 					if (!overlaps && i != pSpk) {
 						continue;
 					}
-					aligner.align(
-							turn.start, turn.end,
-							turn.spkTokens.get(i),
-							reference);
+					final Turn fTurn = turn;
+					final int spk = i;
+					scheduler.submit(new AlignmentScheduler.Job() {
+						@Override
+						public void run(AlignmentScheduler.Sink sink)
+								throws IOException, InterruptedException
+						{
+							sink.align(fTurn.start, fTurn.end,
+									fTurn.spkTokens.get(spk));
+						}
+					});
 				}
 			}
 		}
@@ -325,11 +361,29 @@ public class TurnProject extends Project {
 		if (chainStart < 0) {
 			chainStart = turns.size()-1;
 		}
-		alignTurnChain(aligner,
+		submitTurnChain(scheduler,
 				turns.subList(chainStart, turns.size()),
-				overlaps,
-				reference);
+				overlaps);
 		chainStart = -1;
+
+		scheduler.finish();
+	}
+
+
+	private static void submitTurnChain(
+			AlignmentScheduler scheduler,
+			final List<Turn> chain,
+			final boolean overlaps)
+			throws IOException, InterruptedException
+	{
+		scheduler.submit(new AlignmentScheduler.Job() {
+			@Override
+			public void run(AlignmentScheduler.Sink sink)
+					throws IOException, InterruptedException
+			{
+				alignTurnChain(sink, chain, overlaps);
+			}
+		});
 	}
 
 
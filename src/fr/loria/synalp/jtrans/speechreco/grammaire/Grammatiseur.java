@@ -32,7 +32,7 @@ public class Grammatiseur implements Serializable {
 
 	public static Grammatiseur grammatiseur = null;
 
-	public static Grammatiseur getGrammatiseur() {
+	public static synchronized Grammatiseur getGrammatiseur() {
 		if (grammatiseur == null) {
 			grammatiseur = new Grammatiseur();
 			if (!fastLoading)
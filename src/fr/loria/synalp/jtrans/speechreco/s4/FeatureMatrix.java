@@ -0,0 +1,153 @@
+package fr.loria.synalp.jtrans.speechreco.s4;
+
+import edu.cmu.sphinx.frontend.DataProcessor;
+import edu.cmu.sphinx.frontend.FloatData;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Feature frames stored contiguously in a single flat array, frame after
+ * frame (row-major: frames x dimension).
+ * <p/>
+ * Compared to a list of FloatData, this saves an object header and a pointer
+ * indirection per frame, and lets per-frame loops walk memory sequentially.
+ * Hot loops should read {@link #getValues()} directly, starting at
+ * {@link #offset(int)}.
+ */
+public class FeatureMatrix extends FeatureSource {
+
+	private final float[] values;
+	private final int dimension;
+	private final int frameCount;
+	private final int sampleRate;
+
+
+	/**
+	 * @param values frames laid out one after the other. Not copied!
+	 * @param dimension number of values per frame
+	 */
+	public FeatureMatrix(float[] values, int dimension, int sampleRate) {
+		if (dimension <= 0 || values.length % dimension != 0) {
+			throw new IllegalArgumentException("array length (" +
+					values.length + ") isn't a multiple of the dimension (" +
+					dimension + ")");
+		}
+
+		this.values = values;
+		this.dimension = dimension;
+		this.frameCount = values.length / dimension;
+		this.sampleRate = sampleRate;
+	}
+
+
+	/**
+	 * Copies a list of frames into a new matrix.
+	 */
+	public static FeatureMatrix fromFrames(List<FloatData> frames, int dimension) {
+		float[] values = new float[frames.size() * dimension];
+		int sampleRate = frames.isEmpty()? 0: frames.get(0).getSampleRate();
+
+		for (int f = 0; f < frames.size(); f++) {
+			float[] frame = frames.get(f).getValues();
+			assert frame.length == dimension;
+			System.arraycopy(frame, 0, values, f * dimension, dimension);
+		}
+
+		return new FeatureMatrix(values, dimension, sampleRate);
+	}
+
+
+	/**
+	 * Pulls all frames out of a front end into a new matrix.
+	 * @return a matrix, or null if the front end yields no frames
+	 */
+	public static FeatureMatrix read(DataProcessor frontEnd) {
+		FloatData first = S4mfccBuffer.nextFrame(frontEnd);
+		if (null == first) {
+			return null;
+		}
+
+		final int dim = first.getValues().length;
+		float[] values = new float[dim * 1024];
+		int length = 0;
+
+		for (FloatData fd = first; null != fd;
+			 fd = S4mfccBuffer.nextFrame(frontEnd))
+		{
+			if (length + dim > values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			System.arraycopy(fd.getValues(), 0, values, length, dim);
+			length += dim;
+		}
+
+		return new FeatureMatrix(Arrays.copyOf(values, length), dim,
+				first.getSampleRate());
+	}
+
+
+	@Override
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+
+	public int getDimension() {
+		return dimension;
+	}
+
+
+	/**
+	 * Returns the backing array (not a copy!).
+	 */
+	public float[] getValues() {
+		return values;
+	}
+
+
+	/**
+	 * Returns the index of a frame's first value in the backing array.
+	 */
+	public int offset(int frame) {
+		assert frame >= 0 && frame < frameCount;
+		return frame * dimension;
+	}
+
+
+	public float get(int frame, int d) {
+		assert d >= 0 && d < dimension;
+		return values[offset(frame) + d];
+	}
+
+
+	/**
+	 * Returns a view on a frame's values, without copying them.
+	 */
+	public FloatBuffer row(int frame) {
+		return FloatBuffer.wrap(values, offset(frame), dimension).slice();
+	}
+
+
+	/**
+	 * Returns a copy of a frame wrapped in a FloatData for Sphinx.
+	 * Sphinx's senones cache their last score by Data identity, so every call
+	 * yields a new object.
+	 */
+	@Override
+	public FloatData getFrame(int frame) {
+		int offset = offset(frame);
+		float[] copy = Arrays.copyOfRange(values, offset, offset + dimension);
+		long collectTime = frame * 1000L / S4mfccBuffer.FRAMES_PER_SECOND;
+		long firstSample = (long)frame * sampleRate / S4mfccBuffer.FRAMES_PER_SECOND;
+		return new FloatData(copy, sampleRate, collectTime, firstSample);
+	}
+
+
+	@Override
+	public FeatureMatrix toMatrix() {
+		return this;
+	}
+
+}
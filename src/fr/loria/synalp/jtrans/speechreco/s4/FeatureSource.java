@@ -0,0 +1,43 @@
+package fr.loria.synalp.jtrans.speechreco.s4;
+
+import edu.cmu.sphinx.frontend.FloatData;
+
+/**
+ * Random-access source of feature frames (typically MFCCs).
+ * <p/>
+ * Implementations must allow concurrent calls to {@link #getFrame(int)}.
+ */
+public abstract class FeatureSource {
+
+	public abstract int getFrameCount();
+
+
+	/**
+	 * Returns the feature vector of a frame. The returned object must not be
+	 * modified.
+	 */
+	public abstract FloatData getFrame(int frame);
+
+
+	/**
+	 * Returns all frames in a single contiguous matrix.
+	 * Materializes the entire source in memory!
+	 */
+	public FeatureMatrix toMatrix() {
+		final int frames = getFrameCount();
+		if (frames == 0) {
+			return new FeatureMatrix(new float[0], 39, 0);
+		}
+
+		FloatData first = getFrame(0);
+		final int dim = first.getValues().length;
+		float[] values = new float[frames * dim];
+
+		for (int f = 0; f < frames; f++) {
+			System.arraycopy(getFrame(f).getValues(), 0, values, f * dim, dim);
+		}
+
+		return new FeatureMatrix(values, dim, first.getSampleRate());
+	}
+
+}
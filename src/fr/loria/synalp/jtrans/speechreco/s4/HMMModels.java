@@ -27,18 +27,18 @@ public abstract class HMMModels {
 	public static String modelDef = "ESTER2_Train_373f_a01_s01.f04.lexV02_alg01_ter.cd_2500.mdef";
 	public static String datapath = "ESTER2_Train_373f_a01_s01.f04.lexV02_alg01_ter.cd_2500.params.064g/";
 
-	public static LogMath getLogMath() {
+	public static synchronized LogMath getLogMath() {
 		// Sphinx's default log base = 1.0001 (cf. LogMath.java)
 		if (logMath==null) logMath = new LogMath(2,true);
 		return logMath;
 	}
 
-	public static UnitManager getUnitManager() {
+	public static synchronized UnitManager getUnitManager() {
 		if (unitManager==null) unitManager = new UnitManager();
 		return unitManager;
 	}
 
-	public static AcousticModel getAcousticModels() {
+	public static synchronized AcousticModel getAcousticModels() {
 		if (mods==null) {
 			try {
 				UnitManager um = getUnitManager();
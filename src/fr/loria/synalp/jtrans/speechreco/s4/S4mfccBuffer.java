@@ -147,34 +147,30 @@ public class S4mfccBuffer extends BaseDataProcessor {
 
 
 	/**
-	 * Returns all MFCC data until the end of the buffer.
+	 * Pulls the next feature frame out of a front end, skipping signals.
+	 * @return the next frame, or null if the end of the data was reached
 	 */
-	public List<FloatData> getAllData() {
-		List<FloatData> data = new ArrayList<>();
-
-		// Get data
+	public static FloatData nextFrame(DataProcessor frontEnd) {
 		for (;;) {
-			Data d = getData();
-			if (d instanceof DataEndSignal) {
-				break;
+			Data d = frontEnd.getData();
+			if (d == null || d instanceof DataEndSignal) {
+				return null;
 			}
 
 			try {
-				data.add(FloatData.toFloatData(d));
+				return FloatData.toFloatData(d);
 			} catch (IllegalArgumentException ex) {
 				// not a FloatData/DoubleData
 			}
 		}
-
-		System.out.println("Got " + data.size() + " frames");
-		return data;
 	}
 
 
 	/**
 	 * Returns all MFCC data in an audio file.
+	 * @see StreamingFeatureSource
 	 */
-	public static List<FloatData> getAllData(File audio, boolean reco)
+	public static FeatureMatrix getAllData(File audio, boolean reco)
 			throws IOException, UnsupportedAudioFileException
 	{
 		return getAllData(AudioSystem.getAudioInputStream(audio), reco);
@@ -183,28 +179,62 @@ public class S4mfccBuffer extends BaseDataProcessor {
 
 	/**
 	 * Returns all MFCC data in an audio file.
+	 * @return a matrix, or null if the stream yields no frames
+	 * @see StreamingFeatureSource
 	 */
-	public static List<FloatData> getAllData(AudioInputStream audio, boolean withMFCC) {
-		AudioFileDataSource afds = new AudioFileDataSource(3200, null);
-		afds.setInputStream(audio, null);
-		S4mfccBuffer mfcc = new S4mfccBuffer();
-		mfcc.setSource(getFrontEnd(withMFCC, afds));
-		return mfcc.getAllData();
+	public static FeatureMatrix getAllData(AudioInputStream audio, boolean withMFCC) {
+		// Read straight from the front end: going through an S4mfccBuffer
+		// would keep a second copy of every frame in its internal buffer
+		FeatureMatrix data = FeatureMatrix.read(getFrontEnd(audio, withMFCC));
+		System.out.println("Got " + (data == null? 0: data.getFrameCount())
+				+ " frames");
+		return data;
 	}
 
 
 	/**
-	 * Converts a list of FloatData instances to a 2D float array.
+	 * Returns a front end that extracts features from an audio stream.
 	 */
-	public static float[][] to2DArray(List<FloatData> dataList) {
-		float[][] data = new float[dataList.size()][];
+	public static FrontEnd getFrontEnd(AudioInputStream audio, boolean withMFCC) {
+		AudioFileDataSource afds = new AudioFileDataSource(3200, null);
+		afds.setInputStream(audio, null);
+		return getFrontEnd(withMFCC, afds);
+	}
 
-		for (int i = 0; i < data.length; i++) {
-			data[i] = dataList.get(i).getValues();
-			assert 39 == data[i].length;
-		}
 
-		return data;
+	// Front end parameters (see getFrontEnd and getFrontEndSignature)
+	private static final int DITHER_MAX = 2;
+	private static final int BLOCK_MS = 50;
+	private static final double PREEMPHASIS = 0.97;
+	private static final float WINDOW_ALPHA = 0.46f;
+	private static final float WINDOW_MS = 25.625f;
+	private static final int DFT_POINTS = 512;
+	private static final double MEL_MIN_FREQ = 133.33334;
+	private static final double MEL_MAX_FREQ = 6855.4976;
+	private static final int MEL_FILTERS = 40;
+	private static final int CEPSTRUM_SIZE = 13;
+	private static final int CMN_INITIAL_MEAN = 12;
+	private static final int CMN_WINDOW = 100;
+	private static final int CMN_SHIFT = 160;
+	private static final int DELTAS_WINDOW = 3;
+
+
+	/**
+	 * Describes the parameters of the MFCC front end built by getFrontEnd.
+	 * Used to key cached features; any parameter added to the front end must
+	 * also be added here.
+	 */
+	public static String getFrontEndSignature() {
+		return "dither" + DITHER_MAX +
+				"/block" + BLOCK_MS +
+				"/preemph" + PREEMPHASIS +
+				"/hamming" + WINDOW_ALPHA + "," + WINDOW_MS + "," +
+				FRAMES_PER_SECOND +
+				"/dft" + DFT_POINTS +
+				"/mel" + MEL_MIN_FREQ + "," + MEL_MAX_FREQ + "," + MEL_FILTERS +
+				"/dct" + MEL_FILTERS + "," + CEPSTRUM_SIZE +
+				"/cmn" + CMN_INITIAL_MEAN + "," + CMN_WINDOW + "," + CMN_SHIFT +
+				"/deltas" + DELTAS_WINDOW;
 	}
 
 
@@ -216,17 +246,17 @@ public class S4mfccBuffer extends BaseDataProcessor {
 			}
 		}
 
-		frontEndList.add(new Dither(2,false,Double.MAX_VALUE,-Double.MAX_VALUE));
-		frontEndList.add(new DataBlocker(50));
-		frontEndList.add(new Preemphasizer(0.97));
-		frontEndList.add(new RaisedCosineWindower(0.46f, 25.625f, FRAMES_PER_SECOND/10f));
-		frontEndList.add(new DiscreteFourierTransform(512, false));
+		frontEndList.add(new Dither(DITHER_MAX,false,Double.MAX_VALUE,-Double.MAX_VALUE));
+		frontEndList.add(new DataBlocker(BLOCK_MS));
+		frontEndList.add(new Preemphasizer(PREEMPHASIS));
+		frontEndList.add(new RaisedCosineWindower(WINDOW_ALPHA, WINDOW_MS, FRAMES_PER_SECOND/10f));
+		frontEndList.add(new DiscreteFourierTransform(DFT_POINTS, false));
 
 		if (withMFCC) {
-			frontEndList.add(new MelFrequencyFilterBank(133.33334, 6855.4976, 40));
-			frontEndList.add(new DiscreteCosineTransform(40, 13));
-			frontEndList.add(new LiveCMN(12, 100, 160));
-			frontEndList.add(new DeltasFeatureExtractor(3));
+			frontEndList.add(new MelFrequencyFilterBank(MEL_MIN_FREQ, MEL_MAX_FREQ, MEL_FILTERS));
+			frontEndList.add(new DiscreteCosineTransform(MEL_FILTERS, CEPSTRUM_SIZE));
+			frontEndList.add(new LiveCMN(CMN_INITIAL_MEAN, CMN_WINDOW, CMN_SHIFT));
+			frontEndList.add(new DeltasFeatureExtractor(DELTAS_WINDOW));
 		}
 
 		return new FrontEnd(frontEndList);
@@ -0,0 +1,306 @@
+package fr.loria.synalp.jtrans.speechreco.s4;
+
+import edu.cmu.sphinx.frontend.*;
+import fr.loria.synalp.jtrans.utils.Cache;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Feature source that does not keep the whole recording on the heap.
+ * <p/>
+ * The front end is causal (e.g. cepstral mean normalization depends on past
+ * frames), so frames can't be recomputed independently. Instead, the front
+ * end is run once and its output is streamed to a feature file as it is
+ * produced. The feature file is then memory-mapped, and frames are read on
+ * demand, which suits the access pattern of Viterbi over a
+ * [startFrame, endFrame] window.
+ * <p/>
+ * Feature files of audio files are kept in the cache (see
+ * {@link #forAudio(File)}), so that subsequent alignments of the same audio
+ * skip feature extraction entirely.
+ * <p/>
+ * Feature file format (big endian): magic number, format version, frame
+ * count, dimension, sample rate (all 32-bit ints); cache key (see
+ * {@link Cache#getKey}, all zeros outside the cache); followed by
+ * frameCount x dimension 32-bit floats, frame after frame.
+ */
+public class StreamingFeatureSource extends FeatureSource {
+
+	public static final int MAGIC = 0x4A54464D; // "JTFM"
+	public static final int VERSION = 2;
+	public static final int HEADER_BYTES = 5 * 4 + Cache.KEY_BYTES;
+
+	private final FloatBuffer floats;
+	private final int frameCount;
+	private final int dimension;
+	private final int sampleRate;
+
+
+	/**
+	 * Maps a feature file.
+	 * @throws IOException if the file is invalid or truncated
+	 */
+	public StreamingFeatureSource(File featureFile) throws IOException {
+		this(featureFile, null);
+	}
+
+
+	/**
+	 * Maps a feature file and checks its cache key.
+	 * @param key expected cache key, or null to skip the check
+	 * @throws IOException if the file is invalid or truncated, or if its key
+	 * doesn't match
+	 */
+	public StreamingFeatureSource(File featureFile, byte[] key)
+			throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(featureFile, "r")) {
+			if (raf.length() < HEADER_BYTES ||
+					raf.readInt() != MAGIC ||
+					raf.readInt() != VERSION)
+			{
+				throw new IOException("not a feature file: " + featureFile);
+			}
+
+			frameCount = raf.readInt();
+			dimension = raf.readInt();
+			sampleRate = raf.readInt();
+
+			byte[] fileKey = new byte[Cache.KEY_BYTES];
+			raf.readFully(fileKey);
+			if (key != null && !Arrays.equals(key, fileKey)) {
+				throw new IOException("cache key mismatch: " + featureFile);
+			}
+
+			long dataBytes = 4L * frameCount * dimension;
+			if (frameCount < 0 || dimension < 0 ||
+					raf.length() != HEADER_BYTES + dataBytes)
+			{
+				throw new IOException("truncated feature file: " + featureFile);
+			}
+
+			if (dataBytes > Integer.MAX_VALUE) {
+				throw new IOException("feature file too large to map: "
+						+ featureFile);
+			}
+
+			MappedByteBuffer mapped = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, HEADER_BYTES, dataBytes);
+			mapped.order(ByteOrder.BIG_ENDIAN); // same as DataOutputStream
+			floats = mapped.asFloatBuffer();
+		}
+	}
+
+
+	/**
+	 * Returns the features of an audio file, extracting them only if they
+	 * aren't in the cache yet.
+	 */
+	public static StreamingFeatureSource forAudio(File audio)
+			throws IOException, UnsupportedAudioFileException
+	{
+		File cacheFile = Cache.getCacheFile("mfcc", "feat",
+				audio, S4mfccBuffer.getFrontEndSignature());
+
+		// Once mapped, the features remain readable even if the file is evicted
+		Cache.pin(cacheFile);
+		try {
+			return forAudio(audio, cacheFile);
+		} finally {
+			Cache.unpin(cacheFile);
+		}
+	}
+
+
+	private static StreamingFeatureSource forAudio(File audio, File cacheFile)
+			throws IOException, UnsupportedAudioFileException
+	{
+		if (Cache.lookup(cacheFile)) {
+			try {
+				StreamingFeatureSource source = new StreamingFeatureSource(
+						cacheFile, Cache.getKey(cacheFile));
+				System.out.println("Features read from cache: " + cacheFile
+						+ " (" + source.getFrameCount() + " frames)");
+				return source;
+			} catch (IOException ex) {
+				System.err.println("WARNING: invalid feature cache file, " +
+						"extracting features again. " + ex);
+				Cache.invalidate(cacheFile);
+			}
+		}
+
+		DataProcessor frontEnd = S4mfccBuffer.getFrontEnd(
+				AudioSystem.getAudioInputStream(audio), true);
+		StreamingFeatureSource source = extract(
+				frontEnd, cacheFile, Cache.getKey(cacheFile));
+		Cache.written(cacheFile);
+		return source;
+	}
+
+
+	/**
+	 * Pulls all frames out of a front end into a feature file, then maps it.
+	 * The file is written to a temporary file in the same directory and
+	 * atomically moved into place once complete, so that readers (possibly
+	 * in other JVMs) never see a partial file.
+	 */
+	public static StreamingFeatureSource extract(
+			DataProcessor frontEnd,
+			File featureFile)
+			throws IOException
+	{
+		return extract(frontEnd, featureFile, null);
+	}
+
+
+	/**
+	 * Pulls all frames out of a front end into a feature file, then maps it.
+	 * @param key cache key to store in the header (null for none)
+	 */
+	public static StreamingFeatureSource extract(
+			DataProcessor frontEnd,
+			File featureFile,
+			byte[] key)
+			throws IOException
+	{
+		File dir = featureFile.getAbsoluteFile().getParentFile();
+		File partial = File.createTempFile(featureFile.getName(), ".part", dir);
+
+		try {
+			int count = writeFeatures(frontEnd, partial, key);
+
+			Files.move(partial.toPath(), featureFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+
+			System.out.println("Got " + count + " frames");
+		} finally {
+			// No-op if the file has been moved into place
+			partial.delete();
+		}
+
+		return new StreamingFeatureSource(featureFile, key);
+	}
+
+
+	/**
+	 * Writes all frames of a front end to a feature file.
+	 * @return frame count
+	 */
+	private static int writeFeatures(
+			DataProcessor frontEnd,
+			File file,
+			byte[] key)
+			throws IOException
+	{
+		int count = 0;
+		int dim = -1;
+		int rate = 0;
+
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file))))
+		{
+			// Frame count, dimension and sample rate are patched in below
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.write(key != null? key: new byte[Cache.KEY_BYTES]);
+
+			for (;;) {
+				FloatData fd = S4mfccBuffer.nextFrame(frontEnd);
+				if (null == fd) {
+					break;
+				}
+
+				float[] values = fd.getValues();
+				if (dim < 0) {
+					dim = values.length;
+					rate = fd.getSampleRate();
+				} else if (dim != values.length) {
+					throw new IOException("inconsistent frame dimension at "
+							+ "frame " + count);
+				}
+
+				for (float v: values) {
+					out.writeFloat(v);
+				}
+				count++;
+			}
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(8);
+			raf.writeInt(count);
+			raf.writeInt(Math.max(0, dim));
+			raf.writeInt(rate);
+		}
+
+		return count;
+	}
+
+
+	@Override
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+
+	public int getDimension() {
+		return dimension;
+	}
+
+
+	@Override
+	public FloatData getFrame(int frame) {
+		if (frame < 0 || frame >= frameCount) {
+			throw new IndexOutOfBoundsException("frame " + frame);
+		}
+
+		float[] values = new float[dimension];
+		read(frame, values);
+
+		long collectTime = frame * 1000L / S4mfccBuffer.FRAMES_PER_SECOND;
+		long firstSample = (long)frame * sampleRate / S4mfccBuffer.FRAMES_PER_SECOND;
+		return new FloatData(values, sampleRate, collectTime, firstSample);
+	}
+
+
+	/**
+	 * Copies consecutive frames from the mapped file into an array.
+	 * @param dest destination array; its length must be a multiple of the
+	 *             dimension
+	 */
+	private void read(int firstFrame, float[] dest) {
+		// Buffer positions aren't thread-safe; work on a private view
+		FloatBuffer view = floats.duplicate();
+		view.position(firstFrame * dimension);
+		view.get(dest);
+	}
+
+
+	/**
+	 * Copies the entire mapped file at once.
+	 */
+	@Override
+	public FeatureMatrix toMatrix() {
+		if (frameCount == 0) {
+			return super.toMatrix();
+		}
+
+		float[] values = new float[frameCount * dimension];
+		read(0, values);
+		return new FeatureMatrix(values, dimension, sampleRate);
+	}
+
+}
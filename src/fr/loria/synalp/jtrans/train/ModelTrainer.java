@@ -4,15 +4,19 @@ import edu.cmu.sphinx.linguist.acoustic.HMMState;
 import edu.cmu.sphinx.util.LogMath;
 import fr.loria.synalp.jtrans.JTrans;
 import fr.loria.synalp.jtrans.project.Token;
-import fr.loria.synalp.jtrans.utils.BinarySegmentation;
+import fr.loria.synalp.jtrans.utils.FrameSegmentation;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
 import fr.loria.synalp.jtrans.speechreco.s4.HMMModels;
 import fr.loria.synalp.jtrans.align.Alignment;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
 
 import static fr.loria.synalp.jtrans.graph.StatePool.isSilenceState;
 
@@ -30,6 +34,27 @@ import static fr.loria.synalp.jtrans.graph.StatePool.isSilenceState;
  * In this class, "states" can be any Object; they don't actually need to be
  * HMMStates from Sphinx. State objects just serve as identifiers. You can use
  * unique Strings or Integers as state identifiers if you like.
+ * <p/>
+ * Once sealed, a trainer may be updated incrementally: frames may be assigned
+ * to other states with {@link #relearnStateAtFrame}, which adjusts the sums
+ * of the affected models. {@link #update} then recomputes the parameters of
+ * these models, and the likelihoods of the frames assigned to them only.
+ * <p/>
+ * States are interned to dense model IDs the first time they are seen. Model
+ * parameters are stored in flat arrays indexed by model ID (struct of arrays,
+ * FRAME_DATA_LENGTH values per model), with precomputed inverse variances and
+ * log-determinants, so that scoring a frame is a straight loop over primitive
+ * arrays. On long recordings, frames are scored on several threads.
+ * <p/>
+ * Per-frame storage is sparse: frames are grouped in fixed-size blocks, which
+ * are only allocated once a frame in them has been learned. A trainer for a
+ * speaker who only talks for a few minutes of a long recording therefore
+ * doesn't need timelines spanning the whole recording.
+ * <p/>
+ * Before a trainer is sealed, learning a frame only assigns it to its model.
+ * The sums are accumulated by {@link #seal}, so that several trainers may
+ * accumulate their models concurrently (one thread per trainer) without
+ * locking.
  */
 public class ModelTrainer {
 
@@ -39,86 +64,83 @@ public class ModelTrainer {
 	/** Keep variance values from getting too close to zero. */
 	public static final double MIN_VARIANCE = .001;
 
+	/** Number of threads used to score frames in {@link #seal} */
+	public static int SCORING_THREADS = Runtime.getRuntime().availableProcessors();
 
-	private final float[][] data;
-	private final LogMath lm = HMMModels.getLogMath();
-
-	private final int nFrames;
-	private final Map<Object, Model> modelMap = new HashMap<>();
-	private final Object[] compoundTimeline;
-	private final double[] likelihood;   // must be zeroed before use
-	private boolean sealed = false;
-
-
-	static class Model {
-		int nMatchF;
-		double[] sum    = new double[FRAME_DATA_LENGTH];
-		double[] sumSq  = new double[FRAME_DATA_LENGTH];
-		double[] avg    = new double[FRAME_DATA_LENGTH];
-		double[] var    = new double[FRAME_DATA_LENGTH];
-		double detVar;
-		boolean sealed = false;
-
-		void clear() {
-			nMatchF = 0;
-			Arrays.fill(sum, 0);
-			Arrays.fill(sumSq, 0);
-			sealed = false;
-		}
+	/** Don't bother splitting smaller frame ranges across threads */
+	static int MIN_FRAMES_PER_THREAD = 20000;
 
-		void learnFrame(float[] frameData) {
-			assert !sealed;
+	private static ExecutorService executor;
 
-			nMatchF++;
+	private static final int D = FRAME_DATA_LENGTH;
 
-			for (int d = 0; d < FRAME_DATA_LENGTH; d++) {
-				float x = frameData[d];
-				sum[d] += x;
-				sumSq[d] += x * x;
-			}
-		}
+	/** Frames per block of per-frame storage (log2) */
+	static final int BLOCK_BITS = 12;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
 
-		void seal() {
-			assert !sealed;
 
-			detVar = 1;
-			if (nMatchF == 0) {
-				Arrays.fill(avg, 0);
-				Arrays.fill(var, 0);
-				return;
-			}
+	private final FeatureMatrix data;
+	private final LogMath lm = HMMModels.getLogMath();
+	private final double logTwoPi = lm.linearToLog(2 * Math.PI);
 
-			for (int d = 0; d < FRAME_DATA_LENGTH; d++) {
-				double a = sum[d] / nMatchF;
-				avg[d] = a;
-				var[d] = Math.max(MIN_VARIANCE, sumSq[d] / nMatchF - a*a);
-				detVar *= var[d];
-			}
+	private final int nFrames;
+	private boolean sealed = false;
 
-			sealed = true;
-		}
+	/** Sum of the likelihoods of all frames */
+	private double totalLikelihood;
 
-		double frameLikelihood(float[] frameData, LogMath lm, double logTwoPi) {
-			assert sealed;
-			assert detVar > 0;
+	/** Dense model ID of each state */
+	private final Map<Object, Integer> modelIds = new HashMap<>();
 
-			double dot = 0;
-			for (int d = 0; d < FRAME_DATA_LENGTH; d++) {
-				double numer = frameData[d] - avg[d];
-				dot += numer * numer / var[d];
-			}
+	/** State of each model ID */
+	private final List<Object> states = new ArrayList<>();
 
-			// -log(1 / sqrt(2 pi detVar)) = -(log(2 pi)/2 + log(detVar)/2)
-			return -.5 * (dot + logTwoPi + lm.linearToLog(detVar));
+	/**
+	 * Model ID of each frame (-1 if the frame hasn't been learned), by block.
+	 * Null blocks contain no learned frames.
+	 */
+	private final int[][] compoundTimeline;
+
+	/** Likelihood of each frame, by block (allocated with compoundTimeline) */
+	private final double[][] likelihood;
+
+	/** Position of each frame in the frame list of its model, by block */
+	private final int[][] framePos;
+
+	// Model parameters, indexed by model ID (times D for per-dimension arrays)
+	private int modelCapacity = 0;
+	private int[] counts;
+	private double[] sum;
+	private double[] sumSq;
+	private double[] avg;
+	private double[] var;
+	private double[] invVar;
+	/** log(2 pi) + log(detVar) */
+	private double[] logNorm;
+
+	/** Frames assigned to each model (the first counts[m] are valid) */
+	private int[][] modelFrames;
+
+	/** Models modified since the last call to seal() or update() */
+	private boolean[] dirty;
+	private int[] dirtyModels = new int[16];
+	private int dirtyCount;
+
+
+	public ModelTrainer(FeatureMatrix data) {
+		if (data.getDimension() != FRAME_DATA_LENGTH) {
+			throw new IllegalArgumentException("frames must have " +
+					FRAME_DATA_LENGTH + " values");
 		}
-	}
-
 
-	public ModelTrainer(float[][] data) {
 		this.data = data;
-		nFrames = data.length;
-		likelihood = new double[nFrames];
-		compoundTimeline = new Object[nFrames];
+		nFrames = data.getFrameCount();
+		int blocks = (nFrames + BLOCK_SIZE - 1) >>> BLOCK_BITS;
+		compoundTimeline = new int[blocks][];
+		likelihood = new double[blocks][];
+		framePos = new int[blocks][];
+		growModels(16);
 		clear();
 	}
 
@@ -132,28 +154,73 @@ public class ModelTrainer {
 	}
 
 
+	private void growModels(int capacity) {
+		modelCapacity = capacity;
+		counts = Arrays.copyOf(counts == null? new int[0]: counts, capacity);
+		logNorm = copyOf(logNorm, capacity);
+		sum = copyOf(sum, capacity * D);
+		sumSq = copyOf(sumSq, capacity * D);
+		avg = copyOf(avg, capacity * D);
+		var = copyOf(var, capacity * D);
+		invVar = copyOf(invVar, capacity * D);
+		dirty = Arrays.copyOf(dirty == null? new boolean[0]: dirty, capacity);
+
+		int[][] frames = new int[capacity][];
+		if (modelFrames != null) {
+			System.arraycopy(modelFrames, 0, frames, 0, modelFrames.length);
+		}
+		for (int m = 0; m < capacity; m++) {
+			if (frames[m] == null) {
+				frames[m] = new int[16];
+			}
+		}
+		modelFrames = frames;
+	}
+
+
+	private static double[] copyOf(double[] array, int length) {
+		return array == null? new double[length]: Arrays.copyOf(array, length);
+	}
+
+
 	/**
 	 * Clears all models, making this trainer available for learning again.
 	 * This way, you can reuse this trainer instead of wasting time
 	 * re-allocating memory for a new one.
 	 */
 	public void clear() {
-		Arrays.fill(likelihood, 0);
-		Arrays.fill(compoundTimeline, null);
-		for (Model m: modelMap.values()) {
-			m.clear();
+		// Keep the blocks around: the same frames will most likely be
+		// learned again
+		for (int b = 0; b < compoundTimeline.length; b++) {
+			if (null != compoundTimeline[b]) {
+				Arrays.fill(compoundTimeline[b], -1);
+				Arrays.fill(likelihood[b], 0);
+			}
 		}
+		Arrays.fill(counts, 0);
+		Arrays.fill(sum, 0);
+		Arrays.fill(sumSq, 0);
+		Arrays.fill(dirty, false);
+		dirtyCount = 0;
+		totalLikelihood = 0;
 		sealed = false;
 	}
 
 
-	Model getModel(Object state) {
-		Model m = modelMap.get(state);
-		if (null == m) {
-			m = new Model();
-			modelMap.put(state, m);
+	/**
+	 * Returns the dense ID of a state's model, creating the model if needed.
+	 */
+	private int modelId(Object state) {
+		Integer id = modelIds.get(state);
+		if (null == id) {
+			id = states.size();
+			modelIds.put(state, id);
+			states.add(state);
+			if (id == modelCapacity) {
+				growModels(2 * modelCapacity);
+			}
 		}
-		return m;
+		return id;
 	}
 
 
@@ -175,8 +242,9 @@ public class ModelTrainer {
 			return;
 		}
 
+		Alignment.Cursor cursor = alignment.cursor();
 		for (int f = seg.getStartFrame(); f <= seg.getEndFrame(); f++) {
-			HMMState state = alignment.getStateAtFrame(f);
+			HMMState state = cursor.getStateAtFrame(f);
 			if (!isSilenceState(state)) {
 				learnStateAtFrame(state, f);
 			}
@@ -194,11 +262,253 @@ public class ModelTrainer {
 			throw new IllegalStateException("can't learn if sealed");
 		}
 
-		assert null == compoundTimeline[f]
+		assert -1 == getModelAtFrame(f)
 				: "frame " + f + " already processed";
 
-		getModel(state).learnFrame(data[f]);
-		compoundTimeline[f] = state;
+		// Sums are accumulated when sealing
+		int m = modelId(state);
+		assignFrame(m, f);
+	}
+
+
+	private int getModelAtFrame(int f) {
+		int[] block = compoundTimeline[f >>> BLOCK_BITS];
+		return null == block? -1: block[f & BLOCK_MASK];
+	}
+
+
+	private void allocateBlock(int b) {
+		if (null == compoundTimeline[b]) {
+			int[] block = new int[BLOCK_SIZE];
+			Arrays.fill(block, -1);
+			compoundTimeline[b] = block;
+			likelihood[b] = new double[BLOCK_SIZE];
+			framePos[b] = new int[BLOCK_SIZE];
+		}
+	}
+
+
+	/**
+	 * Appends a frame to the frame list of a model.
+	 */
+	private void assignFrame(int m, int f) {
+		int b = f >>> BLOCK_BITS;
+		allocateBlock(b);
+
+		int i = counts[m]++;
+		if (i == modelFrames[m].length) {
+			modelFrames[m] = Arrays.copyOf(modelFrames[m], 2 * i);
+		}
+		modelFrames[m][i] = f;
+		framePos[b][f & BLOCK_MASK] = i;
+		compoundTimeline[b][f & BLOCK_MASK] = m;
+	}
+
+
+	private void accumulateFrame(int m, int f) {
+		final float[] values = data.getValues();
+		final int offset = data.offset(f);
+		final int base = m * D;
+
+		for (int d = 0; d < D; d++) {
+			float x = values[offset + d];
+			sum[base + d] += x;
+			sumSq[base + d] += x * x;
+		}
+	}
+
+
+	private void unlearnFrame(int m, int f) {
+		assert counts[m] > 0;
+
+		final float[] values = data.getValues();
+		final int offset = data.offset(f);
+		final int base = m * D;
+
+		int n = --counts[m];
+
+		if (n == 0) {
+			// Don't let rounding errors accumulate
+			Arrays.fill(sum, base, base + D, 0);
+			Arrays.fill(sumSq, base, base + D, 0);
+		} else {
+			for (int d = 0; d < D; d++) {
+				float x = values[offset + d];
+				sum[base + d] -= x;
+				sumSq[base + d] -= x * x;
+			}
+		}
+
+		// Move the last frame of the list into the hole
+		int last = modelFrames[m][n];
+		int i = framePos[f >>> BLOCK_BITS][f & BLOCK_MASK];
+		modelFrames[m][i] = last;
+		framePos[last >>> BLOCK_BITS][last & BLOCK_MASK] = i;
+		compoundTimeline[f >>> BLOCK_BITS][f & BLOCK_MASK] = -1;
+	}
+
+
+	/**
+	 * Computes the mean, inverse variance and normalization term of a model.
+	 */
+	private void sealModel(int m) {
+		final int n = counts[m];
+		final int base = m * D;
+
+		if (n == 0) {
+			Arrays.fill(avg, base, base + D, 0);
+			Arrays.fill(var, base, base + D, 0);
+			Arrays.fill(invVar, base, base + D, 0);
+			logNorm[m] = logTwoPi;
+			return;
+		}
+
+		double detVar = 1;
+		for (int d = 0; d < D; d++) {
+			double a = sum[base + d] / n;
+			double v = Math.max(MIN_VARIANCE, sumSq[base + d] / n - a*a);
+			avg[base + d] = a;
+			var[base + d] = v;
+			invVar[base + d] = 1 / v;
+			detVar *= v;
+		}
+
+		assert detVar > 0;
+		logNorm[m] = logTwoPi + lm.linearToLog(detVar);
+	}
+
+
+	/**
+	 * -log(1 / sqrt(2 pi detVar)) = -(log(2 pi)/2 + log(detVar)/2)
+	 */
+	private double frameLikelihood(int m, float[] values, int offset) {
+		final int base = m * D;
+		double dot = 0;
+		for (int d = 0; d < D; d++) {
+			double diff = values[offset + d] - avg[base + d];
+			dot += diff * diff * invVar[base + d];
+		}
+		return -.5 * (dot + logNorm[m]);
+	}
+
+
+	/**
+	 * Computes the likelihoods of a range of frames.
+	 * @return number of frames that have been learned in this range
+	 */
+	private int scoreFrames(int from, int to) {
+		final float[] values = data.getValues();
+		int effectiveFrames = 0;
+
+		for (int f = from; f < to; ) {
+			int b = f >>> BLOCK_BITS;
+			int end = Math.min(to, (b + 1) << BLOCK_BITS);
+			int[] timeline = compoundTimeline[b];
+			double[] lhd = likelihood[b];
+
+			if (null != timeline) {
+				for (; f < end; f++) {
+					int m = timeline[f & BLOCK_MASK];
+					if (m < 0) {
+						lhd[f & BLOCK_MASK] = 0;
+					} else {
+						lhd[f & BLOCK_MASK] =
+								frameLikelihood(m, values, data.offset(f));
+						effectiveFrames++;
+					}
+				}
+			}
+
+			f = end;
+		}
+
+		return effectiveFrames;
+	}
+
+
+	/**
+	 * Assigns a frame to another state in a sealed trainer. The likelihoods
+	 * are only valid again after a call to {@link #update}.
+	 * @param state new state identifier, or null if the frame must not be
+	 *              used for training anymore
+	 * @param f frame number
+	 */
+	public void relearnStateAtFrame(Object state, int f) {
+		if (!sealed) {
+			throw new IllegalStateException("can't relearn unless sealed");
+		}
+
+		int old = getModelAtFrame(f);
+		int m = null == state? -1: modelId(state);
+		if (old == m) {
+			return;
+		}
+
+		if (old >= 0) {
+			markDirty(old);
+			unlearnFrame(old, f);
+
+			double[] lhd = likelihood[f >>> BLOCK_BITS];
+			totalLikelihood -= lhd[f & BLOCK_MASK];
+			lhd[f & BLOCK_MASK] = 0;
+		}
+
+		if (m >= 0) {
+			markDirty(m);
+			assignFrame(m, f);
+			accumulateFrame(m, f);
+		}
+	}
+
+
+	/**
+	 * Recomputes the models modified by {@link #relearnStateAtFrame} and the
+	 * likelihoods of the frames assigned to them.
+	 */
+	public void update() {
+		if (!sealed) {
+			throw new IllegalStateException("can't update unless sealed");
+		}
+
+		final float[] values = data.getValues();
+
+		for (int i = 0; i < dirtyCount; i++) {
+			int m = dirtyModels[i];
+			sealModel(m);
+			dirty[m] = false;
+
+			int[] frames = modelFrames[m];
+			for (int j = 0; j < counts[m]; j++) {
+				int f = frames[j];
+				double[] lhd = likelihood[f >>> BLOCK_BITS];
+				double l = frameLikelihood(m, values, data.offset(f));
+				totalLikelihood += l - lhd[f & BLOCK_MASK];
+				lhd[f & BLOCK_MASK] = l;
+			}
+		}
+
+		dirtyCount = 0;
+	}
+
+
+	private void markDirty(int m) {
+		if (!dirty[m]) {
+			dirty[m] = true;
+			if (dirtyCount == dirtyModels.length) {
+				dirtyModels = Arrays.copyOf(dirtyModels, 2 * dirtyCount);
+			}
+			dirtyModels[dirtyCount++] = m;
+		}
+	}
+
+
+	/**
+	 * Returns the state that a frame has been learned for.
+	 * @return null if the frame hasn't been used for training
+	 */
+	public Object getStateAtFrame(int f) {
+		int m = getModelAtFrame(f);
+		return m < 0? null: states.get(m);
 	}
 
 
@@ -211,75 +521,164 @@ public class ModelTrainer {
 			throw new IllegalStateException("can't seal if already sealed");
 		}
 
-		// avg, var, detVar
-		for (Model m: modelMap.values()) {
-			m.seal();
+		// sums, avg, var, detVar
+		int learnedFrames = 0;
+		for (int m = 0; m < states.size(); m++) {
+			int[] frames = modelFrames[m];
+			for (int j = 0; j < counts[m]; j++) {
+				accumulateFrame(m, frames[j]);
+			}
+			learnedFrames += counts[m];
+			sealModel(m);
+			dirty[m] = false;
 		}
-
-		final double logTwoPi = lm.linearToLog(2 * Math.PI);
-
-		int effectiveFrames = 0;
+		dirtyCount = 0;
 
 		// likelihood for each frame
-		for (int f = 0; f < nFrames; f++) {
-			Object state = compoundTimeline[f];
-
-			if (null == state) {
-				likelihood[f] = 0;
-			} else {
-				likelihood[f] = modelMap.get(state)
-						.frameLikelihood(data[f], lm, logTwoPi);
-				effectiveFrames++;
+		int threads = Math.min(SCORING_THREADS,
+				learnedFrames / MIN_FRAMES_PER_THREAD);
+		int effectiveFrames = threads > 1
+				? scoreFramesInParallel(threads)
+				: scoreFrames(0, nFrames);
+
+		// Sum in frame order
+		totalLikelihood = 0;
+		for (double[] lhd: likelihood) {
+			if (null != lhd) {
+				for (int i = 0; i < BLOCK_SIZE; i++) {
+					totalLikelihood += lhd[i];
+				}
 			}
 		}
-
 		sealed = true;
 
 		return effectiveFrames;
 	}
 
 
+	private int scoreFramesInParallel(int threads) {
+		List<Callable<Integer>> tasks = new ArrayList<>(threads);
+		for (int t = 0; t < threads; t++) {
+			final int from = (int)((long)nFrames * t / threads);
+			final int to = (int)((long)nFrames * (t+1) / threads);
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return scoreFrames(from, to);
+				}
+			});
+		}
+
+		int effectiveFrames = 0;
+		try {
+			for (Future<Integer> future: getExecutor().invokeAll(tasks)) {
+				effectiveFrames += future.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new Error(ex);
+		} catch (ExecutionException ex) {
+			throw new Error(ex.getCause());
+		}
+		return effectiveFrames;
+	}
+
+
+	/**
+	 * Thread pool shared by all trainers. Unbounded, so that tasks running on
+	 * it (e.g. sealing a speaker's trainer) may submit tasks of their own.
+	 */
+	static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ModelTrainer worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+
 	/**
 	 * Returns time stretches where this trainer has not been used.
 	 */
-	public BinarySegmentation getNullStencil() {
-		// TODO: not efficient
+	public FrameSegmentation getNullStencil() {
+		FrameSegmentation.Builder builder = new FrameSegmentation.Builder();
 
-		BinarySegmentation bseg = new BinarySegmentation();
+		int runStart = -1;
+		for (int f = 0; f < nFrames; f++) {
+			int[] block = compoundTimeline[f >>> BLOCK_BITS];
+			boolean unused = null == block || -1 == block[f & BLOCK_MASK];
+
+			if (unused && runStart < 0) {
+				runStart = f;
+			} else if (!unused && runStart >= 0) {
+				builder.add(runStart, f - runStart);
+				runStart = -1;
+			}
 
-		for (int f = 0; f < compoundTimeline.length; f++) {
-			if (null == compoundTimeline[f]) {
-				bseg.union(f, 1);
+			if (null == block) {
+				// Skip the rest of the empty block
+				f = Math.min(nFrames, (f | BLOCK_MASK) + 1) - 1;
 			}
 		}
 
-		return bseg;
+		if (runStart >= 0) {
+			builder.add(runStart, nFrames - runStart);
+		}
+
+		return builder.build();
 	}
 
 
 	/**
-	 * Returns per-frame likelihoods computed by {@link #seal()}.
+	 * Returns the sum of the per-frame likelihoods. Unlike summing the array
+	 * returned by {@link #getLikelihoods}, this doesn't depend on the length
+	 * of the recording.
+	 */
+	public double getLikelihood() {
+		if (!sealed) {
+			throw new IllegalStateException("can't get likelihood unless sealed");
+		}
+
+		return totalLikelihood;
+	}
+
+
+	/**
+	 * Returns per-frame likelihoods computed by {@link #seal()}, in a new
+	 * array spanning the entire recording.
 	 */
 	public double[] getLikelihoods() {
 		if (!sealed) {
 			throw new IllegalStateException("can't get likelihoods unless sealed");
 		}
 
-		return likelihood;
+		double[] array = new double[nFrames];
+		for (int b = 0; b < likelihood.length; b++) {
+			if (null != likelihood[b]) {
+				int off = b << BLOCK_BITS;
+				System.arraycopy(likelihood[b], 0, array, off,
+						Math.min(BLOCK_SIZE, nFrames - off));
+			}
+		}
+		return array;
 	}
 
 
 	public void dump() {
 		try {
 			PrintWriter w = new PrintWriter(JTrans.logID + ".models.txt");
-			for (Map.Entry<Object, Model> e: modelMap.entrySet()) {
+			for (int m = 0; m < states.size(); m++) {
 				for (int j = 0; j < 39; j++) {
-					Object state = e.getKey();
-					Model model = e.getValue();
 					w.printf("%2d %8s %10f %10f\n", j,
-							state,
-							model.avg[j],
-							model.var[j]);
+							states.get(m),
+							avg[m * D + j],
+							var[m * D + j]);
 				}
 			}
 			w.close();
@@ -1,23 +1,38 @@
 package fr.loria.synalp.jtrans.train;
 
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
 import fr.loria.synalp.jtrans.project.Token;
-import fr.loria.synalp.jtrans.utils.BinarySegmentation;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+import fr.loria.synalp.jtrans.utils.FrameSegmentation;
 import fr.loria.synalp.jtrans.utils.BufferUtils;
 import fr.loria.synalp.jtrans.align.Alignment;
 
 import static fr.loria.synalp.jtrans.align.LinearAligner.fillInterpolate;
+import static fr.loria.synalp.jtrans.graph.StatePool.isSilenceState;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Speaker-dependent model trainer.
+ * <p/>
+ * Once sealed, the trainer may follow small changes in the alignment it was
+ * trained on (see {@link #update}) instead of being retrained from scratch.
+ * <p/>
+ * Each speaker's models are accumulated and sealed on a thread of their own.
+ * Since every speaker has a separate trainer, this requires no locking.
  * @see ModelTrainer
  */
 public class SpeakerDepModelTrainer {
 
 	protected final int frames;
 
+	protected final FeatureMatrix data;
+
 	/** Speaker-dependent trainers for non-silence models */
 	protected List<ModelTrainer> trainers;
 
@@ -27,12 +42,24 @@ public class SpeakerDepModelTrainer {
 	 */
 	protected ModelTrainer silenceTrainer;
 
+	/**
+	 * Speaker of the word covering each frame (-1 if none), as seen by
+	 * {@link #learn}
+	 */
+	protected final int[] wordSpeakers;
+
+	/** Some words learned since the last call to clear() overlap */
+	protected boolean overlaps;
+
+	private int[] silenceBuf = new int[256];
+
 
 	public static boolean LEARN_SILENCES = true;
 
 
-	public SpeakerDepModelTrainer(int speakers, float[][] data) {
-		frames = data.length;
+	public SpeakerDepModelTrainer(int speakers, FeatureMatrix data) {
+		this.data = data;
+		frames = data.getFrameCount();
 
 		trainers = new ArrayList<>(speakers);
 
@@ -41,11 +68,31 @@ public class SpeakerDepModelTrainer {
 		}
 
 		silenceTrainer = new ModelTrainer(data);
+
+		wordSpeakers = new int[frames];
+		Arrays.fill(wordSpeakers, -1);
+	}
+
+
+	/**
+	 * Creates an empty trainer for the same speakers and data as another
+	 * trainer. Trainers aren't thread-safe: each thread needs its own.
+	 */
+	public SpeakerDepModelTrainer(SpeakerDepModelTrainer other) {
+		this(other.trainers.size(), other.data);
 	}
 
 
 	public void learn(Token w, Alignment alignment) {
 		trainers.get(w.getSpeaker()).learn(w, alignment);
+
+		if (w.isAligned()) {
+			Token.Segment seg = w.getSegment();
+			for (int f = seg.getStartFrame(); f <= seg.getEndFrame(); f++) {
+				overlaps |= wordSpeakers[f] >= 0;
+				wordSpeakers[f] = w.getSpeaker();
+			}
+		}
 	}
 
 
@@ -54,28 +101,28 @@ public class SpeakerDepModelTrainer {
 			mt.clear();
 		}
 		silenceTrainer.clear();
+		Arrays.fill(wordSpeakers, -1);
+		overlaps = false;
 	}
 
 
 	public void seal() {
-		for (ModelTrainer mt: trainers) {
-			mt.seal();
-		}
+		List<FrameSegmentation> nullStencils = sealSpeakers();
 
 		if (LEARN_SILENCES) {
-			BinarySegmentation silenceStencil = new BinarySegmentation();
+			FrameSegmentation silenceStencil = new FrameSegmentation();
 			silenceStencil.union(0, frames); // fill entire segmentation
 
-			for (ModelTrainer mt : trainers) {
-				silenceStencil.intersect(mt.getNullStencil());
+			for (FrameSegmentation stencil: nullStencils) {
+				silenceStencil.intersect(stencil);
 			}
 
 			// Mini-timeline for silences
 			int[] buf = new int[256];
 
 			for (int i = 0; i < silenceStencil.size(); i++) {
-				int off = (int) silenceStencil.get(i).getStart();
-				int len = (int) silenceStencil.get(i).length();
+				int off = silenceStencil.getStart(i);
+				int len = silenceStencil.length(i);
 				buf = BufferUtils.grow(buf, len);
 
 				// Spread 3 silence "states" across the length
@@ -93,16 +140,186 @@ public class SpeakerDepModelTrainer {
 	}
 
 
+	/**
+	 * Seals the speaker-dependent trainers concurrently.
+	 * @return null stencil of each trainer (empty list if silences aren't
+	 * learned)
+	 */
+	private List<FrameSegmentation> sealSpeakers() {
+		List<FrameSegmentation> stencils = new ArrayList<>(trainers.size());
+
+		if (trainers.size() == 1) {
+			stencils.add(sealSpeaker(trainers.get(0)));
+		} else {
+			List<Callable<FrameSegmentation>> tasks =
+					new ArrayList<>(trainers.size());
+
+			for (final ModelTrainer mt: trainers) {
+				tasks.add(new Callable<FrameSegmentation>() {
+					@Override
+					public FrameSegmentation call() {
+						return sealSpeaker(mt);
+					}
+				});
+			}
+
+			try {
+				for (Future<FrameSegmentation> future:
+						ModelTrainer.getExecutor().invokeAll(tasks))
+				{
+					stencils.add(future.get());
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new Error(ex);
+			} catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof Error) {
+					throw (Error)cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException)cause;
+				}
+				throw new Error(cause);
+			}
+		}
+
+		if (!LEARN_SILENCES) {
+			stencils.clear();
+		}
+		return stencils;
+	}
+
+
+	private static FrameSegmentation sealSpeaker(ModelTrainer mt) {
+		mt.seal();
+		return LEARN_SILENCES? mt.getNullStencil(): null;
+	}
+
+
 	public double getCumulativeLikelihood() {
 		double sum = LEARN_SILENCES
-				? ModelTrainer.sum(silenceTrainer.getLikelihoods())
+				? silenceTrainer.getLikelihood()
 				: 0;
 
 		for (ModelTrainer mt: trainers) {
-			sum += ModelTrainer.sum(mt.getLikelihoods());
+			sum += mt.getLikelihood();
 		}
 
 		return sum;
 	}
 
+
+	/**
+	 * Updates a sealed trainer after the states of some frames have changed
+	 * in the alignment it was trained on. The cost is proportional to the
+	 * number of changed frames (and to the number of frames of the models
+	 * they affect), rather than to the length of the recording.
+	 * <p/>
+	 * The words' segments are those that were seen by {@link #learn}: they
+	 * are assumed not to have changed since.
+	 *
+	 * @param changedFrames frame numbers, in ascending order
+	 * @param states new state of each changed frame
+	 * @param count number of changed frames
+	 * @return false if the trainer can't be updated incrementally (e.g.
+	 * because of overlapping words), in which case it must be cleared and
+	 * trained again
+	 */
+	public boolean update(int[] changedFrames, HMMState[] states, int count) {
+		if (overlaps) {
+			return false;
+		}
+
+		for (int i = 0; i < count; i++) {
+			int f = changedFrames[i];
+			int speaker = wordSpeakers[f];
+			if (speaker >= 0) {
+				trainers.get(speaker).relearnStateAtFrame(
+						isSilenceState(states[i])? null: states[i], f);
+			}
+		}
+
+		for (ModelTrainer mt: trainers) {
+			mt.update();
+		}
+
+		if (LEARN_SILENCES) {
+			updateSilences(changedFrames, count);
+			silenceTrainer.update();
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Tells whether a frame would be in the silence stencil computed by
+	 * {@link #seal}, i.e. no speaker-dependent trainer has used it.
+	 */
+	private boolean isSilence(int f) {
+		for (ModelTrainer mt: trainers) {
+			if (null != mt.getStateAtFrame(f)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Spreads the silence states again across the silences that have been
+	 * created, extended, shortened, split or merged by the changed frames.
+	 */
+	private void updateSilences(int[] changedFrames, int count) {
+		int done = 0; // frames before this one are up to date
+
+		for (int i = 0; i < count; i++) {
+			int f = changedFrames[i];
+			boolean wasSilence = null != silenceTrainer.getStateAtFrame(f);
+
+			if (f < done || wasSilence == isSilence(f)) {
+				continue;
+			}
+
+			// Span all old and new silences touching this frame
+			int lo = f;
+			while (lo > 0 && (null != silenceTrainer.getStateAtFrame(lo-1)
+					|| isSilence(lo-1)))
+			{
+				lo--;
+			}
+
+			int hi = f+1;
+			while (hi < frames && (null != silenceTrainer.getStateAtFrame(hi)
+					|| isSilence(hi)))
+			{
+				hi++;
+			}
+
+			// Same as seal() within the span
+			for (int g = lo; g < hi; ) {
+				if (!isSilence(g)) {
+					silenceTrainer.relearnStateAtFrame(null, g);
+					g++;
+					continue;
+				}
+
+				int len = 1;
+				while (g+len < hi && isSilence(g+len)) {
+					len++;
+				}
+
+				silenceBuf = BufferUtils.grow(silenceBuf, len);
+				fillInterpolate(3, silenceBuf, 0, len);
+				for (int j = 0; j < len; j++) {
+					silenceTrainer.relearnStateAtFrame(silenceBuf[j], g + j);
+				}
+
+				g += len;
+			}
+
+			done = hi;
+		}
+	}
+
 }
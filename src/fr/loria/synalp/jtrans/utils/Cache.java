@@ -3,17 +3,41 @@ package fr.loria.synalp.jtrans.utils;
 import static fr.loria.synalp.jtrans.utils.Paths.CACHE_DIR;
 
 import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 
 /**
  * Static class for caching the result of expensive operations.
  *
  * Each cached object belongs to a unique combination of "identifier" objects.
- * Identifier objects must be hashable objects. Any modification in the
- * identifiers must triggers a change in the hash of the combination, which, in
- * turn, invalidates the cache.
+ * The identifiers are hashed with SHA-256 (see {@link #digest}); files are
+ * represented by a digest of their contents, so that the same cache may be
+ * shared across machines and runs. Any modification in the identifiers
+ * changes the digest of the combination, which, in turn, invalidates the
+ * cache.
  *
- * Cached objects are stored as files on disk; each cache filename matches a
- * unique combination of identifiers.
+ * Cached objects are stored as files on disk; each cache filename is the
+ * hexadecimal digest of a unique combination of identifiers. Cache files
+ * whose format allows it also contain the digest itself (see
+ * {@link #writeKey} and {@link #readKey}), which is checked before the file is
+ * read.
+ *
+ * Each cache group (subdirectory) has a byte budget. Once a file has been
+ * written to the cache (see {@link #written}), the least recently used files
+ * of its group are evicted until the group fits in its budget. Sizes and
+ * access times are kept in an index file, so that the cache directories
+ * don't need to be rescanned on startup. The index file may be shared by
+ * several JVMs: it is updated under a file lock, and merged with the
+ * in-memory index every time it is saved. Hits, misses, and bytes written and
+ * evicted are counted for each group (see {@link #printStats}). Files that
+ * are being read or written must be pinned (see {@link #pin}) so that other
+ * threads don't evict them in the meantime.
  */
 public class Cache {
 
@@ -50,40 +74,727 @@ public class Cache {
 
 
 	/**
-	 * Generates a unique path from the hash codes of a combination of several
+	 * Byte budget of cache groups that don't have their own budget
+	 * (see {@link #setBudget}). Zero or negative means unlimited.
+	 */
+	public static long DEFAULT_BUDGET_BYTES = 4L * 1024 * 1024 * 1024;
+
+
+	/** Sizes and access times of cached files */
+	public static final File INDEX_FILE = new File(CACHE_DIR, "index");
+
+	private static final String INDEX_HEADER = "# JTrans cache index v1";
+
+	/** Locked while the index file is being merged and rewritten */
+	private static final File INDEX_LOCK_FILE = new File(CACHE_DIR, "index.lock");
+
+
+	/** Length of a cache key (SHA-256 digest) in bytes */
+	public static final int KEY_BYTES = 32;
+
+	/** Precedes the cache key at the beginning of cache files */
+	public static final int KEY_MAGIC = 0x4A54434B; // "JTCK"
+
+
+	private static class Entry {
+		final String group;
+		final File file;
+		long size;
+		long lastAccess;
+
+		Entry(String group, File file, long size, long lastAccess) {
+			this.group = group;
+			this.file = file;
+			this.size = size;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+
+	/** Content digest of a file, valid as long as the file is unchanged */
+	private static class FileDigest {
+		final long length;
+		final long lastModified;
+		final byte[] digest;
+
+		FileDigest(long length, long lastModified, byte[] digest) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+
+
+	private static class GroupStats {
+		long hits;
+		long misses;
+		long bytesWritten;
+		long evictions;
+		long bytesEvicted;
+	}
+
+
+	private static final Map<String, Long> budgets = new HashMap<>();
+	private static final Map<String, GroupStats> stats = new TreeMap<>();
+
+	/** Cached files by absolute path (loaded lazily) */
+	private static Map<String, Entry> index;
+	private static boolean indexDirty = false;
+
+	/** Number of pins on cached files by absolute path */
+	private static final Map<String, Integer> pins = new HashMap<>();
+
+	/** Digests of identifier files by absolute path */
+	private static final Map<String, FileDigest> fileDigests = new HashMap<>();
+
+
+	/**
+	 * Generates a unique path from the digest of a combination of several
 	 * objects.
 	 *
-	 * If any of the objects is a file, its modification date is also
-	 * represented in the hash.
-	 *
 	 * @param cacheGroup name of the cache subdirectory
 	 * @param extension filename extension (without the period)
-	 * @param identifiers hashable objects to be used in generating
-	 *                    the unique hash
+	 * @param identifiers objects to be used in generating the unique digest
+	 *                    (see {@link #digest})
 	 */
 	public static File getCacheFile(String cacheGroup,
 									 String extension,
 									 Object... identifiers)
 	{
-		StringBuilder sb = new StringBuilder();
-		for (Object c: identifiers) {
-			int hash = c.hashCode();
-			if (c instanceof File)
-				hash = (int)(hash * 31 + ((File)c).lastModified());
-			sb.append(String.format("%08x", hash)).append('.');
-		}
-		sb.append(extension);
-		File f = new File(new File(CACHE_DIR, cacheGroup), sb.toString());
+		String name = toHex(digest(identifiers)) + "." + extension;
+		File f = new File(new File(CACHE_DIR, cacheGroup), name);
 		if (!f.exists()) {
 			f.getParentFile().mkdirs();
 		}
 		if (VOLATILE_CACHE) {
 			f.deleteOnExit();
 		}
+		touch(f);
 		return f;
 	}
 
 
+	/**
+	 * Computes the SHA-256 digest of a combination of identifiers.
+	 * <p/>
+	 * Strings, byte arrays, numbers, booleans, characters and enums are
+	 * hashed by value. Files are hashed by contents (regardless of their path
+	 * or modification date). Any other object is represented by its class
+	 * name and its hash code, so it is only as collision-safe as its
+	 * hashCode method.
+	 * <p/>
+	 * Each identifier is tagged with its type and length, so that e.g.
+	 * ("ab", "c") and ("a", "bc") don't have the same digest.
+	 */
+	public static byte[] digest(Object... identifiers) {
+		MessageDigest md = newDigest();
+		DataOutputStream dos = new DataOutputStream(
+				new DigestOutputStream(new OutputStream() {
+					@Override
+					public void write(int b) {
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+					}
+				}, md));
+
+		try {
+			for (Object c: identifiers) {
+				if (c == null) {
+					dos.writeByte('N');
+				} else if (c instanceof File) {
+					dos.writeByte('F');
+					dos.write(digest((File)c));
+				} else if (c instanceof byte[]) {
+					byte[] b = (byte[])c;
+					dos.writeByte('B');
+					dos.writeInt(b.length);
+					dos.write(b);
+				} else if (c instanceof String) {
+					byte[] b = ((String)c).getBytes(StandardCharsets.UTF_8);
+					dos.writeByte('S');
+					dos.writeInt(b.length);
+					dos.write(b);
+				} else if (c instanceof Number || c instanceof Boolean ||
+						c instanceof Character || c instanceof Enum)
+				{
+					dos.writeByte('V');
+					dos.writeUTF(c.getClass().getName());
+					dos.writeUTF(c.toString());
+				} else {
+					dos.writeByte('H');
+					dos.writeUTF(c.getClass().getName());
+					dos.writeInt(c.hashCode());
+				}
+			}
+			dos.flush();
+		} catch (IOException ex) {
+			// Can't happen: nothing is actually written
+			throw new Error(ex);
+		}
+
+		return md.digest();
+	}
+
+
+	/**
+	 * Computes the SHA-256 digest of the contents of a file. Digests are
+	 * remembered until the file is modified.
+	 * @return the digest, or the digest of the path if the file can't be read
+	 */
+	public static byte[] digest(File file) {
+		String path = file.getAbsolutePath();
+		long length = file.length();
+		long lastModified = file.lastModified();
+
+		synchronized (fileDigests) {
+			FileDigest fd = fileDigests.get(path);
+			if (fd != null && fd.length == length &&
+					fd.lastModified == lastModified)
+			{
+				return fd.digest;
+			}
+		}
+
+		MessageDigest md = newDigest();
+
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[65536];
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				md.update(buf, 0, n);
+			}
+		} catch (IOException ex) {
+			System.err.println("WARNING: can't hash " + file + ": " + ex);
+			return digest("unreadable file", path);
+		}
+
+		byte[] digest = md.digest();
+		synchronized (fileDigests) {
+			fileDigests.put(path, new FileDigest(length, lastModified, digest));
+		}
+		return digest;
+	}
+
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			// Every JRE must support SHA-256
+			throw new Error(ex);
+		}
+	}
+
+
+	/**
+	 * Returns the key of a cache file, i.e. the digest encoded in its name.
+	 * @return null if the file wasn't named by {@link #getCacheFile}
+	 */
+	public static byte[] getKey(File cacheFile) {
+		String name = cacheFile.getName();
+		int dot = name.indexOf('.');
+		if (dot != 2 * KEY_BYTES) {
+			return null;
+		}
+		return fromHex(name.substring(0, dot));
+	}
+
+
+	/**
+	 * Writes the key of a cache file at the current position of a stream.
+	 * @see #readKey
+	 */
+	public static void writeKey(OutputStream out, File cacheFile)
+			throws IOException
+	{
+		byte[] key = getKey(cacheFile);
+		if (key == null) {
+			throw new IllegalArgumentException("not a cache file: " + cacheFile);
+		}
+
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(KEY_MAGIC);
+		dos.write(key);
+		dos.flush();
+	}
+
+
+	/**
+	 * Reads the key written by {@link #writeKey} and checks that it matches
+	 * the name of the cache file. Reads no more than the key.
+	 * @throws IOException if the key is missing or doesn't match
+	 */
+	public static void readKey(InputStream in, File cacheFile)
+			throws IOException
+	{
+		DataInputStream dis = new DataInputStream(in);
+		byte[] key = new byte[KEY_BYTES];
+
+		if (dis.readInt() != KEY_MAGIC) {
+			throw new IOException("no cache key in " + cacheFile);
+		}
+		dis.readFully(key);
+
+		if (!Arrays.equals(key, getKey(cacheFile))) {
+			throw new IOException("cache key mismatch in " + cacheFile);
+		}
+	}
+
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b: bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * @return null if the string isn't made of pairs of hexadecimal digits
+	 */
+	private static byte[] fromHex(String hex) {
+		if (hex.length() % 2 != 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int hi = Character.digit(hex.charAt(2*i), 16);
+			int lo = Character.digit(hex.charAt(2*i+1), 16);
+			if (hi < 0 || lo < 0) {
+				return null;
+			}
+			bytes[i] = (byte)((hi << 4) | lo);
+		}
+		return bytes;
+	}
+
+
+	/**
+	 * Sets the byte budget of a cache group.
+	 * @param bytes zero or negative for no limit
+	 */
+	public static synchronized void setBudget(String cacheGroup, long bytes) {
+		budgets.put(cacheGroup, bytes);
+	}
+
+
+	public static synchronized long getBudget(String cacheGroup) {
+		Long budget = budgets.get(cacheGroup);
+		return budget != null? budget: DEFAULT_BUDGET_BYTES;
+	}
+
+
+	private static String groupOf(File cacheFile) {
+		return cacheFile.getParentFile().getName();
+	}
+
+
+	private static GroupStats statsOf(String cacheGroup) {
+		GroupStats gs = stats.get(cacheGroup);
+		if (gs == null) {
+			gs = new GroupStats();
+			stats.put(cacheGroup, gs);
+		}
+		return gs;
+	}
+
+
+	/**
+	 * Tells whether a cache file may be read, and counts a hit or a miss
+	 * accordingly.
+	 * @return true if the file exists and reading from the cache is allowed
+	 */
+	public static synchronized boolean lookup(File cacheFile) {
+		boolean hit = READ_FROM_CACHE && cacheFile.exists();
+		GroupStats gs = statsOf(groupOf(cacheFile));
+		if (hit) {
+			gs.hits++;
+		} else {
+			gs.misses++;
+		}
+		return hit;
+	}
+
+
+	/**
+	 * Turns a hit reported by {@link #lookup} into a miss, e.g. if the file
+	 * turned out to be unreadable.
+	 */
+	public static synchronized void invalidate(File cacheFile) {
+		GroupStats gs = statsOf(groupOf(cacheFile));
+		gs.hits--;
+		gs.misses++;
+	}
+
+
+	/**
+	 * Must be called once a cache file has been (re)written. Records its
+	 * size and evicts old files from its group if the group exceeds its
+	 * budget. The file itself is never evicted by this call. The index file
+	 * is saved right away, so that other JVMs see the new file and the
+	 * evictions.
+	 */
+	public static synchronized void written(File cacheFile) {
+		loadIndex();
+
+		String group = groupOf(cacheFile);
+		String key = cacheFile.getAbsolutePath();
+		long size = cacheFile.length();
+
+		Entry e = index.get(key);
+		if (e == null) {
+			e = new Entry(group, cacheFile, size, 0);
+			index.put(key, e);
+		}
+		e.size = size;
+		e.lastAccess = System.currentTimeMillis();
+		indexDirty = true;
+
+		statsOf(group).bytesWritten += size;
+
+		CACHE_DIR.mkdirs();
+		try (RandomAccessFile lockFile =
+					 new RandomAccessFile(INDEX_LOCK_FILE, "rw"))
+		{
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				// Account for the files written by other JVMs before evicting
+				mergeIndexFile();
+				evict(group, e);
+				writeIndexFile();
+			} finally {
+				lock.release();
+			}
+		} catch (IOException ex) {
+			System.err.println("WARNING: couldn't lock cache index: " + ex);
+			evict(group, e);
+		}
+	}
+
+
+	/**
+	 * Protects a cache file from eviction until it is unpinned as many times
+	 * as it was pinned. Files must be pinned before they are looked up or
+	 * written, and unpinned once they have been read completely.
+	 * @see #unpin
+	 */
+	public static synchronized void pin(File cacheFile) {
+		String key = cacheFile.getAbsolutePath();
+		Integer count = pins.get(key);
+		pins.put(key, count == null? 1: count + 1);
+	}
+
+
+	/**
+	 * Releases a pin taken by {@link #pin}.
+	 */
+	public static synchronized void unpin(File cacheFile) {
+		String key = cacheFile.getAbsolutePath();
+		Integer count = pins.get(key);
+		if (count == null) {
+			throw new IllegalStateException("not pinned: " + cacheFile);
+		} else if (count == 1) {
+			pins.remove(key);
+		} else {
+			pins.put(key, count - 1);
+		}
+	}
+
+
+	public static synchronized boolean isPinned(File cacheFile) {
+		return pins.containsKey(cacheFile.getAbsolutePath());
+	}
+
+
+	/**
+	 * Updates the access time of a cache file (if it is in the index).
+	 */
+	private static synchronized void touch(File cacheFile) {
+		loadIndex();
+		Entry e = index.get(cacheFile.getAbsolutePath());
+		if (e != null) {
+			e.lastAccess = System.currentTimeMillis();
+			indexDirty = true;
+		}
+	}
+
+
+	/**
+	 * Deletes the least recently used files of a group until the group fits
+	 * in its budget. Pinned files are left alone, even if the group remains
+	 * over budget.
+	 */
+	private static void evict(String group, Entry keep) {
+		long budget = getBudget(group);
+		if (budget <= 0) {
+			return;
+		}
+
+		List<Entry> entries = new ArrayList<>();
+		long total = 0;
+		for (Entry e: index.values()) {
+			if (e.group.equals(group)) {
+				entries.add(e);
+				total += e.size;
+			}
+		}
+
+		if (total <= budget) {
+			return;
+		}
+
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return Long.compare(a.lastAccess, b.lastAccess);
+			}
+		});
+
+		GroupStats gs = statsOf(group);
+
+		for (Entry e: entries) {
+			if (total <= budget) {
+				break;
+			}
+			if (e == keep || pins.containsKey(e.file.getAbsolutePath())) {
+				continue;
+			}
+
+			if (e.file.delete() || !e.file.exists()) {
+				index.remove(e.file.getAbsolutePath());
+				total -= e.size;
+				gs.evictions++;
+				gs.bytesEvicted += e.size;
+				indexDirty = true;
+			} else {
+				System.err.println("WARNING: couldn't evict " + e.file
+						+ " from cache");
+			}
+		}
+	}
+
+
+	/**
+	 * Loads the index file, or rebuilds it by scanning the cache directories
+	 * if it is missing or unreadable. The index is saved when the JVM exits.
+	 */
+	private static void loadIndex() {
+		if (index != null) {
+			return;
+		}
+
+		index = new HashMap<>();
+
+		try {
+			readIndexFile(index);
+		} catch (IOException|RuntimeException ex) {
+			if (INDEX_FILE.exists()) {
+				System.err.println("WARNING: rebuilding cache index (" + ex
+						+ ")");
+			}
+			index.clear();
+			scanCacheDir();
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread("Cache index") {
+			@Override
+			public void run() {
+				saveIndex();
+			}
+		});
+	}
+
+
+	private static void readIndexFile(Map<String, Entry> into)
+			throws IOException
+	{
+		try (BufferedReader reader =
+					 new BufferedReader(new FileReader(INDEX_FILE)))
+		{
+			if (!INDEX_HEADER.equals(reader.readLine())) {
+				throw new IOException("bad header");
+			}
+
+			String line;
+			while (null != (line = reader.readLine())) {
+				String[] columns = line.split("\t");
+				File file = new File(new File(CACHE_DIR, columns[0]),
+						columns[1]);
+				into.put(file.getAbsolutePath(), new Entry(
+						columns[0],
+						file,
+						Long.parseLong(columns[2]),
+						Long.parseLong(columns[3])));
+			}
+		}
+	}
+
+
+	/**
+	 * Merges the index file, which other JVMs may have rewritten since it
+	 * was loaded, into the in-memory index. Must be called with the index
+	 * file locked.
+	 */
+	private static void mergeIndexFile() {
+		Map<String, Entry> onDisk = new HashMap<>();
+		try {
+			readIndexFile(onDisk);
+		} catch (FileNotFoundException ex) {
+			// Nothing to merge
+		} catch (IOException|RuntimeException ex) {
+			System.err.println("WARNING: ignoring unreadable cache index ("
+					+ ex + ")");
+			return;
+		}
+
+		Iterator<Entry> it = index.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			Entry d = onDisk.remove(e.file.getAbsolutePath());
+			if (d == null) {
+				// Either new in this JVM, or evicted by another JVM
+				if (!e.file.exists()) {
+					it.remove();
+					indexDirty = true;
+				}
+			} else if (d.lastAccess > e.lastAccess) {
+				e.lastAccess = d.lastAccess;
+				e.size = d.size;
+			}
+		}
+
+		// Written by other JVMs
+		for (Entry d: onDisk.values()) {
+			if (d.file.exists()) {
+				index.put(d.file.getAbsolutePath(), d);
+				indexDirty = true;
+			}
+		}
+	}
+
+
+	private static void scanCacheDir() {
+		File[] groups = CACHE_DIR.listFiles();
+		if (groups == null) {
+			return;
+		}
+
+		for (File dir: groups) {
+			File[] files = dir.listFiles();
+			if (files == null) {
+				continue;
+			}
+
+			for (File f: files) {
+				if (f.isFile() && !f.getName().contains(".part")) {
+					index.put(f.getAbsolutePath(), new Entry(dir.getName(),
+							f, f.length(), f.lastModified()));
+				}
+			}
+		}
+
+		indexDirty = true;
+	}
+
+
+	/**
+	 * Merges the index file with the in-memory index and writes it back
+	 * (if the in-memory index has changed since it was last saved).
+	 */
+	public static synchronized void saveIndex() {
+		if (index == null || !indexDirty) {
+			return;
+		}
+
+		CACHE_DIR.mkdirs();
+		try (RandomAccessFile lockFile =
+					 new RandomAccessFile(INDEX_LOCK_FILE, "rw"))
+		{
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				mergeIndexFile();
+				writeIndexFile();
+			} finally {
+				lock.release();
+			}
+		} catch (IOException ex) {
+			System.err.println("WARNING: couldn't lock cache index: " + ex);
+		}
+	}
+
+
+	/**
+	 * Writes the in-memory index to a temporary file and moves it over the
+	 * index file. Must be called with the index file locked.
+	 */
+	private static void writeIndexFile() {
+		File tmp = new File(INDEX_FILE.getPath() + ".tmp");
+
+		try (PrintWriter pw = new PrintWriter(new FileWriter(tmp))) {
+			pw.println(INDEX_HEADER);
+			for (Entry e: index.values()) {
+				pw.println(e.group + "\t" + e.file.getName() + "\t"
+						+ e.size + "\t" + e.lastAccess);
+			}
+		} catch (IOException ex) {
+			System.err.println("WARNING: couldn't save cache index: " + ex);
+			return;
+		}
+
+		try {
+			Files.move(tmp.toPath(), INDEX_FILE.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			System.err.println("WARNING: couldn't save cache index: " + ex);
+			return;
+		}
+
+		indexDirty = false;
+	}
+
+
+	/**
+	 * Prints hit/miss counters and disk usage of each cache group.
+	 */
+	public static synchronized void printStats(PrintStream out) {
+		loadIndex();
+
+		Map<String, Long> usage = new TreeMap<>();
+		for (Entry e: index.values()) {
+			Long u = usage.get(e.group);
+			usage.put(e.group, (u == null? 0: u) + e.size);
+		}
+
+		Set<String> groups = new TreeSet<>(usage.keySet());
+		groups.addAll(stats.keySet());
+
+		out.println("===== CACHE STATISTICS =====");
+		for (String group: groups) {
+			GroupStats gs = statsOf(group);
+			Long u = usage.get(group);
+			long budget = getBudget(group);
+
+			out.println(String.format(
+					"%-10s %d hits, %d misses, %.1f MB written, " +
+					"%d evicted (%.1f MB), %.1f MB in use (budget: %s)",
+					group, gs.hits, gs.misses, mb(gs.bytesWritten),
+					gs.evictions, mb(gs.bytesEvicted), mb(u == null? 0: u),
+					budget > 0? String.format("%.0f MB", mb(budget)): "none"));
+		}
+	}
+
+
+	private static double mb(long bytes) {
+		return bytes / 1024.0 / 1024.0;
+	}
+
+
 	/**
 	 * Returns a cached object. If the requested object hasn't been cached yet,
 	 * it is created, written to the cache, and returned.
@@ -91,8 +802,7 @@ public class Cache {
 	 * @param cacheGroup name of the cache subdirectory
 	 * @param extension filename extension (without the period)
 	 * @param factory factory to create a new object if the cache is invalid
-	 * @param identifiers hashable objects to be used in generating
-	 *                    the unique hash
+	 * @param identifiers objects to be used in generating the unique digest
 	 */
 	public static Object cachedObject(String cacheGroup,
 									  String extension,
@@ -101,17 +811,29 @@ public class Cache {
 			throws InterruptedException
 	{
 		File cacheFile = getCacheFile(cacheGroup, extension, identifiers);
+		pin(cacheFile);
+		try {
+			return cachedObject(cacheFile, factory);
+		} finally {
+			unpin(cacheFile);
+		}
+	}
+
 
+	private static Object cachedObject(File cacheFile, ObjectFactory factory)
+			throws InterruptedException
+	{
 		// Try to read object from cache
-		if (READ_FROM_CACHE && cacheFile.exists()) {
-			try {
-				ObjectInputStream ois = new ObjectInputStream(new FileInputStream(cacheFile));
-				Object object = ois.readObject();
-				ois.close();
-				return object;
+		if (lookup(cacheFile)) {
+			try (InputStream in = new BufferedInputStream(
+					new FileInputStream(cacheFile)))
+			{
+				readKey(in, cacheFile);
+				return new ObjectInputStream(in).readObject();
 			} catch (Exception ex) {
 				System.err.println("Couldn't deserialize cached object!");
 				ex.printStackTrace();
+				invalidate(cacheFile);
 			}
 		}
 
@@ -119,16 +841,20 @@ public class Cache {
 		Object object = factory.make();
 
 		// Dump computed object to cache
-		try {
-			ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(cacheFile));
+		try (OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(cacheFile)))
+		{
+			writeKey(out, cacheFile);
+			ObjectOutputStream oos = new ObjectOutputStream(out);
 			oos.writeObject(object);
 			oos.flush();
-			oos.close();
 		} catch (IOException ex) {
 			System.err.println("Couldn't dump object to cache!");
 			ex.printStackTrace();
+			return object;
 		}
 
+		written(cacheFile);
 		return object;
 	}
 
@@ -136,12 +862,17 @@ public class Cache {
 	/**
 	 * Returns a cached file. If the requested file hasn't been cached yet,
 	 * it is created, written to the cache, and returned.
+	 * <p/>
+	 * The format of the file is up to the factory, so the cache key is only
+	 * stored in its name, unless the factory writes it (see {@link #writeKey}).
+	 * <p/>
+	 * The returned file is pinned: the caller must {@link #unpin} it once it
+	 * is done with it.
 	 *
 	 * @param cacheGroup name of the cache subdirectory
 	 * @param extension filename extension (without the period)
 	 * @param factory factory to create a new file if the cache is invalid
-	 * @param identifiers hashable objects to be used in generating
-	 *                    the unique hash
+	 * @param identifiers objects to be used in generating the unique digest
 	 */
 	public static File cachedFile(String cacheGroup,
 								  String extension,
@@ -149,10 +880,12 @@ public class Cache {
 								  Object... identifiers)
 	{
 		File cacheFile = getCacheFile(cacheGroup, extension, identifiers);
+		pin(cacheFile);
 
-		if (!READ_FROM_CACHE || !cacheFile.exists()) {
+		if (!lookup(cacheFile)) {
 			try {
 				factory.write(cacheFile);
+				written(cacheFile);
 			} catch (IOException ex) {
 				System.err.println("Couldn't write cache file!");
 				ex.printStackTrace();
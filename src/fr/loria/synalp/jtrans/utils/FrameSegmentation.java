@@ -0,0 +1,334 @@
+package fr.loria.synalp.jtrans.utils;
+
+import java.util.Arrays;
+
+/**
+ * Sorted set of frame intervals.
+ * <p/>
+ * Segment bounds are integer frame numbers, and segments are stored in a
+ * sorted primitive array. Adjacent segments are always merged, so that two
+ * segmentations covering the same frames are equal.
+ * <p/>
+ * Set operations between two segmentations (union, intersection) are linear
+ * merges. Single segments are located by binary search. Segmentations covering
+ * many frames should be built in one pass with a {@link Builder}.
+ */
+public class FrameSegmentation {
+
+	/**
+	 * Start (inclusive) and end (exclusive) of each segment: segment i spans
+	 * [bounds[2i], bounds[2i+1]).
+	 */
+	private int[] bounds;
+
+	/** Number of segments */
+	private int size;
+
+
+	public FrameSegmentation() {
+		bounds = new int[8];
+	}
+
+
+	public FrameSegmentation(FrameSegmentation other) {
+		bounds = Arrays.copyOf(other.bounds, Math.max(8, 2*other.size));
+		size = other.size;
+	}
+
+
+	/**
+	 * Builds a segmentation from ascending runs of frames.
+	 */
+	public static class Builder {
+
+		private final FrameSegmentation seg = new FrameSegmentation();
+
+
+		/**
+		 * Adds a run of frames. Runs must be added in ascending order; they
+		 * may touch the previous run, but not overlap it.
+		 */
+		public Builder add(int off, int len) {
+			if (len <= 0) {
+				return this;
+			}
+
+			int n = seg.size;
+			if (n > 0 && off < seg.bounds[2*n-1]) {
+				throw new IllegalArgumentException("runs must be ascending");
+			}
+
+			if (n > 0 && off == seg.bounds[2*n-1]) {
+				seg.bounds[2*n-1] = off + len;
+			} else {
+				seg.ensureCapacity(n + 1);
+				seg.bounds[2*n] = off;
+				seg.bounds[2*n+1] = off + len;
+				seg.size++;
+			}
+			return this;
+		}
+
+
+		public FrameSegmentation build() {
+			return seg;
+		}
+
+	}
+
+
+	/**
+	 * Creates a segmentation covering the frames set to true.
+	 */
+	public static FrameSegmentation fromTimeline(boolean[] timeline) {
+		Builder builder = new Builder();
+		int f = 0;
+		while (f < timeline.length) {
+			if (!timeline[f]) {
+				f++;
+				continue;
+			}
+			int start = f;
+			while (f < timeline.length && timeline[f]) {
+				f++;
+			}
+			builder.add(start, f - start);
+		}
+		return builder.build();
+	}
+
+
+	private void ensureCapacity(int segments) {
+		if (2*segments > bounds.length) {
+			bounds = Arrays.copyOf(bounds, Math.max(2*segments, 2*bounds.length));
+		}
+	}
+
+
+	/**
+	 * Returns the index of the first segment whose end is at or after
+	 * the given frame (size if there is none).
+	 */
+	private int firstEndingAtOrAfter(int frame) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (bounds[2*mid+1] < frame) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+
+	public void union(int off, int len) {
+		if (len <= 0) {
+			return;
+		}
+
+		int a1 = off;
+		int a2 = off + len;
+
+		// Segments [i, j) touch or overlap the new segment
+		int i = firstEndingAtOrAfter(a1);
+		int j = i;
+		while (j < size && bounds[2*j] <= a2) {
+			j++;
+		}
+
+		if (i < j) {
+			a1 = Math.min(a1, bounds[2*i]);
+			a2 = Math.max(a2, bounds[2*j-1]);
+		}
+
+		// Replace segments [i, j) with a single segment
+		int newSize = size - (j - i) + 1;
+		ensureCapacity(newSize);
+		System.arraycopy(bounds, 2*j, bounds, 2*(i+1), 2*(size-j));
+		bounds[2*i] = a1;
+		bounds[2*i+1] = a2;
+		size = newSize;
+	}
+
+
+	public void union(FrameSegmentation other) {
+		merge(other, false);
+	}
+
+
+	public void intersect(FrameSegmentation other) {
+		merge(other, true);
+	}
+
+
+	/**
+	 * Sweeps over the bounds of both segmentations at once.
+	 * @param intersect keep frames covered by both segmentations (otherwise,
+	 *                  keep frames covered by either)
+	 */
+	private void merge(FrameSegmentation other, boolean intersect) {
+		final int threshold = intersect? 2: 1;
+		final int[] a = bounds;
+		final int[] b = other.bounds;
+		final int na = 2*size;
+		final int nb = 2*other.size;
+
+		int[] out = new int[Math.max(8, na + nb)];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		int depth = 0;
+
+		while (i < na || j < nb) {
+			int frame = Math.min(
+					i < na? a[i]: Integer.MAX_VALUE,
+					j < nb? b[j]: Integer.MAX_VALUE);
+
+			// Process all bounds at this frame at once (ends and starts
+			// cancel out, which merges adjacent segments)
+			int before = depth;
+			while (i < na && a[i] == frame) {
+				depth += (i & 1) == 0? 1: -1;
+				i++;
+			}
+			while (j < nb && b[j] == frame) {
+				depth += (j & 1) == 0? 1: -1;
+				j++;
+			}
+
+			boolean wasIn = before >= threshold;
+			boolean isIn = depth >= threshold;
+			if (wasIn != isIn) {
+				out[n++] = frame;
+			}
+		}
+
+		assert n % 2 == 0;
+		bounds = out;
+		size = n / 2;
+	}
+
+
+	/**
+	 * Negates all segments.
+	 * @param extent Process any negative space (beyond the last segment) until
+	 *               this extent. This value must equal or exceed that given by
+	 *               {@link #extent()}.
+	 */
+	public void negate(int extent) {
+		assert extent >= extent();
+
+		int[] out = new int[Math.max(8, 2*size + 2)];
+		int n = 0;
+		int negSpaceStart = 0;
+
+		for (int i = 0; i < size; i++) {
+			if (bounds[2*i] > negSpaceStart) {
+				out[n++] = negSpaceStart;
+				out[n++] = bounds[2*i];
+			}
+			negSpaceStart = bounds[2*i+1];
+		}
+
+		if (extent > negSpaceStart) {
+			out[n++] = negSpaceStart;
+			out[n++] = extent;
+		}
+
+		bounds = out;
+		size = n / 2;
+	}
+
+
+	public boolean contains(int frame) {
+		int i = firstEndingAtOrAfter(frame + 1);
+		return i < size && bounds[2*i] <= frame;
+	}
+
+
+	public int size() {
+		return size;
+	}
+
+
+	public int getStart(int idx) {
+		checkIndex(idx);
+		return bounds[2*idx];
+	}
+
+
+	/** Returns the end (exclusive) of a segment */
+	public int getEnd(int idx) {
+		checkIndex(idx);
+		return bounds[2*idx+1];
+	}
+
+
+	public int length(int idx) {
+		return getEnd(idx) - getStart(idx);
+	}
+
+
+	private void checkIndex(int idx) {
+		if (idx < 0 || idx >= size) {
+			throw new IndexOutOfBoundsException("segment " + idx);
+		}
+	}
+
+
+	/**
+	 * Returns the frame at which the last segment ends.
+	 */
+	public int extent() {
+		return size == 0? 0: bounds[2*size-1];
+	}
+
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof FrameSegmentation)) {
+			return false;
+		}
+
+		FrameSegmentation other = (FrameSegmentation)o;
+		if (size != other.size) {
+			return false;
+		}
+		for (int i = 0; i < 2*size; i++) {
+			if (bounds[i] != other.bounds[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	@Override
+	public int hashCode() {
+		int h = size;
+		for (int i = 0; i < 2*size; i++) {
+			h = 31*h + bounds[i];
+		}
+		return h;
+	}
+
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(bounds[2*i]).append('-').append(bounds[2*i+1]);
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,97 @@
+package fr.loria.synalp.jtrans;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchAlignerTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	private File touch(File dir, String name) throws IOException {
+		File f = new File(dir, name);
+		f.getParentFile().mkdirs();
+		assertTrue(f.createNewFile());
+		return f;
+	}
+
+
+	private File writeManifest(String... lines) throws IOException {
+		File manifest = tmp.newFile("manifest.txt");
+		try (Writer w = new FileWriter(manifest)) {
+			for (String line: lines) {
+				w.write(line);
+				w.write('\n');
+			}
+		}
+		return manifest;
+	}
+
+
+	@Test
+	public void testScanDirectory() throws IOException {
+		File dir = tmp.getRoot();
+		File a = touch(dir, "a.jtr");
+		File aAudio = touch(dir, "a.wav");
+		File b = touch(dir, "b.textgrid");
+		File bAudio = touch(dir, "b.ogg");
+		touch(dir, "c.trs");       // no audio
+		touch(dir, "d.wav");       // no markup
+		touch(dir, "e.xyz");       // unknown format
+		assertTrue(new File(dir, "f.txt").mkdir());
+
+		List<File[]> jobs = BatchAligner.scanDirectory(dir);
+
+		assertEquals(2, jobs.size());
+		assertArrayEquals(new File[]{a, aAudio}, jobs.get(0));
+		assertArrayEquals(new File[]{b, bAudio}, jobs.get(1));
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testScanMissingDirectory() throws IOException {
+		BatchAligner.scanDirectory(new File(tmp.getRoot(), "missing"));
+	}
+
+
+	@Test
+	public void testReadManifest() throws IOException {
+		File dir = tmp.getRoot();
+		File a = touch(dir, "sub/a.jtr");
+		File aAudio = touch(dir, "sub/a.wav");
+		File b = touch(dir, "b.trs");
+		File bAudio = touch(dir, "audio/other.mp3");
+		touch(dir, "c.jtr");
+		File other = tmp.newFolder("elsewhere");
+		File d = touch(other, "d.txt");
+		File dAudio = touch(other, "d.ogg");
+
+		File manifest = writeManifest(
+				"# comment",
+				"",
+				"sub/a.jtr",
+				"  b.trs\taudio/other.mp3  ",
+				"c.jtr",
+				"c.jtr\tmissing.wav",
+				"#sub/a.jtr",
+				d.getAbsolutePath());
+
+		List<File[]> jobs = BatchAligner.readManifest(manifest);
+
+		assertEquals(3, jobs.size());
+		assertArrayEquals(new File[]{a, aAudio}, jobs.get(0));
+		assertArrayEquals(new File[]{b, bAudio}, jobs.get(1));
+		assertArrayEquals(new File[]{d, dAudio}, jobs.get(2));
+	}
+
+}
@@ -0,0 +1,159 @@
+package fr.loria.synalp.jtrans.align;
+
+import fr.loria.synalp.jtrans.project.Token;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AlignmentTest {
+
+	/**
+	 * Creates an alignment whose segments alternate between two words.
+	 */
+	private static Alignment randomAlignment(Random random, int offset, int nSegs) {
+		Token[] words = { new Token("a"), new Token("b") };
+		Alignment al = new Alignment(offset);
+		for (int i = 0; i < nSegs; i++) {
+			int length = 1 + random.nextInt(6);
+			for (int f = 0; f < length; f++) {
+				al.newFrame(null, words[i % 2]);
+			}
+		}
+		return al;
+	}
+
+
+	/**
+	 * Reference lookup: walks the segments from the start.
+	 * @return segment index, or -1
+	 */
+	private static int linearLookup(Alignment al, int frame) {
+		int total = al.getFrameOffset();
+		int idx = 0;
+		for (Alignment.Segment seg: al) {
+			if (frame >= total && frame < total + seg.length) {
+				return idx;
+			}
+			total += seg.length;
+			idx++;
+		}
+		return -1;
+	}
+
+
+	private static void assertLookupsMatch(Alignment al, Random random) {
+		int first = al.getFrameOffset() - 2;
+		int last = al.getFrameOffset() + al.getLength() + 2;
+
+		Alignment.Cursor cursor = al.cursor();
+		for (int f = first; f < last; f++) {
+			int expected = linearLookup(al, f);
+			assertEquals(expected, al.getSegmentIndexAtFrame(f));
+			assertEquals(expected, cursor.getSegmentIndexAtFrame(f));
+			if (expected >= 0) {
+				assertSame(al.getWord(expected), al.getSegmentAtFrame(f).word);
+			} else {
+				assertNull(al.getSegmentAtFrame(f));
+			}
+		}
+
+		// Random jumps
+		for (int i = 0; i < 100; i++) {
+			int f = first + random.nextInt(last - first);
+			assertEquals(linearLookup(al, f), cursor.getSegmentIndexAtFrame(f));
+		}
+	}
+
+
+	@Test
+	public void testLookup() {
+		Random random = new Random(1);
+		Alignment al = randomAlignment(random, 10, 200);
+		assertEquals(200, al.getSegmentCount());
+		assertLookupsMatch(al, random);
+
+		assertEquals(10, al.getSegmentStart(0));
+		assertEquals(-1, al.getSegmentIndexAtFrame(9));
+		assertEquals(-1, al.getSegmentIndexAtFrame(10 + al.getLength()));
+		assertEquals(199, al.getSegmentIndexAtFrame(10 + al.getLength() - 1));
+	}
+
+
+	@Test
+	public void testLookupAfterWiggles() {
+		Random random = new Random(2);
+		Alignment al = randomAlignment(random, 0, 100);
+		Alignment.Cursor cursor = al.cursor();
+
+		for (int i = 0; i < 200; i++) {
+			al.wiggle(random, 3);
+			assertTrue(al.verify());
+
+			int f = random.nextInt(al.getLength());
+			assertEquals(linearLookup(al, f), cursor.getSegmentIndexAtFrame(f));
+		}
+
+		assertLookupsMatch(al, random);
+		assertLookupsMatch(new Alignment(al), random);
+	}
+
+
+	@Test
+	public void testCopyOnWrite() {
+		Random random = new Random(3);
+		Alignment al = randomAlignment(random, 0, 50);
+		Alignment copy = new Alignment(al);
+
+		int uniqueWords = al.getUniqueWordCount();
+		int[] lengths = new int[al.getSegmentCount()];
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = al.getSegmentLength(i);
+		}
+
+		for (int i = 0; i < 100; i++) {
+			copy.wiggle(random, 2);
+		}
+		copy.newFrame(null, new Token("c"));
+
+		// The original is untouched
+		assertEquals(lengths.length, al.getSegmentCount());
+		assertEquals(uniqueWords, al.getUniqueWordCount());
+		for (int i = 0; i < lengths.length; i++) {
+			assertEquals(lengths[i], al.getSegmentLength(i));
+		}
+		assertEquals(lengths.length + 1, copy.getSegmentCount());
+	}
+
+
+	@Test
+	public void testRollbackEdits() {
+		Random random = new Random(4);
+		Alignment al = randomAlignment(random, 5, 50);
+		Alignment reference = new Alignment(al);
+
+		al.beginEdits();
+		for (int i = 0; i < 100; i++) {
+			al.wiggle(random, 1);
+		}
+		al.rollbackEdits();
+
+		for (int i = 0; i < al.getSegmentCount(); i++) {
+			assertEquals(reference.getSegmentStart(i), al.getSegmentStart(i));
+		}
+
+		al.beginEdits();
+		al.wiggle(random, 1);
+		al.commitEdits();
+
+		int moved = 0;
+		for (int i = 0; i < al.getSegmentCount(); i++) {
+			if (reference.getSegmentStart(i) != al.getSegmentStart(i)) {
+				moved++;
+			}
+		}
+		assertEquals(1, moved);
+	}
+
+}
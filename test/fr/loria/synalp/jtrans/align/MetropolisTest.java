@@ -0,0 +1,216 @@
+package fr.loria.synalp.jtrans.align;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.linguist.acoustic.*;
+import fr.loria.synalp.jtrans.project.Token;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+import fr.loria.synalp.jtrans.train.ModelTrainer;
+import fr.loria.synalp.jtrans.train.SpeakerDepModelTrainer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MetropolisTest {
+
+	/**
+	 * State that only serves as an identifier, like in the trainers.
+	 * Its phone tells silences apart.
+	 */
+	private static class StubState implements HMMState, HMM {
+		private final Unit unit;
+
+		StubState(Unit unit) {
+			this.unit = unit;
+		}
+
+		@Override public HMM getHMM() { return this; }
+		@Override public int getState() { return 0; }
+		@Override public float getScore(Data data) { return 0; }
+		@Override public boolean isEmitting() { return true; }
+		@Override public HMMStateArc[] getSuccessors() { return null; }
+		@Override public boolean isExitState() { return false; }
+
+		@Override public Unit getUnit() { return unit; }
+		@Override public Unit getBaseUnit() { return unit; }
+		@Override public HMMState getState(int which) { return this; }
+		@Override public int getOrder() { return 1; }
+		@Override public HMMPosition getPosition() { return null; }
+		@Override public HMMState getInitialState() { return this; }
+	}
+
+
+	static final int FRAMES = 2000;
+
+
+	private int retrainInterval;
+	private boolean learnSilences;
+
+
+	@Before
+	public void saveSettings() {
+		retrainInterval = Metropolis.FULL_RETRAIN_INTERVAL;
+		learnSilences = SpeakerDepModelTrainer.LEARN_SILENCES;
+
+		// Only the first proposal retrains from scratch
+		Metropolis.FULL_RETRAIN_INTERVAL = Integer.MAX_VALUE;
+	}
+
+
+	@After
+	public void restoreSettings() {
+		Metropolis.FULL_RETRAIN_INTERVAL = retrainInterval;
+		SpeakerDepModelTrainer.LEARN_SILENCES = learnSilences;
+	}
+
+
+	/**
+	 * @return states whose first three are silence states
+	 */
+	static HMMState[] stubStates(int count) {
+		UnitManager units = new UnitManager();
+		HMMState[] states = new HMMState[count];
+		for (int i = 0; i < count; i++) {
+			states[i] = new StubState(i < 3
+					? units.getUnit(UnitManager.SILENCE_NAME, true)
+					: units.getUnit("p" + i, false));
+		}
+		return states;
+	}
+
+
+	static FeatureMatrix randomData(int frames, long seed) {
+		Random random = new Random(seed);
+		final int dim = ModelTrainer.FRAME_DATA_LENGTH;
+		float[] values = new float[frames * dim];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (float)(random.nextGaussian() * 3 + i % dim);
+		}
+		return new FeatureMatrix(values, dim, 100);
+	}
+
+
+	/**
+	 * Creates an alignment of words uttered by random speakers, with
+	 * unaligned frames at both ends, and commits it to the tokens.
+	 */
+	static Alignment randomAlignment(
+			HMMState[] states,
+			int speakers,
+			Random random)
+	{
+		final int offset = 50;
+		Alignment al = new Alignment(offset);
+
+		HMMState prev = null;
+		for (int f = offset; f < FRAMES - 100; ) {
+			Token w = new Token("w");
+			w.setSpeaker(random.nextInt(speakers));
+
+			int nSegs = 2 + random.nextInt(5);
+			for (int s = 0; s < nSegs; s++) {
+				HMMState state;
+				do {
+					state = states[random.nextInt(states.length)];
+				} while (state == prev);
+				prev = state;
+
+				int length = 1 + random.nextInt(8);
+				al.newSegment(state, w, length);
+				f += length;
+			}
+		}
+
+		al.commitToTokens();
+		return al;
+	}
+
+
+	static void assertLikelihoodMatchesRetraining(
+			SpeakerDepModelTrainer reference,
+			Alignment alignment,
+			double likelihood)
+	{
+		double full = Metropolis.train(reference, alignment);
+		assertEquals(full, likelihood, Math.abs(full) * 1e-9);
+	}
+
+
+	private static void checkIncrementalUpdates(int speakers, long seed) {
+		Random random = new Random(seed);
+		FeatureMatrix data = randomData(FRAMES, seed);
+		Alignment baseline = randomAlignment(stubStates(12), speakers, random);
+
+		SpeakerDepModelTrainer reference =
+				new SpeakerDepModelTrainer(speakers, data);
+		Metropolis m = new Metropolis(baseline,
+				new SpeakerDepModelTrainer(speakers, data), random, 1);
+
+		for (int i = 0; i < 150; i++) {
+			m.iterate();
+			assertTrue(m.getAlignment().verify());
+			assertLikelihoodMatchesRetraining(
+					reference, m.getAlignment(), m.getLikelihood());
+		}
+
+		// Both paths must have been exercised
+		assertTrue(m.acceptances > 0);
+		assertTrue(m.rejections > 0);
+	}
+
+
+	@Test
+	public void testIncrementalUpdatesOneSpeaker() {
+		checkIncrementalUpdates(1, 1);
+	}
+
+
+	@Test
+	public void testIncrementalUpdatesTwoSpeakers() {
+		checkIncrementalUpdates(2, 2);
+	}
+
+
+	@Test
+	public void testIncrementalUpdatesThreeSpeakers() {
+		checkIncrementalUpdates(3, 3);
+	}
+
+
+	@Test
+	public void testIncrementalUpdatesWithoutSilences() {
+		SpeakerDepModelTrainer.LEARN_SILENCES = false;
+		checkIncrementalUpdates(2, 4);
+	}
+
+
+	@Test
+	public void testTokensChanged() {
+		final int speakers = 2;
+		Random random = new Random(5);
+		FeatureMatrix data = randomData(FRAMES, 5);
+		Alignment baseline = randomAlignment(stubStates(12), speakers, random);
+
+		SpeakerDepModelTrainer reference =
+				new SpeakerDepModelTrainer(speakers, data);
+		Metropolis m = new Metropolis(baseline,
+				new SpeakerDepModelTrainer(speakers, data), random, 1);
+
+		for (int i = 0; i < 100; i++) {
+			m.iterate();
+
+			// Like the refinement iteration hook in Aligner
+			if (i % 10 == 0) {
+				m.getAlignment().commitToTokens();
+				m.tokensChanged();
+			}
+
+			assertLikelihoodMatchesRetraining(
+					reference, m.getAlignment(), m.getLikelihood());
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package fr.loria.synalp.jtrans.align;
+
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+import fr.loria.synalp.jtrans.JTrans;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+import fr.loria.synalp.jtrans.train.SpeakerDepModelTrainer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static fr.loria.synalp.jtrans.align.MetropolisTest.*;
+import static org.junit.Assert.*;
+
+public class MultiChainMetropolisTest {
+
+	private static final int SPEAKERS = 2;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private String logID;
+	private FeatureMatrix data;
+	private Alignment baseline;
+
+
+	@Before
+	public void setUp() {
+		// Keep likelihood plots out of the working directory
+		logID = JTrans.logID;
+		JTrans.logID = new File(tmp.getRoot(), "test").getPath();
+
+		Random random = new Random(1);
+		data = randomData(FRAMES, 1);
+		baseline = randomAlignment(stubStates(12), SPEAKERS, random);
+	}
+
+
+	@After
+	public void tearDown() {
+		JTrans.logID = logID;
+	}
+
+
+	private SpeakerDepModelTrainer newTrainer() {
+		return new SpeakerDepModelTrainer(SPEAKERS, data);
+	}
+
+
+	private static void assertSameAlignment(Alignment expected, Alignment actual) {
+		assertEquals(expected.getSegmentCount(), actual.getSegmentCount());
+		for (int i = 0; i < expected.getSegmentCount(); i++) {
+			assertEquals(expected.getSegmentStart(i), actual.getSegmentStart(i));
+			assertSame(expected.getState(i), actual.getState(i));
+		}
+		assertEquals(expected.getLength(), actual.getLength());
+	}
+
+
+	@Test
+	public void testSingleChainBehavesLikeMetropolis() throws Exception {
+		MultiChainMetropolis mcm = new MultiChainMetropolis(
+				baseline, newTrainer(), 1, 1, new Random(2));
+		Metropolis m = new Metropolis(
+				baseline, newTrainer(), new Random(new Random(2).nextLong()), 1);
+
+		try {
+			for (int i = 0; i < 50; i++) {
+				Alignment best = mcm.step();
+				m.iterate();
+
+				assertEquals(m.getLikelihood(), mcm.getBestLikelihood(), 0);
+				assertSameAlignment(m.getAlignment(), best);
+			}
+		} finally {
+			mcm.shutdown();
+		}
+	}
+
+
+	@Test
+	public void testBestLikelihoodMatchesRetraining() throws Exception {
+		MultiChainMetropolis mcm = new MultiChainMetropolis(
+				baseline, newTrainer(), 3, 2, new Random(3));
+		SpeakerDepModelTrainer reference = newTrainer();
+
+		try {
+			for (int i = 0; i < 50; i++) {
+				Alignment best = mcm.step();
+				assertTrue(best.verify());
+				assertLikelihoodMatchesRetraining(
+						reference, best, mcm.getBestLikelihood());
+
+				for (Metropolis chain: mcm.chains) {
+					assertTrue(chain.getLikelihood() <= mcm.getBestLikelihood());
+				}
+			}
+		} finally {
+			mcm.shutdown();
+		}
+	}
+
+
+	@Test
+	public void testExchangesKeepChainsConsistent() throws Exception {
+		MultiChainMetropolis mcm = new MultiChainMetropolis(
+				baseline, newTrainer(), 3, 2, new Random(4));
+		SpeakerDepModelTrainer reference = newTrainer();
+
+		try {
+			for (int i = 0; i < 50; i++) {
+				mcm.step();
+				for (Metropolis chain: mcm.chains) {
+					assertLikelihoodMatchesRetraining(
+							reference, chain.getAlignment(), chain.getLikelihood());
+				}
+			}
+		} finally {
+			mcm.shutdown();
+		}
+
+		assertTrue(mcm.exchanges > 0);
+	}
+
+
+	@Test
+	public void testExchangeSwapsAlignmentsAndLikelihoods() {
+		Metropolis a = new Metropolis(baseline, newTrainer(), new Random(5), 1);
+		Metropolis b = new Metropolis(baseline, newTrainer(), new Random(6), 2);
+		SpeakerDepModelTrainer reference = newTrainer();
+
+		for (int i = 0; i < 20; i++) {
+			a.iterate();
+			b.iterate();
+		}
+
+		Alignment alignmentA = a.getAlignment();
+		double lhdA = a.getLikelihood();
+
+		a.exchange(b);
+		assertSame(alignmentA, b.getAlignment());
+		assertEquals(lhdA, b.getLikelihood(), 0);
+
+		// The trainers must catch up with their new alignments
+		for (int i = 0; i < 20; i++) {
+			a.iterate();
+			b.iterate();
+			assertLikelihoodMatchesRetraining(
+					reference, a.getAlignment(), a.getLikelihood());
+			assertLikelihoodMatchesRetraining(
+					reference, b.getAlignment(), b.getLikelihood());
+		}
+
+		assertEquals(1.0, a.getTemperature(), 0);
+		assertEquals(2.0, b.getTemperature(), 0);
+	}
+
+}
@@ -0,0 +1,160 @@
+package fr.loria.synalp.jtrans.graph;
+
+import edu.cmu.sphinx.frontend.Data;
+import edu.cmu.sphinx.frontend.FloatData;
+import edu.cmu.sphinx.linguist.acoustic.HMM;
+import edu.cmu.sphinx.linguist.acoustic.HMMState;
+import edu.cmu.sphinx.linguist.acoustic.HMMStateArc;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EmissionScorerTest {
+
+	private static final int STATES = 200;
+
+
+	/**
+	 * State whose score is a function of its ID and of the frame.
+	 * Counts how many times it has been scored.
+	 */
+	private static class StubState implements HMMState {
+		private final int id;
+		private final AtomicInteger evaluations = new AtomicInteger();
+
+		StubState(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public float getScore(Data data) {
+			evaluations.incrementAndGet();
+			return ((FloatData)data).getValues()[0] * (id + 1) - id;
+		}
+
+		@Override public HMM getHMM() { return null; }
+		@Override public int getState() { return 0; }
+		@Override public boolean isEmitting() { return true; }
+		@Override public HMMStateArc[] getSuccessors() { return null; }
+		@Override public boolean isExitState() { return false; }
+	}
+
+
+	private int threads;
+	private StubState[] states;
+
+
+	@Before
+	public void setUp() {
+		threads = EmissionScorer.THREADS;
+
+		states = new StubState[STATES];
+		for (int i = 0; i < STATES; i++) {
+			states[i] = new StubState(i);
+		}
+	}
+
+
+	@After
+	public void restoreThreads() {
+		EmissionScorer.THREADS = threads;
+	}
+
+
+	private static Data frame(float value) {
+		return new FloatData(new float[]{value}, 100, 0, 0);
+	}
+
+
+	private int[] evaluations() {
+		int[] counts = new int[STATES];
+		for (int i = 0; i < STATES; i++) {
+			counts[i] = states[i].evaluations.get();
+		}
+		return counts;
+	}
+
+
+	private float[] scoreEveryOtherState(float value) {
+		EmissionScorer scorer = new EmissionScorer(states);
+		for (int i = 0; i < STATES; i += 2) {
+			scorer.require(i);
+		}
+		return Arrays.copyOf(scorer.score(frame(value)), STATES);
+	}
+
+
+	@Test
+	public void testConcurrentScoresMatchSequential() {
+		EmissionScorer.THREADS = 1;
+		float[] sequential = scoreEveryOtherState(3);
+
+		EmissionScorer.THREADS = 4;
+		float[] concurrent = scoreEveryOtherState(3);
+
+		assertArrayEquals(sequential, concurrent, 0);
+		for (int i = 0; i < STATES; i++) {
+			assertEquals(i % 2 == 0? 3 * (i + 1) - i: 0, concurrent[i], 0);
+		}
+	}
+
+
+	@Test
+	public void testRequireDeduplicates() {
+		EmissionScorer.THREADS = 4;
+		EmissionScorer scorer = new EmissionScorer(states);
+
+		for (int pass = 0; pass < 3; pass++) {
+			for (int i = 0; i < STATES; i += 3) {
+				scorer.require(i);
+			}
+		}
+		scorer.score(frame(1));
+
+		int[] counts = evaluations();
+		for (int i = 0; i < STATES; i++) {
+			assertEquals(i % 3 == 0? 1: 0, counts[i]);
+		}
+	}
+
+
+	@Test
+	public void testQueueClearedBetweenFrames() {
+		EmissionScorer.THREADS = 4;
+		EmissionScorer scorer = new EmissionScorer(states);
+
+		scorer.requireAll();
+		scorer.score(frame(1));
+		assertArrayEquals(fill(1), evaluations());
+
+		// Nothing is scored again unless required
+		float[] scores = scorer.score(frame(2));
+		assertArrayEquals(fill(1), evaluations());
+		assertEquals(1 * 6 - 5, scores[5], 0);
+
+		// States scored in the previous frame may be required again
+		scorer.require(5);
+		scorer.require(7);
+		scorer.require(5);
+		scores = scorer.score(frame(2));
+		assertEquals(2, states[5].evaluations.get());
+		assertEquals(2, states[7].evaluations.get());
+		assertEquals(1, states[6].evaluations.get());
+		assertEquals(2 * 6 - 5, scores[5], 0);
+		assertEquals(1 * 7 - 6, scores[6], 0);
+		assertEquals(2 * 8 - 7, scores[7], 0);
+	}
+
+
+	private static int[] fill(int value) {
+		int[] a = new int[STATES];
+		Arrays.fill(a, value);
+		return a;
+	}
+
+}
@@ -1,8 +1,13 @@
 package fr.loria.synalp.jtrans.graph;
 
+import edu.cmu.sphinx.frontend.FloatData;
+import fr.loria.synalp.jtrans.graph.swap.SwapDeflater;
+import fr.loria.synalp.jtrans.graph.swap.SwapInflater;
 import fr.loria.synalp.jtrans.project.Token;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -492,7 +497,8 @@ public class StateGraphTest {
 		assertEquals(sg.getNodeCount(), copy.getNodeCount());
 		assertEquals(sg.nWords, copy.nWords);
 		assertEquals(sg.words, copy.words);
-		assertArrayEquals(sg.outCount, copy.outCount);
+		assertArrayEquals(sg.out.offsets, copy.out.offsets);
+		assertArrayEquals(sg.in.offsets, copy.in.offsets);
 		assertArrayEquals(sg.nodeStates, copy.nodeStates);
 		assertArrayEquals(sg.wordBoundaries, copy.wordBoundaries);
 
@@ -500,17 +506,22 @@ public class StateGraphTest {
 			assertEquals(sg.getPhoneAt(i), copy.getPhoneAt(i));
 			assertEquals(sg.getStateAt(i), copy.getStateAt(i));
 			assertEquals(sg.getWordIdxAt(i), copy.getWordIdxAt(i));
-			assertArrayEquals(sg.outNode[i], copy.outNode[i]);
-			assertArrayEquals(sg.outProb[i], copy.outProb[i], 0);
+			for (int t = 0; t < sg.out.count(i); t++) {
+				assertEquals(sg.out.target(i, t), copy.out.target(i, t));
+				assertEquals(sg.out.logProb(i, t), copy.out.logProb(i, t), 0);
+			}
 		}
+
+		assertNotSame(sg.out.targets, copy.out.targets);
+		assertNotSame(sg.in.targets, copy.in.targets);
 	}
 
 
 	@Test
-	public void testInboundTransitionBridge() {
+	public void testInboundTransitions() {
 		StateGraph sg = bogusSG(false, "[ a ]", "( e | i )");
 
-		StateGraph.InboundTransitionBridge itb = sg.new InboundTransitionBridge();
+		TransitionTable in = sg.in;
 
 		int[] inCount = {
 				1, 2, 2, // sil
@@ -528,12 +539,159 @@ public class StateGraphTest {
 				{12, 8,11},  {13,12}, {14,13}, // sil
 		};
 
-		assertArrayEquals(itb.inCount, inCount);
+		assertEquals(inCount.length, in.getNodeCount());
 		for (int n = 0; n < sg.getNodeCount(); n++) {
+			assertEquals(inCount[n], in.count(n));
 			for (int t = 0; t < inCount[n]; t++) {
-				assertEquals(inNode[n][t], itb.inNode[n][t]);
+				int k = inNode[n][t];
+				assertEquals(k, in.target(n, t));
+
+				// Inbound probability must match that of the outbound twin
+				int twin = 0;
+				while (sg.out.target(k, twin) != n) {
+					twin++;
+				}
+				assertEquals(sg.out.logProb(k, twin), in.logProb(n, t), 0);
+			}
+		}
+	}
+
+
+	@Test
+	public void testTransitionTableIsCompact() {
+		StateGraph sg = bogusSG(false, "[ a ]", "( e | i )");
+
+		int outTotal = 0;
+		for (int n = 0; n < sg.getNodeCount(); n++) {
+			outTotal += sg.out.count(n);
+		}
+
+		assertEquals(outTotal, sg.out.getTransitionCount());
+		assertEquals(outTotal, sg.in.getTransitionCount());
+		assertEquals(sg.getNodeCount()+1, sg.out.offsets.length);
+	}
+
+
+
+	/**
+	 * Generates reproducible pseudo-random MFCC-like frames.
+	 */
+	public static List<FloatData> bogusFrames(int count, long seed) {
+		Random random = new Random(seed);
+		List<FloatData> data = new ArrayList<>(count);
+
+		for (int f = 0; f < count; f++) {
+			float[] values = new float[39];
+			for (int d = 0; d < values.length; d++) {
+				values[d] = (float) random.nextGaussian();
 			}
+			data.add(new FloatData(values, 16000, f * 10, f * 160));
 		}
+
+		return data;
+	}
+
+
+	/**
+	 * Runs both Viterbi passes on a graph with an in-memory swap.
+	 */
+	public static int[] viterbiTimeline(StateGraph sg, List<FloatData> data)
+			throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SwapDeflater swapWriter = SwapDeflater.getSensibleSwapDeflater(true);
+		swapWriter.init(sg.getNodeCount(), out);
+		sg.viterbi(FeatureMatrix.fromFrames(data, 39), swapWriter, 0, data.size()-1);
+
+		SwapInflater swapReader = new SwapInflater();
+		swapReader.init(swapWriter.getIndex(), out.toByteArray());
+		return sg.backtrack(swapReader);
+	}
+
+
+	/**
+	 * Runs Viterbi on a graph with token-based backtracking.
+	 */
+	public static int[] tokenTimeline(StateGraph sg, List<FloatData> data)
+			throws Exception
+	{
+		TokenBacktracker tracker = new TokenBacktracker(sg);
+		sg.viterbi(FeatureMatrix.fromFrames(data, 39), tracker, 0, data.size()-1);
+		return tracker.getTimeline();
+	}
+
+
+	/**
+	 * Runs both Viterbi passes on a graph with bit-packed backpointers.
+	 */
+	public static int[] packedTimeline(StateGraph sg, List<FloatData> data)
+			throws Exception
+	{
+		PackedBackpointers table = new PackedBackpointers(sg, data.size());
+		sg.viterbi(FeatureMatrix.fromFrames(data, 39), table, 0, data.size()-1);
+		return sg.backtrack(table);
+	}
+
+
+	@Test
+	public void testTokenBacktrackMatchesSwap() throws Exception {
+		StateGraph sg = bogusSG("( t e y | t y )", "p eu", "[ a ] m");
+		List<FloatData> data = bogusFrames(200, 1234);
+		assertArrayEquals(viterbiTimeline(sg, data), tokenTimeline(sg, data));
+
+		sg = bogusSG("a", "e", "i", "o", "u", "a", "e", "i");
+		data = bogusFrames(300, 42);
+		assertArrayEquals(viterbiTimeline(sg, data), tokenTimeline(sg, data));
+	}
+
+
+	@Test
+	public void testTokenBacktrackMatchesSwapWithBeam() throws Exception {
+		StateGraph sg = bogusSG("( t e y | t y )", "p eu", "[ a ] m");
+		List<FloatData> data = bogusFrames(200, 1234);
+		sg.setBeam(200, StateGraph.NO_ACTIVE_NODE_CAP);
+		assertArrayEquals(viterbiTimeline(sg, data), tokenTimeline(sg, data));
+	}
+
+
+	@Test
+	public void testPackedBackpointersMatchSwap() throws Exception {
+		StateGraph sg = bogusSG("( t e y | t y )", "p eu", "[ a ] m");
+		List<FloatData> data = bogusFrames(200, 1234);
+		assertArrayEquals(viterbiTimeline(sg, data), packedTimeline(sg, data));
+
+		sg.setBeam(200, StateGraph.NO_ACTIVE_NODE_CAP);
+		assertArrayEquals(viterbiTimeline(sg, data), packedTimeline(sg, data));
+	}
+
+
+	@Test
+	public void testWideBeamMatchesExhaustiveSearch() throws Exception {
+		StateGraph sg = bogusSG("( t e y | t y )", "p eu", "[ a ] m");
+		List<FloatData> data = bogusFrames(200, 1234);
+
+		int[] exhaustive = viterbiTimeline(sg, data);
+		assertEquals(0, sg.getPrunedNodeFrames());
+
+		sg.setBeam(1e6f, StateGraph.NO_ACTIVE_NODE_CAP);
+		assertTrue(sg.isPruning());
+		assertArrayEquals(exhaustive, viterbiTimeline(sg, data));
+	}
+
+
+	@Test
+	public void testBeamPrunesNodeFrames() throws Exception {
+		StateGraph sg = bogusSG("a", "e", "i", "o", "u", "a", "e", "i");
+		List<FloatData> data = bogusFrames(300, 42);
+
+		SwapDeflater swapWriter = SwapDeflater.getSensibleSwapDeflater(true);
+		swapWriter.init(sg.getNodeCount(), new ByteArrayOutputStream());
+
+		sg.setBeam(StateGraph.NO_BEAM, 6);
+		sg.viterbi(FeatureMatrix.fromFrames(data, 39), swapWriter, 0, data.size()-1);
+
+		// The first frame can only reach the successors of node #0
+		assertTrue(sg.getPrunedNodeFrames() >= sg.getNodeCount() - 2);
 	}
 
 }
@@ -0,0 +1,114 @@
+package fr.loria.synalp.jtrans.graph;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimelineCodecTest {
+
+	private static int[] randomTimeline(int frames, long seed) {
+		Random random = new Random(seed);
+		int[] timeline = new int[frames];
+		int node = 0;
+		for (int f = 0; f < frames; f++) {
+			// Mostly loops, sometimes skips
+			int r = random.nextInt(10);
+			if (r == 0) {
+				node += 2;
+			} else if (r < 3) {
+				node++;
+			}
+			timeline[f] = node;
+		}
+		return timeline;
+	}
+
+
+	private static byte[] encode(int[] timeline) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TimelineCodec.write(timeline, out);
+		return out.toByteArray();
+	}
+
+
+	private static int[] decode(byte[] data) throws IOException {
+		return TimelineCodec.read(new ByteArrayInputStream(data));
+	}
+
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		int[] timeline = randomTimeline(100000, 1);
+		byte[] data = encode(timeline);
+		assertArrayEquals(timeline, decode(data));
+
+		// Much smaller than 4 bytes per frame
+		assertTrue(data.length < timeline.length);
+	}
+
+
+	@Test
+	public void testBackwardsAndLargeNodes() throws IOException {
+		int[] timeline = {5, 5, 3, 3, 3, 0, 1000000, 1000000, Integer.MAX_VALUE, 7};
+		assertArrayEquals(timeline, decode(encode(timeline)));
+	}
+
+
+	@Test
+	public void testEmpty() throws IOException {
+		assertArrayEquals(new int[0], decode(encode(new int[0])));
+	}
+
+
+	@Test
+	public void testRuns() throws IOException {
+		TimelineCodec.Reader reader = new TimelineCodec.Reader(
+				new ByteArrayInputStream(encode(new int[]{0, 0, 0, 2, 3, 3})));
+
+		assertEquals(6, reader.getFrameCount());
+
+		assertTrue(reader.nextRun());
+		assertEquals(0, reader.getNode());
+		assertEquals(3, reader.getRunLength());
+
+		assertTrue(reader.nextRun());
+		assertEquals(2, reader.getNode());
+		assertEquals(1, reader.getRunLength());
+
+		assertTrue(reader.nextRun());
+		assertEquals(3, reader.getNode());
+		assertEquals(2, reader.getRunLength());
+
+		assertFalse(reader.nextRun());
+	}
+
+
+	@Test
+	public void testReaderStopsAtEndOfTimeline() throws IOException {
+		byte[] data = encode(randomTimeline(500, 2));
+		byte[] padded = Arrays.copyOf(data, data.length + 1);
+		padded[data.length] = 42;
+
+		InputStream in = new ByteArrayInputStream(padded);
+		TimelineCodec.read(in);
+		assertEquals(42, in.read());
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testTruncated() throws IOException {
+		byte[] data = encode(randomTimeline(500, 3));
+		decode(Arrays.copyOf(data, data.length - 1));
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testNotATimeline() throws IOException {
+		decode(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+	}
+
+}
@@ -0,0 +1,147 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PageIndexTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	private static PageIndex randomIndex(int pages, long seed) {
+		Random random = new Random(seed);
+		PageIndex index = new PageIndex(123);
+		for (int p = 0; p < pages; p++) {
+			index.putPage(1 + random.nextInt(20), random.nextInt(5000));
+		}
+		return index;
+	}
+
+
+	@Test
+	public void testFindPage() {
+		PageIndex index = randomIndex(100, 1);
+
+		int page = 0;
+		for (int f = 0; f < index.getFrameCount(); f++) {
+			if (!index.getPageByNumber(page).within(f)) {
+				page++;
+			}
+			assertEquals(page, index.findPage(f));
+			assertTrue(index.getPage(f).within(f));
+		}
+
+		assertEquals(index.getPageCount()-1, page);
+	}
+
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testFrameOutOfBounds() {
+		PageIndex index = randomIndex(3, 2);
+		index.findPage(index.getFrameCount());
+	}
+
+
+	@Test
+	public void testSerialization() throws IOException {
+		PageIndex index = randomIndex(50, 3);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		index.serialize(baos);
+		assertEquals(index.getSerializedLength(), baos.size());
+
+		PageIndex copy = PageIndex.deserialize(
+				new ByteArrayInputStream(baos.toByteArray()));
+
+		assertEquals(index.nStates, copy.nStates);
+		assertEquals(index.getPageCount(), copy.getPageCount());
+		assertEquals(index.getFrameCount(), copy.getFrameCount());
+		assertEquals(index.getCompressedBytes(), copy.getCompressedBytes());
+
+		for (int p = 0; p < index.getPageCount(); p++) {
+			PageIndex.Entry a = index.getPageByNumber(p);
+			PageIndex.Entry b = copy.getPageByNumber(p);
+			assertEquals(a.frame0, b.frame0);
+			assertEquals(a.frameCount, b.frameCount);
+			assertEquals(a.offset, b.offset);
+			assertEquals(a.compressedChunkLength, b.compressedChunkLength);
+		}
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testCorruptRecord() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		randomIndex(10, 4).serialize(baos);
+
+		byte[] buf = baos.toByteArray();
+		// Mess up the offset of the 2nd page
+		buf[PageIndex.HEADER_BYTES + PageIndex.RECORD_BYTES + 11] ^= 1;
+
+		PageIndex.deserialize(new ByteArrayInputStream(buf));
+	}
+
+
+	/**
+	 * Writes a swap file made of dummy pages followed by an index trailer.
+	 * @return offset of the index in the file
+	 */
+	private static long writeSwap(File file, PageIndex index)
+			throws IOException
+	{
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(new byte[(int)index.getCompressedBytes()]);
+			index.writeTrailer(out);
+		}
+		return index.getCompressedBytes();
+	}
+
+
+	@Test
+	public void testTrailer() throws IOException {
+		PageIndex index = randomIndex(10, 5);
+		File file = tmp.newFile("swap");
+		writeSwap(file, index);
+
+		PageIndex copy = PageIndex.readTrailer(file);
+		assertEquals(index.getPageCount(), copy.getPageCount());
+		assertEquals(index.getFrameCount(), copy.getFrameCount());
+	}
+
+
+	@Test
+	public void testTrailerPageCountBeyondFile() throws IOException {
+		File file = tmp.newFile("swap");
+		long indexOffset = writeSwap(file, randomIndex(10, 6));
+
+		// Page counts whose records don't fit in the file, including one
+		// whose size in bytes overflows an int
+		for (int pageCount: new int[]{11, 1 << 28, Integer.MAX_VALUE}) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(indexOffset + 16);
+				raf.writeInt(pageCount);
+			}
+
+			try {
+				PageIndex.readTrailer(file);
+				fail("IOException expected for page count " + pageCount);
+			} catch (IOException ex) {
+				// expected
+			}
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RlePackCodecTest {
+
+	private static byte[] roundTrip(byte[] raw) throws IOException {
+		SwapCodec codec = new RlePackCodec();
+
+		byte[] packed = new byte[4];
+		int len;
+		while (-1 == (len = codec.newEncoder().encode(raw, raw.length, packed))) {
+			packed = new byte[packed.length * 2];
+		}
+
+		byte[] unpacked = new byte[raw.length];
+		codec.newDecoder().decode(packed, 0, len, unpacked, raw.length);
+		assertArrayEquals(raw, unpacked);
+		return Arrays.copyOf(packed, len);
+	}
+
+
+	@Test
+	public void testEdgeCases() throws IOException {
+		roundTrip(new byte[0]);
+		roundTrip(new byte[]{0});
+		roundTrip(new byte[]{63});
+		roundTrip(new byte[]{0, 0, 5, 0, 1, 0, 0, 0, 0, 0, 63, 0});
+		roundTrip(new byte[]{1, 2, 3, 4, 5, 6, 7});
+	}
+
+
+	@Test
+	public void testZeroes() throws IOException {
+		// A single block: two varints
+		assertEquals(4, roundTrip(new byte[100000]).length);
+	}
+
+
+	@Test
+	public void testRandom() throws IOException {
+		Random random = new Random(123);
+		for (int density: new int[]{1, 3, 10, 50, 100}) {
+			byte[] raw = new byte[5000];
+			for (int i = 0; i < raw.length; i++) {
+				if (random.nextInt(100) < density) {
+					raw[i] = (byte)random.nextInt(64);
+				}
+			}
+			byte[] packed = roundTrip(raw);
+
+			// Never much worse than 6 bits per value
+			assertTrue(packed.length <= raw.length * 6 / 8 + 16);
+		}
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValueOutOfRange() {
+		new RlePackCodec().newEncoder().encode(new byte[]{64}, 1, new byte[16]);
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testTruncated() throws IOException {
+		byte[] raw = {0, 0, 0, 0, 0, 9, 9, 9, 9, 9, 9};
+		byte[] packed = new byte[64];
+		int len = new RlePackCodec().newEncoder().encode(raw, raw.length, packed);
+		new RlePackCodec().newDecoder().decode(
+				packed, 0, len-1, new byte[raw.length], raw.length);
+	}
+
+}
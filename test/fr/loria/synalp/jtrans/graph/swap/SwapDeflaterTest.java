@@ -0,0 +1,240 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import fr.loria.synalp.jtrans.graph.StateGraph;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SwapDeflaterTest {
+
+	private static byte[][] randomFrames(int frames, int nStates, long seed) {
+		Random random = new Random(seed);
+		byte[][] data = new byte[frames][nStates];
+		for (byte[] frame: data) {
+			for (int s = 0; s < nStates; s++) {
+				// Mostly stable backpointers, like real Viterbi output
+				frame[s] = (byte)(random.nextInt(10) == 0?
+						random.nextInt(StateGraph.MAX_TRANSITIONS): s % 3);
+			}
+		}
+		return data;
+	}
+
+
+	private static void roundTrip(SwapDeflater writer, byte[][] data)
+			throws IOException, InterruptedException
+	{
+		int nStates = data[0].length;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		writer.init(nStates, out);
+		for (byte[] frame: data) {
+			writer.write(frame);
+		}
+		writer.close();
+
+		PageIndex index = writer.getIndex();
+		assertEquals(data.length, index.getFrameCount());
+		assertEquals(out.size(), index.getCompressedBytes());
+		assertEquals(0, writer.getQueueDepth());
+
+		SwapInflater reader = new SwapInflater();
+		reader.init(index, out.toByteArray());
+
+		// Backwards, as in a backtrack
+		for (int f = data.length-1; f >= 0; f--) {
+			for (int s = 0; s < nStates; s++) {
+				assertEquals(data[f][s], reader.getIncomingTransition(f, s));
+			}
+		}
+	}
+
+
+	@Test
+	public void testManySmallPages() throws IOException, InterruptedException {
+		// 7 frames per page, 143 frames -> 21 pages (the last one is partial)
+		SwapDeflater writer = new SwapDeflater(7*50, new DeflateCodec(), 3, 2);
+		roundTrip(writer, randomFrames(143, 50, 1));
+		assertEquals(21, writer.getIndex().getPageCount());
+		assertTrue(writer.getMaxQueueDepth() <= writer.getPipelinePages());
+	}
+
+
+	@Test
+	public void testReuse() throws IOException, InterruptedException {
+		SwapDeflater writer = new SwapDeflater(1000, new DeflateCodec(), 4, 6);
+		roundTrip(writer, randomFrames(500, 40, 2));
+		roundTrip(writer, randomFrames(300, 120, 3));
+		roundTrip(writer, randomFrames(1, 7, 4));
+	}
+
+
+	@Test
+	public void testSingleWorkerNoCompression()
+			throws IOException, InterruptedException
+	{
+		SwapDeflater writer = new SwapDeflater(
+				512, SwapCodec.forName("store"), 1, 2);
+		roundTrip(writer, randomFrames(200, 33, 5));
+	}
+
+
+	@Test
+	public void testRlePack() throws IOException, InterruptedException {
+		SwapDeflater writer = new SwapDeflater(10*64, new RlePackCodec(), 2, 3);
+		roundTrip(writer, randomFrames(250, 64, 7));
+		assertEquals(SwapCodec.RLE_PACK, writer.getIndex().codecId);
+
+		// Smaller than the raw backpointers
+		assertTrue(writer.getIndex().getCompressedBytes() < 250 * 64 / 2);
+	}
+
+
+	@Test
+	public void testWriteFailureIsReported() throws InterruptedException {
+		SwapDeflater writer = new SwapDeflater(100, new DeflateCodec(), 2, 2);
+
+		writer.init(10, new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("disk full");
+			}
+		});
+
+		try {
+			for (byte[] frame: randomFrames(1000, 10, 6)) {
+				writer.write(frame);
+			}
+			writer.close();
+			fail("expected IOException");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+
+	@Test
+	public void testAbortLetsDeflaterBeReused()
+			throws IOException, InterruptedException
+	{
+		SwapDeflater writer = new SwapDeflater(10*20, new DeflateCodec(), 3, 2);
+
+		// Forward pass gives up halfway through, without closing the swap
+		writer.init(20, new ByteArrayOutputStream());
+		for (byte[] frame: randomFrames(95, 20, 8)) {
+			writer.write(frame);
+		}
+		writer.abort();
+
+		roundTrip(writer, randomFrames(120, 20, 9));
+
+		// Harmless once the swap is closed
+		writer.abort();
+		roundTrip(writer, randomFrames(50, 30, 10));
+	}
+
+
+	@Test
+	public void testAbortAfterWriteFailure() throws InterruptedException {
+		SwapDeflater writer = new SwapDeflater(100, new DeflateCodec(), 2, 2);
+
+		writer.init(10, new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("disk full");
+			}
+		});
+
+		try {
+			for (byte[] frame: randomFrames(1000, 10, 6)) {
+				writer.write(frame);
+			}
+			fail("expected IOException");
+		} catch (IOException ex) {
+			// expected
+		} finally {
+			writer.abort();
+		}
+
+		assertEquals(0, writer.getQueueDepth());
+	}
+
+
+	/**
+	 * Codec whose encoder throws after a few pages.
+	 */
+	private static SwapCodec failingCodec(final Throwable t, final int goodPages) {
+		final SwapCodec deflate = new DeflateCodec();
+
+		return new SwapCodec() {
+			@Override
+			public int getId() {
+				return deflate.getId();
+			}
+
+			@Override
+			public Encoder newEncoder() {
+				final Encoder encoder = deflate.newEncoder();
+				return new Encoder() {
+					int pages = 0;
+
+					@Override
+					public int encode(byte[] src, int length, byte[] dest) {
+						if (pages++ >= goodPages) {
+							if (t instanceof Error) {
+								throw (Error)t;
+							}
+							throw (RuntimeException)t;
+						}
+						return encoder.encode(src, length, dest);
+					}
+				};
+			}
+
+			@Override
+			public Decoder newDecoder() {
+				return deflate.newDecoder();
+			}
+		};
+	}
+
+
+	private static void assertCloseThrows(SwapCodec codec)
+			throws InterruptedException
+	{
+		SwapDeflater writer = new SwapDeflater(10*20, codec, 2, 2);
+		writer.init(20, new ByteArrayOutputStream());
+
+		try {
+			for (byte[] frame: randomFrames(200, 20, 11)) {
+				writer.write(frame);
+			}
+			writer.close();
+			fail("expected IOException");
+		} catch (IOException ex) {
+			// expected
+		} finally {
+			writer.abort();
+		}
+	}
+
+
+	@Test(timeout = 10000)
+	public void testEncoderExceptionIsReported() throws InterruptedException {
+		assertCloseThrows(failingCodec(
+				new IllegalStateException("broken encoder"), 3));
+	}
+
+
+	@Test(timeout = 10000)
+	public void testEncoderErrorIsReported() throws InterruptedException {
+		assertCloseThrows(failingCodec(
+				new OutOfMemoryError("simulated"), 0));
+	}
+
+}
@@ -0,0 +1,160 @@
+package fr.loria.synalp.jtrans.graph.swap;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class SwapInflaterTest {
+
+	private static final int FRAMES = 300;
+	private static final int STATES = 40;
+	private static final int FRAMES_PER_PAGE = 9;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private byte[][] data;
+	private PageIndex index;
+
+
+	@After
+	public void restoreSegmentSize() {
+		SwapInflater.MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+	}
+
+
+	private byte[] deflate() throws IOException, InterruptedException {
+		Random random = new Random(42);
+		data = new byte[FRAMES][STATES];
+		for (byte[] frame: data) {
+			for (int s = 0; s < STATES; s++) {
+				frame[s] = (byte)random.nextInt(3);
+			}
+		}
+
+		SwapDeflater writer = new SwapDeflater(FRAMES_PER_PAGE * STATES,
+				new DeflateCodec(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY),
+				2, 3);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer.init(STATES, out);
+		for (byte[] frame: data) {
+			writer.write(frame);
+		}
+		writer.close();
+		index = writer.getIndex();
+		return out.toByteArray();
+	}
+
+
+	private File deflateToFile() throws IOException, InterruptedException {
+		File file = tmp.newFile("test.swp");
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			fos.write(deflate());
+		}
+		return file;
+	}
+
+
+	private void checkBackwards(SwapInflater reader) throws IOException {
+		for (int f = FRAMES-1; f >= 0; f--) {
+			for (int s = 0; s < STATES; s++) {
+				assertEquals(data[f][s], reader.getIncomingTransition(f, s));
+			}
+		}
+	}
+
+
+	@Test
+	public void testBackwardsFromMemory() throws Exception {
+		byte[] swap = deflate();
+		SwapInflater reader = new SwapInflater(2, true);
+		reader.init(index, swap);
+		checkBackwards(reader);
+
+		// Each page is inflated exactly once
+		assertEquals(index.getPageCount(), reader.getInflatedPageCount());
+	}
+
+
+	@Test
+	public void testBackwardsFromMappedFile() throws Exception {
+		File file = deflateToFile();
+		SwapInflater reader = new SwapInflater(1, true);
+		reader.init(index, file);
+		checkBackwards(reader);
+		assertEquals(index.getPageCount(), reader.getInflatedPageCount());
+	}
+
+
+	@Test
+	public void testSeveralSegments() throws Exception {
+		File file = deflateToFile();
+		// Force a mapping every couple of pages
+		SwapInflater.MAX_SEGMENT_BYTES = (int)(index.getCompressedBytes()
+				* 2 / index.getPageCount());
+		SwapInflater reader = new SwapInflater(2, false);
+		reader.init(index, file);
+		checkBackwards(reader);
+	}
+
+
+	@Test
+	public void testTrailer() throws Exception {
+		deflate();
+		PageIndex original = index;
+
+		// Same swap, with its index appended
+		SwapDeflater writer = new SwapDeflater(FRAMES_PER_PAGE * STATES,
+				new DeflateCodec(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY),
+				2, 3);
+		File file = tmp.newFile("trailer.swp");
+		writer.init(STATES, new FileOutputStream(file), true);
+		for (byte[] frame: data) {
+			writer.write(frame);
+		}
+		writer.close();
+
+		index = PageIndex.readTrailer(file);
+		assertEquals(original.getPageCount(), index.getPageCount());
+		assertEquals(original.getCompressedBytes(), index.getCompressedBytes());
+		assertEquals(file.length(), index.getCompressedBytes()
+				+ index.getSerializedLength() + PageIndex.FOOTER_BYTES);
+
+		SwapInflater reader = new SwapInflater();
+		reader.init(file);
+		checkBackwards(reader);
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testNoTrailer() throws Exception {
+		PageIndex.readTrailer(deflateToFile());
+	}
+
+
+	@Test
+	public void testRandomAccess() throws Exception {
+		byte[] swap = deflate();
+		SwapInflater reader = new SwapInflater(3, true);
+		reader.init(index, swap);
+
+		Random random = new Random(1);
+		for (int i = 0; i < 2000; i++) {
+			int f = random.nextInt(FRAMES);
+			int s = random.nextInt(STATES);
+			assertEquals(data[f][s], reader.getIncomingTransition(f, s));
+		}
+
+		// Reusing the reader
+		reader.init(index, swap);
+		checkBackwards(reader);
+	}
+
+}
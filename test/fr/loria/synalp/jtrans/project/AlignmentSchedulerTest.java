@@ -0,0 +1,213 @@
+package fr.loria.synalp.jtrans.project;
+
+import edu.cmu.sphinx.frontend.FloatData;
+import fr.loria.synalp.jtrans.align.Aligner;
+import fr.loria.synalp.jtrans.align.Alignment;
+import fr.loria.synalp.jtrans.align.LinearAligner;
+import fr.loria.synalp.jtrans.graph.StateGraph;
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureSource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AlignmentSchedulerTest {
+
+	private static final int FRAMES = 6000;
+	private static final int CHUNKS = 12;
+	private static final String FAILING_WORD = "boom";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	/**
+	 * Aligns states linearly on dummy features, taking a random amount of time
+	 * for each chunk so that jobs complete out of order.
+	 */
+	private static class StubAligner extends Aligner {
+		private final Thread caller = Thread.currentThread();
+		private final Random random = new Random(1);
+		private final String failingWord;
+		private volatile boolean committedOffCaller = false;
+
+		/**
+		 * @param failingWord alignments containing this word throw an
+		 *                    IOException (may be null)
+		 */
+		StubAligner(File audio, String failingWord) {
+			super(audio, null);
+			this.failingWord = failingWord;
+
+			data = new FeatureSource() {
+				@Override
+				public int getFrameCount() {
+					return FRAMES;
+				}
+
+				@Override
+				public FloatData getFrame(int frame) {
+					throw new UnsupportedOperationException();
+				}
+			};
+
+			setPostAlignHook(new Runnable() {
+				@Override
+				public void run() {
+					if (Thread.currentThread() != caller) {
+						committedOffCaller = true;
+					}
+				}
+			});
+		}
+
+		@Override
+		protected Alignment getAlignment(
+				StateGraph graph,
+				String text,
+				int startFrame,
+				int endFrame)
+				throws IOException, InterruptedException
+		{
+			int delay;
+			synchronized (random) {
+				delay = random.nextInt(20);
+			}
+			Thread.sleep(delay);
+
+			if (null != failingWord && text.contains(failingWord)) {
+				throw new IOException(failingWord);
+			}
+
+			final int length = boundCheckLength(startFrame, endFrame);
+			int[] nodes = new int[length];
+			LinearAligner.fillInterpolate(graph.getNodeCount(), nodes, 0, length);
+			return graph.alignmentFromNodeTimeline(nodes, startFrame);
+		}
+	}
+
+
+	private static List<List<Token>> makeChunks(String... extraWords) {
+		List<List<Token>> chunks = new ArrayList<>();
+		for (int i = 0; i < CHUNKS; i++) {
+			List<Token> words = new ArrayList<>();
+			words.add(new Token("bonjour"));
+			words.add(new Token("le"));
+			words.add(new Token("monde"));
+			if (i == CHUNKS / 2) {
+				for (String w: extraWords) {
+					words.add(new Token(w));
+				}
+			}
+			chunks.add(words);
+		}
+		return chunks;
+	}
+
+
+	/**
+	 * Aligns each chunk between two anchors. Every job aligns its chunk in
+	 * two passes, the second one relying on the timing committed by the
+	 * first, like in TurnProject.
+	 */
+	private static void alignChunks(
+			AlignmentScheduler scheduler,
+			List<List<Token>> chunks)
+			throws IOException, InterruptedException
+	{
+		final float chunkSeconds = 4f;
+
+		for (int i = 0; i < chunks.size(); i++) {
+			final Anchor start = new Anchor(i * chunkSeconds);
+			final Anchor half = new Anchor((i + .5f) * chunkSeconds);
+			final Anchor end = new Anchor((i + 1) * chunkSeconds);
+			final List<Token> words = chunks.get(i);
+
+			scheduler.submit(new AlignmentScheduler.Job() {
+				@Override
+				public void run(AlignmentScheduler.Sink sink)
+						throws IOException, InterruptedException
+				{
+					List<Token> head = words.subList(0, 1);
+					List<Token> tail = words.subList(1, words.size());
+
+					sink.align(start, half, head);
+
+					Anchor mid = new Anchor(0);
+					mid.setFrame(head.get(0).getSegment().getEndFrame() + 1);
+					sink.align(mid, end, tail);
+				}
+			});
+		}
+
+		scheduler.finish();
+	}
+
+
+	private static void assertSameTimings(
+			List<List<Token>> expected,
+			List<List<Token>> actual)
+	{
+		assertEquals(expected.size(), actual.size());
+
+		for (int i = 0; i < expected.size(); i++) {
+			List<Token> e = expected.get(i);
+			List<Token> a = actual.get(i);
+			assertEquals(e.size(), a.size());
+
+			for (int j = 0; j < e.size(); j++) {
+				Token et = e.get(j);
+				Token at = a.get(j);
+				assertTrue(at.isAligned());
+				assertEquals(et.getSegment().getStartFrame(),
+						at.getSegment().getStartFrame());
+				assertEquals(et.getSegment().getEndFrame(),
+						at.getSegment().getEndFrame());
+				assertEquals(et.getPhones().size(), at.getPhones().size());
+			}
+		}
+	}
+
+
+	@Test
+	public void testConcurrentTimingsMatchSequential() throws Exception {
+		File audio = tmp.newFile("audio.wav");
+
+		StubAligner sequentialAligner = new StubAligner(audio, null);
+		List<List<Token>> sequential = makeChunks();
+		alignChunks(new AlignmentScheduler(sequentialAligner, null, 1),
+				sequential);
+
+		StubAligner concurrentAligner = new StubAligner(audio, null);
+		List<List<Token>> concurrent = makeChunks();
+		alignChunks(new AlignmentScheduler(concurrentAligner, null, 4),
+				concurrent);
+
+		assertSameTimings(sequential, concurrent);
+		assertFalse(sequentialAligner.committedOffCaller);
+		assertFalse(concurrentAligner.committedOffCaller);
+	}
+
+
+	@Test
+	public void testJobExceptionReachesFinish() throws Exception {
+		File audio = tmp.newFile("audio.wav");
+		AlignmentScheduler scheduler = new AlignmentScheduler(
+				new StubAligner(audio, FAILING_WORD), null, 4);
+
+		try {
+			alignChunks(scheduler, makeChunks(FAILING_WORD));
+			fail("IOException expected");
+		} catch (IOException ex) {
+			assertEquals(FAILING_WORD, ex.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package fr.loria.synalp.jtrans.speechreco.s4;
+
+import edu.cmu.sphinx.frontend.FloatData;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FeatureMatrixTest {
+
+	@Test
+	public void testRowsMatchFrames() {
+		List<FloatData> frames = new ArrayList<>();
+		for (int f = 0; f < 10; f++) {
+			float[] values = new float[3];
+			for (int d = 0; d < 3; d++) {
+				values[d] = f * 10 + d;
+			}
+			frames.add(new FloatData(values, 16000, f * 10, f * 160));
+		}
+
+		FeatureMatrix m = FeatureMatrix.fromFrames(frames, 3);
+		assertEquals(10, m.getFrameCount());
+		assertEquals(3, m.getDimension());
+		assertEquals(30, m.getValues().length);
+
+		for (int f = 0; f < 10; f++) {
+			assertArrayEquals(frames.get(f).getValues(),
+					m.getFrame(f).getValues(), 0);
+			assertEquals(f * 10 + 2, m.get(f, 2), 0);
+			assertEquals(f * 10 + 1, m.getValues()[m.offset(f) + 1], 0);
+
+			FloatBuffer row = m.row(f);
+			assertEquals(3, row.remaining());
+			assertEquals(f * 10, row.get(0), 0);
+		}
+	}
+
+
+	@Test
+	public void testRowIsView() {
+		FeatureMatrix m = new FeatureMatrix(new float[6], 3, 16000);
+		m.getValues()[4] = 42;
+		assertEquals(42, m.row(1).get(1), 0);
+	}
+
+
+	@Test
+	public void testFramesAreDistinctObjects() {
+		// Sphinx senones cache scores by Data identity
+		FeatureMatrix m = new FeatureMatrix(new float[6], 3, 16000);
+		assertNotSame(m.getFrame(0), m.getFrame(0));
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRaggedArray() {
+		new FeatureMatrix(new float[7], 3, 16000);
+	}
+
+}
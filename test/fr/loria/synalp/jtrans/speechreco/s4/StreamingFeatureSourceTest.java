@@ -0,0 +1,158 @@
+package fr.loria.synalp.jtrans.speechreco.s4;
+
+import edu.cmu.sphinx.frontend.*;
+import fr.loria.synalp.jtrans.utils.Cache;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StreamingFeatureSourceTest {
+
+	/**
+	 * Front end yielding reproducible random frames, interspersed with
+	 * signals.
+	 */
+	private static class BogusFrontEnd extends BaseDataProcessor {
+		final float[][] frames;
+		int next = -1;
+
+		BogusFrontEnd(int count, int dim, long seed) {
+			Random random = new Random(seed);
+			frames = new float[count][dim];
+			for (float[] frame: frames) {
+				for (int i = 0; i < dim; i++) {
+					frame[i] = random.nextFloat();
+				}
+			}
+		}
+
+		@Override
+		public Data getData() {
+			if (next < 0) {
+				next++;
+				return new DataStartSignal(100);
+			} else if (next < frames.length) {
+				return new FloatData(frames[next].clone(), 16000,
+						next * 10, next++ * 160);
+			} else {
+				return new DataEndSignal(0);
+			}
+		}
+	}
+
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void testRandomAccess() throws Exception {
+		BogusFrontEnd fe = new BogusFrontEnd(1000, 39, 1234);
+		StreamingFeatureSource source = StreamingFeatureSource.extract(
+				fe, tmp.newFile("features"));
+
+		assertEquals(1000, source.getFrameCount());
+		assertEquals(39, source.getDimension());
+
+		Random random = new Random(42);
+		for (int i = 0; i < 5000; i++) {
+			int f = random.nextInt(1000);
+			assertArrayEquals(fe.frames[f], source.getFrame(f).getValues(), 0);
+		}
+
+		FeatureMatrix m = source.toMatrix();
+		for (int f = 0; f < 1000; f++) {
+			assertArrayEquals(fe.frames[f], m.getFrame(f).getValues(), 0);
+		}
+	}
+
+
+	@Test
+	public void testReopenFeatureFile() throws Exception {
+		BogusFrontEnd fe = new BogusFrontEnd(100, 39, 1);
+		File file = tmp.newFile("features");
+		StreamingFeatureSource.extract(fe, file);
+
+		StreamingFeatureSource source = new StreamingFeatureSource(file);
+		assertEquals(100, source.getFrameCount());
+		assertEquals(StreamingFeatureSource.HEADER_BYTES + 4 * 100 * 39,
+				file.length());
+		for (int f = 0; f < 100; f++) {
+			assertArrayEquals(fe.frames[f], source.getFrame(f).getValues(), 0);
+		}
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testTruncatedFeatureFile() throws Exception {
+		File file = tmp.newFile("features");
+		StreamingFeatureSource.extract(new BogusFrontEnd(100, 39, 1), file);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(file.length() - 4);
+		}
+
+		new StreamingFeatureSource(file);
+	}
+
+
+	@Test
+	public void testCacheKey() throws Exception {
+		File file = tmp.newFile("features");
+		byte[] key = Cache.digest("audio", 1);
+		StreamingFeatureSource.extract(new BogusFrontEnd(10, 39, 0), file, key);
+
+		assertEquals(10, new StreamingFeatureSource(file, key).getFrameCount());
+
+		try {
+			new StreamingFeatureSource(file, Cache.digest("audio", 2));
+			fail("expected IOException");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+
+	@Test
+	public void testEmptySource() throws Exception {
+		StreamingFeatureSource source = StreamingFeatureSource.extract(
+				new BogusFrontEnd(0, 39, 0), tmp.newFile("features"));
+		assertEquals(0, source.getFrameCount());
+	}
+
+
+	@Test
+	public void testFailedExtractionLeavesNoPartialFile() throws Exception {
+		File dir = tmp.newFolder("cache");
+		File file = new File(dir, "features");
+
+		// Frame dimension changes midway
+		BogusFrontEnd fe = new BogusFrontEnd(100, 39, 0);
+		fe.frames[50] = new float[13];
+
+		try {
+			StreamingFeatureSource.extract(fe, file);
+			fail("expected IOException");
+		} catch (IOException ex) {
+			// expected
+		}
+
+		assertArrayEquals(new String[0], dir.list());
+	}
+
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfBounds() throws Exception {
+		StreamingFeatureSource.extract(
+				new BogusFrontEnd(10, 39, 0), tmp.newFile("features"))
+				.getFrame(10);
+	}
+
+}
@@ -0,0 +1,134 @@
+package fr.loria.synalp.jtrans.train;
+
+import fr.loria.synalp.jtrans.speechreco.s4.FeatureMatrix;
+import fr.loria.synalp.jtrans.utils.FrameSegmentation;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ModelTrainerTest {
+
+	private static FeatureMatrix randomData(int frames, long seed) {
+		Random random = new Random(seed);
+		float[] values = new float[frames * ModelTrainer.FRAME_DATA_LENGTH];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (float)random.nextGaussian();
+		}
+		return new FeatureMatrix(values, ModelTrainer.FRAME_DATA_LENGTH, 16000);
+	}
+
+
+	private static ModelTrainer train(FeatureMatrix data, Integer[] states) {
+		ModelTrainer mt = new ModelTrainer(data);
+		for (int f = 0; f < states.length; f++) {
+			if (states[f] != null) {
+				mt.learnStateAtFrame(states[f], f);
+			}
+		}
+		mt.seal();
+		return mt;
+	}
+
+
+	@Test
+	public void testIncrementalUpdateMatchesRetraining() {
+		final int frames = 500;
+		Random random = new Random(1);
+		FeatureMatrix data = randomData(frames, 2);
+
+		Integer[] states = new Integer[frames];
+		for (int f = 0; f < frames; f++) {
+			states[f] = random.nextInt(4) == 0? null: random.nextInt(5);
+		}
+
+		ModelTrainer incremental = train(data, states);
+
+		for (int iter = 0; iter < 100; iter++) {
+			for (int i = 0; i < 10; i++) {
+				int f = random.nextInt(frames);
+				states[f] = random.nextInt(4) == 0? null: random.nextInt(6);
+				incremental.relearnStateAtFrame(states[f], f);
+			}
+			incremental.update();
+
+			ModelTrainer reference = train(data, states);
+			assertArrayEquals(reference.getLikelihoods(),
+					incremental.getLikelihoods(), 1e-9);
+			assertEquals(reference.getLikelihood(),
+					incremental.getLikelihood(), 1e-6);
+		}
+	}
+
+
+	@Test
+	public void testLikelihoodIsSumOfFrames() {
+		Integer[] states = new Integer[100];
+		for (int f = 0; f < states.length; f++) {
+			states[f] = f % 7 == 0? null: f / 10;
+		}
+
+		ModelTrainer mt = train(randomData(states.length, 3), states);
+		assertEquals(ModelTrainer.sum(mt.getLikelihoods()),
+				mt.getLikelihood(), 0);
+	}
+
+
+	@Test
+	public void testParallelScoringMatchesSerial() {
+		Integer[] states = new Integer[1000];
+		for (int f = 0; f < states.length; f++) {
+			states[f] = f % 5 == 0? null: f % 13;
+		}
+		FeatureMatrix data = randomData(states.length, 5);
+
+		int threads = ModelTrainer.SCORING_THREADS;
+		int minFrames = ModelTrainer.MIN_FRAMES_PER_THREAD;
+		try {
+			ModelTrainer.SCORING_THREADS = 1;
+			ModelTrainer serial = train(data, states);
+
+			ModelTrainer.SCORING_THREADS = 4;
+			ModelTrainer.MIN_FRAMES_PER_THREAD = 100;
+			ModelTrainer parallel = train(data, states);
+
+			assertArrayEquals(serial.getLikelihoods(),
+					parallel.getLikelihoods(), 0);
+		} finally {
+			ModelTrainer.SCORING_THREADS = threads;
+			ModelTrainer.MIN_FRAMES_PER_THREAD = minFrames;
+		}
+	}
+
+
+	@Test
+	public void testNullStencilAcrossBlocks() {
+		ModelTrainer mt = new ModelTrainer(randomData(20000, 6));
+		for (int f = 5000; f < 5010; f++) {
+			mt.learnStateAtFrame("a", f);
+		}
+		mt.learnStateAtFrame("b", 9000);
+		mt.seal();
+
+		FrameSegmentation expected = new FrameSegmentation.Builder()
+				.add(0, 5000)
+				.add(5010, 3990)
+				.add(9001, 10999)
+				.build();
+		assertEquals(expected, mt.getNullStencil());
+
+		double[] lhd = mt.getLikelihoods();
+		assertEquals(20000, lhd.length);
+		assertEquals(0, lhd[4999], 0);
+		assertTrue(lhd[5000] != 0);
+	}
+
+
+	@Test(expected = IllegalStateException.class)
+	public void testCantRelearnUnlessSealed() {
+		ModelTrainer mt = new ModelTrainer(randomData(10, 4));
+		mt.relearnStateAtFrame(1, 0);
+	}
+
+}
@@ -0,0 +1,234 @@
+package fr.loria.synalp.jtrans.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CacheTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void testDigestDependsOnValues() {
+		assertArrayEquals(
+				Cache.digest("some text", 10, 20),
+				Cache.digest("some text", 10, 20));
+
+		assertFalse(Arrays.equals(
+				Cache.digest("some text", 10, 20),
+				Cache.digest("some text", 10, 21)));
+
+		// Boundaries between identifiers matter
+		assertFalse(Arrays.equals(
+				Cache.digest("ab", "c"),
+				Cache.digest("a", "bc")));
+
+		// So do types
+		assertFalse(Arrays.equals(
+				Cache.digest(1),
+				Cache.digest(1L)));
+	}
+
+
+	@Test
+	public void testHashCodeCollision() {
+		// "Aa" and "BB" have the same String.hashCode
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		assertFalse(Arrays.equals(
+				Cache.digest("Aa"),
+				Cache.digest("BB")));
+	}
+
+
+	@Test
+	public void testFileDigestIgnoresPathAndDate() throws IOException {
+		File a = tmp.newFile("a.wav");
+		File b = tmp.newFile("b.wav");
+		write(a, "same contents");
+		write(b, "same contents");
+		b.setLastModified(a.lastModified() - 100000);
+
+		assertArrayEquals(Cache.digest(a), Cache.digest(b));
+		assertArrayEquals(Cache.digest(a, "x"), Cache.digest(b, "x"));
+
+		write(b, "other contents");
+		assertFalse(Arrays.equals(Cache.digest(a), Cache.digest(b)));
+	}
+
+
+	@Test
+	public void testKeyRoundTrip() throws IOException {
+		File cacheFile = new File(
+				Cache.toHex(Cache.digest("turn", 1)) + ".timeline");
+		assertArrayEquals(Cache.digest("turn", 1), Cache.getKey(cacheFile));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Cache.writeKey(out, cacheFile);
+		out.write(42);
+		assertEquals(4 + Cache.KEY_BYTES + 1, out.size());
+
+		InputStream in = new ByteArrayInputStream(out.toByteArray());
+		Cache.readKey(in, cacheFile);
+		assertEquals(42, in.read());
+
+		File otherFile = new File(
+				Cache.toHex(Cache.digest("turn", 2)) + ".timeline");
+		try {
+			Cache.readKey(new ByteArrayInputStream(out.toByteArray()), otherFile);
+			fail("expected IOException");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+
+	@Test
+	public void testGetKeyOfForeignFile() {
+		assertNull(Cache.getKey(new File("0123abcd.timeline")));
+	}
+
+
+	@Test
+	public void testEvictionSkipsPinnedFiles() throws IOException {
+		final String group = "test-pin";
+		Cache.setBudget(group, 10);
+
+		File old = Cache.getCacheFile(group, "txt", "old");
+		File pinned = Cache.getCacheFile(group, "txt", "pinned");
+		File fresh = Cache.getCacheFile(group, "txt", "fresh");
+
+		try {
+			write(old, "0123456789");
+			Cache.written(old);
+			write(pinned, "0123456789");
+			Cache.pin(pinned);
+			Cache.written(pinned);
+			assertFalse(old.exists());
+
+			// Over budget, but the pinned file must not be evicted
+			write(fresh, "0123456789");
+			Cache.written(fresh);
+			assertTrue(pinned.exists());
+			assertTrue(fresh.exists());
+
+			// Once unpinned, it may go
+			Cache.unpin(pinned);
+			assertFalse(Cache.isPinned(pinned));
+			Cache.written(fresh);
+			assertFalse(pinned.exists());
+			assertTrue(fresh.exists());
+		} finally {
+			old.delete();
+			pinned.delete();
+			fresh.delete();
+			fresh.getParentFile().delete();
+		}
+	}
+
+
+	@Test
+	public void testPinsAreCounted() {
+		File f = Cache.getCacheFile("test-pin", "txt", "counted");
+		Cache.pin(f);
+		Cache.pin(f);
+		Cache.unpin(f);
+		assertTrue(Cache.isPinned(f));
+		Cache.unpin(f);
+		assertFalse(Cache.isPinned(f));
+		f.getParentFile().delete();
+	}
+
+
+	@Test
+	public void testIndexMergesFilesWrittenByOtherJVMs() throws IOException {
+		final String group = "test-merge";
+		Cache.setBudget(group, 10);
+
+		File a = Cache.getCacheFile(group, "txt", "a");
+		File foreign = Cache.getCacheFile(group, "txt", "foreign");
+		File b = Cache.getCacheFile(group, "txt", "b");
+
+		try {
+			write(a, "01234");
+			Cache.written(a);
+
+			// Another JVM writes a file and records it in the index file
+			write(foreign, "0123456789");
+			try (Writer w = new FileWriter(Cache.INDEX_FILE, true)) {
+				w.write(group + "\t" + foreign.getName() + "\t10\t1\n");
+			}
+
+			// The foreign file is the least recently used one
+			write(b, "01234");
+			Cache.written(b);
+			assertFalse(foreign.exists());
+			assertTrue(a.exists());
+			assertTrue(b.exists());
+
+			String index = read(Cache.INDEX_FILE);
+			assertTrue(index.contains(a.getName()));
+			assertTrue(index.contains(b.getName()));
+			assertFalse(index.contains(foreign.getName()));
+		} finally {
+			a.delete();
+			foreign.delete();
+			b.delete();
+			b.getParentFile().delete();
+		}
+	}
+
+
+	@Test
+	public void testCorruptCachedObjectIsRebuilt() throws Exception {
+		final String group = "test-object";
+		File f = Cache.getCacheFile(group, "ser", "corrupt");
+
+		Cache.ObjectFactory factory = new Cache.ObjectFactory() {
+			@Override
+			public Object make() {
+				return "rebuilt";
+			}
+		};
+
+		try {
+			// Valid key, but garbage instead of a serialized object
+			try (OutputStream out = new FileOutputStream(f)) {
+				Cache.writeKey(out, f);
+				out.write("garbage".getBytes("UTF-8"));
+			}
+			Cache.written(f);
+
+			assertEquals("rebuilt",
+					Cache.cachedObject(group, "ser", factory, "corrupt"));
+
+			// The rebuilt object was written back and can be read again
+			assertTrue(f.exists());
+			assertEquals("rebuilt",
+					Cache.cachedObject(group, "ser", null, "corrupt"));
+		} finally {
+			f.delete();
+			f.getParentFile().delete();
+		}
+	}
+
+
+	private static String read(File f) throws IOException {
+		return new String(java.nio.file.Files.readAllBytes(f.toPath()),
+				"UTF-8");
+	}
+
+
+	private static void write(File f, String contents) throws IOException {
+		try (Writer w = new FileWriter(f)) {
+			w.write(contents);
+		}
+	}
+
+}
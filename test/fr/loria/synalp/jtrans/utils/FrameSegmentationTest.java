@@ -0,0 +1,176 @@
+package fr.loria.synalp.jtrans.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameSegmentationTest {
+
+	/**
+	 * Creates a segmentation from an ASCII one-dimensional diagram of segments.
+	 * Each non-space character in the diagram represents a frame.
+	 * Example format: {@code "  XXX X   XX "}
+	 */
+	private static FrameSegmentation fromString(String diagram) {
+		FrameSegmentation seg = new FrameSegmentation();
+		for (int i = 0; i < diagram.length(); i++) {
+			if (' ' != diagram.charAt(i)) {
+				seg.union(i, 1);
+			}
+		}
+		return seg;
+	}
+
+
+	private static boolean[] randomTimeline(Random random, int length) {
+		boolean[] timeline = new boolean[length];
+		boolean value = false;
+		for (int f = 0; f < length; f++) {
+			if (random.nextInt(5) == 0) {
+				value = !value;
+			}
+			timeline[f] = value;
+		}
+		return timeline;
+	}
+
+
+	private static void assertCovers(boolean[] expected, FrameSegmentation seg) {
+		for (int f = 0; f < expected.length; f++) {
+			assertEquals("frame " + f, expected[f], seg.contains(f));
+		}
+		assertTrue(seg.extent() <= expected.length);
+	}
+
+
+	@Test
+	public void testUnion() {
+		FrameSegmentation seg = new FrameSegmentation();
+		seg.union(5, 2);
+		seg.union(1, 1);
+		seg.union(9, 1);
+		assertEquals(fromString(" X   XX  X"), seg);
+
+		// Touching segments are merged
+		seg.union(7, 2);
+		assertEquals(fromString(" X   XXXXX"), seg);
+		assertEquals(2, seg.size());
+
+		// Encompass several segments
+		seg.union(0, 12);
+		assertEquals(1, seg.size());
+		assertEquals(0, seg.getStart(0));
+		assertEquals(12, seg.getEnd(0));
+	}
+
+
+	@Test
+	public void testNegate() {
+		FrameSegmentation
+				seg  = fromString("   XXXX     XX      "),
+				exp  = fromString("XXX    XXXXX  XXXXXX"),
+				copy = new FrameSegmentation(seg);
+
+		seg.negate(20);
+		assertEquals(exp, seg);
+
+		seg.negate(20);
+		assertEquals(copy, seg);
+	}
+
+
+	@Test
+	public void testNegateEmpty() {
+		FrameSegmentation seg = new FrameSegmentation();
+
+		seg.negate(10);
+		assertEquals(fromString("XXXXXXXXXX"), seg);
+
+		seg.negate(10);
+		assertEquals(new FrameSegmentation(), seg);
+	}
+
+
+	@Test
+	public void testIntersect() {
+		FrameSegmentation
+				seg1 = fromString("   XXXX      XXX   "),
+				seg2 = fromString("X XXX    X   X   X "),
+				exp  = fromString("   XX        X     ");
+
+		seg1.intersect(seg2);
+		assertEquals(exp, seg1);
+	}
+
+
+	@Test
+	public void testIntersectNothing() {
+		FrameSegmentation
+				empty = new FrameSegmentation(),
+				seg = fromString(" X X X X X X ");
+
+		seg.intersect(empty);
+		assertEquals(empty, seg);
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBuilderRejectsOverlap() {
+		new FrameSegmentation.Builder().add(0, 5).add(3, 5);
+	}
+
+
+	@Test
+	public void testRandomOperationsMatchTimelines() {
+		Random random = new Random(1);
+		final int length = 300;
+
+		for (int iter = 0; iter < 100; iter++) {
+			boolean[] a = randomTimeline(random, length);
+			boolean[] b = randomTimeline(random, length);
+
+			boolean[] and = new boolean[length];
+			boolean[] or = new boolean[length];
+			boolean[] notA = new boolean[length];
+			for (int f = 0; f < length; f++) {
+				and[f] = a[f] && b[f];
+				or[f] = a[f] || b[f];
+				notA[f] = !a[f];
+			}
+
+			FrameSegmentation segA = FrameSegmentation.fromTimeline(a);
+			FrameSegmentation segB = FrameSegmentation.fromTimeline(b);
+			assertCovers(a, segA);
+
+			FrameSegmentation union = new FrameSegmentation(segA);
+			union.union(segB);
+			assertEquals(FrameSegmentation.fromTimeline(or), union);
+
+			FrameSegmentation intersection = new FrameSegmentation(segA);
+			intersection.intersect(segB);
+			assertEquals(FrameSegmentation.fromTimeline(and), intersection);
+
+			FrameSegmentation negation = new FrameSegmentation(segA);
+			negation.negate(length);
+			assertEquals(FrameSegmentation.fromTimeline(notA), negation);
+
+			// Unioning single frames in random order
+			FrameSegmentation frames = new FrameSegmentation();
+			for (int i = 0; i < length; i++) {
+				int f = random.nextInt(length);
+				if (a[f]) {
+					frames.union(f, 1);
+				}
+			}
+			for (int f = 0; f < length; f++) {
+				if (a[f]) {
+					frames.union(f, 1);
+				}
+			}
+			assertEquals(segA, frames);
+		}
+	}
+
+}